@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+
+/**
+ * A typed handle on a column of a TSV file, obtained from a {@link TsvToFromMap} with
+ * {@link TsvToFromMap#doubleColumn(String)} and the like. The column name is resolved
+ * to its index once, so reading a {@link TsvRow} through the handle is an array access
+ * plus a parse that the row keeps for the rest of the line.
+ * <pre>
+ * final ColumnRef&lt;Double&gt; expr = tsv.doubleColumn("expr");
+ * for (final TsvRow row : tsvLines.rows()) {
+ *     total += expr.get(row);
+ * }
+ * </pre>
+ * @param <T> the type of the values
+ */
+public abstract class ColumnRef<T> {
+    /** The columns the handle belongs to. */
+    private final TsvToFromMap columns;
+
+    /** The column name. */
+    private final String name;
+
+    /** The column index. */
+    private final int index;
+
+    /**
+     * Resolve a column.
+     * @param columns the columns of the TSV file
+     * @param name the column name
+     */
+    ColumnRef(final TsvToFromMap columns, final String name) {
+        super();
+        this.columns = columns;
+        this.name = name;
+        this.index = columns.getColumnIndex(name);
+        if (index == -1) {
+            throw new IllegalArgumentException("No column named " + name);
+        }
+    }
+
+    /**
+     * Get the column name.
+     * @return the column name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the column index.
+     * @return the column index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Read the value of the column from a row.
+     * @param row a row read with the TsvToFromMap the handle came from
+     * @return the value, as returned by the getter of the row for this type
+     */
+    public T get(final TsvRow row) {
+        if (row.getColumns() != columns) {
+            throw new IllegalArgumentException("The row belongs to another TsvToFromMap");
+        }
+        return read(row, index);
+    }
+
+    /**
+     * Read the value of the column from a map, by name.
+     * @param map a map read with {@link TsvToFromMap#readDataToMap(String)}
+     * @return the value, as returned by the getter of the map for this type
+     */
+    public T get(final LinkedHashToMultiTypeMap<String> map) {
+        return read(map, name);
+    }
+
+    /**
+     * Read a value from a row.
+     * @param row the row
+     * @param column the column index
+     * @return the value
+     */
+    abstract T read(TsvRow row, int column);
+
+    /**
+     * Read a value from a map.
+     * @param map the map
+     * @param field the column name
+     * @return the value
+     */
+    abstract T read(LinkedHashToMultiTypeMap<String> map, String field);
+}
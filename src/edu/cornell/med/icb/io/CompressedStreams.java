@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open files for reading, transparently decompressing files with names ending in ".gz".
+ * Gzip files in the BGZF block layout are decompressed on several threads.
+ */
+public final class CompressedStreams {
+    /**
+     * The default size of the compressed input buffer. The 512 byte default of
+     * {@link GZIPInputStream} makes the inflater return for more input far too often.
+     */
+    public static final int BUFFER_SIZE_DEFAULT = 65536;
+
+    /**
+     * The default maximum number of threads decompressing one BGZF file.
+     */
+    public static final int INFLATE_THREADS_DEFAULT =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The pool BGZF files are decompressed on, shared by all the open files.
+     */
+    private static ExecutorService inflateExecutor;
+
+    /**
+     * Private constructor for utility class.
+     */
+    private CompressedStreams() {
+        super();
+    }
+
+    /**
+     * Get if a file is read as gzip compressed, i.e. its name ends with ".gz" in any case.
+     *
+     * @param file the file
+     * @return true if the file is gzip compressed
+     */
+    public static boolean isGzip(final File file) {
+        return file.toString().toLowerCase().endsWith(".gz");
+    }
+
+    /**
+     * Get if a gzip file is in the BGZF block layout, i.e. its first gzip member carries
+     * a "BC" extra field. Such files can be decompressed in parallel.
+     *
+     * @param file the file
+     * @return true if the file starts with a BGZF block
+     * @throws IOException error reading the file
+     */
+    public static boolean isBgzf(final File file) throws IOException {
+        final byte[] header = new byte[16];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < header.length) {
+                final int count = in.read(header, length, header.length - length);
+                if (count == -1) {
+                    break;
+                }
+                length += count;
+            }
+            return ParallelGZIPInputStream.isBgzfHeader(header, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the shared pool of daemon threads BGZF files are decompressed on.
+     *
+     * @return the executor
+     */
+    private static synchronized ExecutorService getInflateExecutor() {
+        if (inflateExecutor == null) {
+            inflateExecutor = Executors.newFixedThreadPool(INFLATE_THREADS_DEFAULT,
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread =
+                                    new Thread(runnable, "CompressedStreams-inflate");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return inflateExecutor;
+    }
+
+    /**
+     * Open a file with the default buffer size and without read ahead.
+     *
+     * @param file the file to read
+     * @return the (decompressed) contents of the file
+     * @throws IOException error opening the file
+     */
+    public static InputStream open(final File file) throws IOException {
+        return open(file, BUFFER_SIZE_DEFAULT, false);
+    }
+
+    /**
+     * Open a file.
+     *
+     * @param file the file to read
+     * @param bufferSize the size of the compressed input buffer for gzip files
+     * @param readAhead if true, read (and decompress) the file on a background thread
+     * with a {@link ReadAheadInputStream}
+     * @return the (decompressed) contents of the file
+     * @throws IOException error opening the file
+     */
+    public static InputStream open(final File file, final int bufferSize,
+                                   final boolean readAhead) throws IOException {
+        return open(file, bufferSize, readAhead, INFLATE_THREADS_DEFAULT);
+    }
+
+    /**
+     * Open a file. BGZF files (see {@link ParallelGZIPInputStream}) are decompressed on
+     * a shared pool of daemon threads when more than one inflate thread is allowed.
+     *
+     * @param file the file to read
+     * @param bufferSize the size of the compressed input buffer for gzip files
+     * @param readAhead if true, read (and decompress) the file on a background thread
+     * with a {@link ReadAheadInputStream}
+     * @param inflateThreads the maximum number of threads decompressing a BGZF file at
+     * once, 1 to always decompress on the reading thread
+     * @return the (decompressed) contents of the file
+     * @throws IOException error opening the file
+     */
+    public static InputStream open(final File file, final int bufferSize,
+                                   final boolean readAhead, final int inflateThreads)
+            throws IOException {
+        if (inflateThreads < 1) {
+            throw new IllegalArgumentException("inflateThreads must be at least 1");
+        }
+        final boolean gzip = isGzip(file);
+        // Only regular files are checked for BGZF, reading a pipe twice would lose data
+        final boolean parallel = gzip && inflateThreads > 1 && file.isFile() && isBgzf(file);
+        final InputStream fileStream = new FileInputStream(file);
+        InputStream result = fileStream;
+        if (parallel) {
+            result = new ParallelGZIPInputStream(new BufferedInputStream(fileStream, bufferSize),
+                    getInflateExecutor(), inflateThreads);
+        } else if (gzip) {
+            try {
+                result = new GZIPInputStream(fileStream, bufferSize);
+            } catch (IOException e) {
+                fileStream.close();
+                throw e;
+            }
+        }
+        if (readAhead) {
+            result = new ReadAheadInputStream(result);
+        }
+        return result;
+    }
+}
@@ -585,7 +585,7 @@ public class ConditionsParser {
     public int parseFieldValueInt(final String fieldName)
             throws ConditionsParsingException {
         final String fieldValue = parseFieldValueString(fieldName);
-        return Integer.parseInt(fieldValue);
+        return NumberParser.parseInt(fieldValue);
     }
 
     /**
@@ -607,7 +607,7 @@ public class ConditionsParser {
         final String[] fieldValues = parseFieldValueStringArray(fieldName);
         final int[] outValues = new int[fieldValues.length];
         for (int i = 0; i < fieldValues.length; i++) {
-            outValues[i] = Integer.parseInt(fieldValues[i]);
+            outValues[i] = NumberParser.parseInt(fieldValues[i]);
         }
         return outValues;
     }
@@ -628,7 +628,7 @@ public class ConditionsParser {
     public double parseFieldValueDouble(final String fieldName)
             throws ConditionsParsingException {
         final String fieldValue = parseFieldValueString(fieldName);
-        return Double.parseDouble(fieldValue);
+        return NumberParser.parseDouble(fieldValue);
     }
 
     /**
@@ -650,7 +650,7 @@ public class ConditionsParser {
         final String[] fieldValues = parseFieldValueStringArray(fieldName);
         final double[] outValues = new double[fieldValues.length];
         for (int i = 0; i < fieldValues.length; i++) {
-            outValues[i] = Double.parseDouble(fieldValues[i]);
+            outValues[i] = NumberParser.parseDouble(fieldValues[i]);
         }
         return outValues;
     }
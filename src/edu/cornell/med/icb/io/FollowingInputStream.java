@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An InputStream that follows a file as it grows, like "tail -f". At the end of the file
+ * reads wait for more data instead of returning -1, polling the file at intervals that
+ * grow from {@link #MIN_POLL_MILLIS} to {@link #MAX_POLL_MILLIS} while it stays idle.
+ * <p>
+ * If the file shrinks (it was truncated, as with logrotate's copytruncate) reading starts
+ * again from its beginning. If a different file appears under the same name (it was
+ * rotated) the rest of the old file is read first, then the new one from its beginning;
+ * this needs a file system that reports file keys (inodes), elsewhere only truncation is
+ * detected.
+ * <p>
+ * The stream ends when it has been idle for the idle timeout, after {@link #stop()} once
+ * the data written so far has been read, or when it is closed, even from another thread.
+ * Polling is used rather than a WatchService, which does not see changes made over NFS.
+ */
+public final class FollowingInputStream extends InputStream {
+    /** The shortest time between polls, used right after data was read. */
+    public static final long MIN_POLL_MILLIS = 10;
+
+    /** The longest time between polls. */
+    public static final long MAX_POLL_MILLIS = 1000;
+
+    /** The file being followed. */
+    private final File file;
+
+    /** How long the file may stay idle before the stream ends, 0 to wait forever. */
+    private final long idleTimeoutMillis;
+
+    /** The open file. */
+    private FileInputStream in;
+
+    /** The channel of the open file. */
+    private FileChannel channel;
+
+    /** The key of the open file, null if the file system has none. */
+    private Object fileKey;
+
+    /** The current time between polls. */
+    private long pollMillis = MIN_POLL_MILLIS;
+
+    /** When data was last read. */
+    private long lastDataMillis;
+
+    /** True once stop() has been called. */
+    private volatile boolean stopped;
+
+    /** True once close() has been called. */
+    private volatile boolean closed;
+
+    /**
+     * Follow a file until the stream is stopped or closed.
+     * @param file the file to follow
+     * @throws IOException error opening the file
+     */
+    public FollowingInputStream(final File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Follow a file.
+     * @param file the file to follow
+     * @param idleTimeoutMillis how long the file may stay idle before the stream ends,
+     * 0 to wait until the stream is stopped or closed
+     * @throws IOException error opening the file
+     */
+    public FollowingInputStream(final File file, final long idleTimeoutMillis)
+            throws IOException {
+        super();
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must not be negative");
+        }
+        this.file = file;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        open();
+        lastDataMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Open the file from its beginning.
+     * @throws IOException error opening the file
+     */
+    private void open() throws IOException {
+        in = new FileInputStream(file);
+        channel = in.getChannel();
+        fileKey = readFileKey();
+    }
+
+    /**
+     * Get the key of the file currently under the name being followed.
+     * @return the file key, null if there is no file or no key
+     * @throws IOException error reading the file attributes
+     */
+    private Object readFileKey() throws IOException {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * End the stream once the data written so far has been read.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * Read data, waiting for the file to grow at its end.
+     * @param bytes the buffer
+     * @param offset where to start writing
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, -1 when the stream has ended
+     * @throws IOException error reading the file
+     */
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (!closed) {
+            final int count;
+            try {
+                count = channel.read(ByteBuffer.wrap(bytes, offset, length));
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    break;
+                }
+                throw e;
+            }
+            if (count > 0) {
+                pollMillis = MIN_POLL_MILLIS;
+                lastDataMillis = System.currentTimeMillis();
+                return count;
+            }
+            if (channel.size() < channel.position()) {
+                // Truncated, start again from the beginning
+                channel.position(0);
+                continue;
+            }
+            final Object currentKey = readFileKey();
+            if (currentKey != null && fileKey != null && !currentKey.equals(fileKey)) {
+                // Rotated and the old file has been read to its end, switch to the new one
+                in.close();
+                open();
+                continue;
+            }
+            if (stopped) {
+                break;
+            }
+            final long now = System.currentTimeMillis();
+            if (idleTimeoutMillis > 0 && now - lastDataMillis >= idleTimeoutMillis) {
+                break;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while following " + file);
+            }
+            pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+        }
+        return -1;
+    }
+
+    /**
+     * The number of bytes that can be read without waiting for the file to grow.
+     * @return the number of bytes left in the file
+     * @throws IOException error reading the file size
+     */
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+                channel.size() - channel.position()));
+    }
+
+    /**
+     * Close the file. A read waiting in another thread returns -1.
+     * @throws IOException error closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        in.close();
+    }
+}
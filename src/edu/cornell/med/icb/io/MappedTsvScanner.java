@@ -0,0 +1,740 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import edu.cornell.med.icb.util.ICBStringUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Scan a tab/single character delimited file by memory mapping it. Delimiters and line
+ * terminators are found directly in the bytes of the file and only the fields that are
+ * requested are decoded. The file is mapped in windows that slide along the file, so
+ * files larger than 2 GB can be read.
+ * <p>
+ * The API and the comment prefix and escape character handling are the same as
+ * {@link TSVReader}. The delimiter, escape character and comment prefix must be
+ * ASCII characters and the file must use a charset where ASCII characters are
+ * encoded as single bytes (such as UTF-8 or ISO-8859-1).
+ */
+public final class MappedTsvScanner implements Closeable {
+
+    /**
+     * The default size of the mapped windows.
+     */
+    private static final int WINDOW_SIZE_DEFAULT = 64 * 1024 * 1024;
+
+    /**
+     * The largest window that can be mapped.
+     */
+    private static final int WINDOW_SIZE_MAX = Integer.MAX_VALUE - 8;
+
+    /**
+     * The default escape character.
+     */
+    private static final char ESCAPE_CHAR_DEFAULT = '\\';
+
+    /**
+     * The file being scanned.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The channel the windows are mapped from.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The charset used to decode fields.
+     */
+    private final Charset charset;
+
+    /**
+     * The line delimiter character (for tokenizing the line).
+     */
+    private final byte delimiter;
+
+    /**
+     * The file position where scanning stops (the end of the file unless a range
+     * of the file is being scanned).
+     */
+    private final long end;
+
+    /**
+     * The comment prefix.
+     */
+    private String commentPrefix;
+
+    /**
+     * The comment prefix, encoded with {@link #charset}.
+     */
+    private byte[] commentPrefixBytes;
+
+    /**
+     * The escape character.
+     */
+    private Character escapeChar = ESCAPE_CHAR_DEFAULT;
+
+    /**
+     * If true, the results will be unescaped.
+     */
+    private boolean unescapeResults = true;
+
+    /**
+     * The size of the windows that are mapped.
+     */
+    private int windowSize = WINDOW_SIZE_DEFAULT;
+
+    /**
+     * The currently mapped window.
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * The file position of the first byte of the window.
+     */
+    private long windowStart;
+
+    /**
+     * The number of bytes in the window.
+     */
+    private int windowLength;
+
+    /**
+     * The file position of the next unread byte.
+     */
+    private long position;
+
+    /**
+     * If true the previous line ended with a carriage return so a following
+     * line feed should be ignored.
+     */
+    private boolean skipLineFeed;
+
+    /**
+     * True if a line has been read but not yet consumed by {@link #next()} or
+     * {@link #skip()}.
+     */
+    private boolean lineAvailable;
+
+    /**
+     * The window offset of the first byte of the current line.
+     */
+    private int lineStart;
+
+    /**
+     * The window offset just past the last byte of the current line.
+     */
+    private int lineEnd;
+
+    /**
+     * The number of fields on the current line.
+     */
+    private int fieldCount;
+
+    /**
+     * The current field number.
+     */
+    private int currentTokenIndex;
+
+    /**
+     * The window offset of the first byte of each field.
+     */
+    private int[] fieldStarts = new int[16];
+
+    /**
+     * The window offset just past the last byte of each field.
+     */
+    private int[] fieldEnds = new int[16];
+
+    /**
+     * True for each field that contains the escape character.
+     */
+    private boolean[] fieldEscaped = new boolean[16];
+
+    /**
+     * Scratch space used to decode fields.
+     */
+    private byte[] decodeBuffer = new byte[256];
+
+    /**
+     * Create a new scanner for the given file with a tab delimiter, decoding fields
+     * with the platform default charset.
+     *
+     * @param fileToScan the file to scan
+     * @throws IOException error opening the file
+     */
+    public MappedTsvScanner(final File fileToScan) throws IOException {
+        this(fileToScan, '\t');
+    }
+
+    /**
+     * Create a new scanner for the given file with the supplied delimiter, decoding
+     * fields with the platform default charset.
+     *
+     * @param fileToScan the file to scan
+     * @param delimiterVal the delimiter used to tokenize the line of text
+     * @throws IOException error opening the file
+     */
+    public MappedTsvScanner(final File fileToScan, final char delimiterVal) throws IOException {
+        this(fileToScan, delimiterVal, Charset.defaultCharset());
+    }
+
+    /**
+     * Create a new scanner for the given file.
+     *
+     * @param fileToScan the file to scan
+     * @param delimiterVal the delimiter used to tokenize the line of text
+     * @param charsetVal the charset used to decode the fields
+     * @throws IOException error opening the file
+     */
+    public MappedTsvScanner(final File fileToScan, final char delimiterVal,
+                            final Charset charsetVal) throws IOException {
+        this(fileToScan, delimiterVal, charsetVal, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a new scanner for a range of the given file. The range should start at the
+     * beginning of a line and end just after a line terminator (or at the end of the file)
+     * so that no line is split between two ranges.
+     *
+     * @param fileToScan the file to scan
+     * @param delimiterVal the delimiter used to tokenize the line of text
+     * @param charsetVal the charset used to decode the fields
+     * @param startPosition the file position where scanning starts
+     * @param endPosition the file position where scanning stops
+     * @throws IOException error opening the file
+     */
+    public MappedTsvScanner(final File fileToScan, final char delimiterVal,
+                            final Charset charsetVal, final long startPosition,
+                            final long endPosition) throws IOException {
+        super();
+        checkAscii(delimiterVal, "delimiter");
+        this.charset = charsetVal;
+        this.delimiter = (byte) delimiterVal;
+        this.file = new RandomAccessFile(fileToScan, "r");
+        this.channel = file.getChannel();
+        this.end = Math.min(endPosition, channel.size());
+        this.position = startPosition;
+        setCommentPrefix("#");
+    }
+
+    /**
+     * Make sure a character can be matched as a single byte.
+     *
+     * @param value the character to check
+     * @param name the name of the character, for the exception message
+     */
+    private static void checkAscii(final char value, final String name) {
+        if (value > 127) {
+            throw new IllegalArgumentException("The " + name + " must be an ASCII character");
+        }
+    }
+
+    /**
+     * Set the comment prefix that will be used to ignore
+     * commented lines.
+     *
+     * @param commentPrefixVal the new comment prefix.
+     * @return this MappedTsvScanner for command chaining
+     */
+    public MappedTsvScanner setCommentPrefix(final String commentPrefixVal) {
+        if (StringUtils.isBlank(commentPrefixVal)) {
+            this.commentPrefix = null;
+            this.commentPrefixBytes = null;
+        } else {
+            this.commentPrefix = commentPrefixVal.trim();
+            this.commentPrefixBytes = commentPrefix.getBytes(charset);
+        }
+        return this;
+    }
+
+    /**
+     * Get the comment prefix being used.
+     *
+     * @return the comment prefix being used.
+     */
+    public String getCommentPrefix() {
+        return this.commentPrefix;
+    }
+
+    /**
+     * Set the escape character being used.
+     *
+     * @param escapeCharVal the escape character being used.
+     * @return this MappedTsvScanner for command chaining
+     */
+    public MappedTsvScanner setEscapeChar(final Character escapeCharVal) {
+        if (escapeCharVal != null) {
+            checkAscii(escapeCharVal, "escape character");
+        }
+        this.escapeChar = escapeCharVal;
+        return this;
+    }
+
+    /**
+     * Get the escape character being used.
+     *
+     * @return the escape character being used.
+     */
+    public Character getEscapeChar() {
+        return this.escapeChar;
+    }
+
+    /**
+     * Set the if the results should be unescaped.
+     *
+     * @param unescapeResultsVal if results should be unescaped.
+     * @return this MappedTsvScanner for command chaining
+     */
+    public MappedTsvScanner setUnescapeResults(final boolean unescapeResultsVal) {
+        this.unescapeResults = unescapeResultsVal;
+        return this;
+    }
+
+    /**
+     * Get the if the results should be unescaped.
+     *
+     * @return if results should be unescaped.
+     */
+    public boolean getUnescapeResults() {
+        return this.unescapeResults;
+    }
+
+    /**
+     * Set the size of the windows of the file that are mapped at once. A line that is
+     * longer than the window will cause a larger window to be mapped.
+     *
+     * @param windowSizeVal the size of the windows in bytes
+     * @return this MappedTsvScanner for command chaining
+     */
+    public MappedTsvScanner setWindowSize(final int windowSizeVal) {
+        if (windowSizeVal <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        this.windowSize = windowSizeVal;
+        return this;
+    }
+
+    /**
+     * Get the size of the windows of the file that are mapped at once.
+     *
+     * @return the size of the windows in bytes
+     */
+    public int getWindowSize() {
+        return this.windowSize;
+    }
+
+    /**
+     * Check if the file has more lines.
+     *
+     * @return true of there is another line of text
+     * @throws IOException problem reading from file
+     */
+    public boolean hasNext() throws IOException {
+        if (!lineAvailable) {
+            lineAvailable = readLine();
+            if (!lineAvailable) {
+                fieldCount = 0;
+            }
+        }
+        return lineAvailable;
+    }
+
+    /**
+     * Get if the current line is a comment line.
+     *
+     * @return true of the current line is a comment line
+     */
+    public boolean isCommentLine() {
+        if (commentPrefixBytes == null) {
+            return false;
+        }
+        final int prefixLength = commentPrefixBytes.length;
+        if (lineEnd - lineStart < prefixLength) {
+            return false;
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            if (window.get(lineStart + i) != commentPrefixBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the current line is empty.
+     *
+     * @return true if the current line is empty
+     */
+    public boolean isEmptyLine() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            final byte curByte = window.get(i);
+            if (curByte < 0) {
+                // Not ASCII, decode the line to check for unicode whitespace
+                return StringUtils.isBlank(decode(lineStart, lineEnd));
+            }
+            if (!Character.isWhitespace((char) curByte)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip the current line.
+     */
+    public void skip() {
+        currentTokenIndex = 0;
+        lineAvailable = false;
+    }
+
+    /**
+     * Prepare the line for parsing of fields. After this method is called,
+     * {@link #getInt()}, {@link #getFloat()}, {@link #getDouble()} and
+     * {@link #getString()} can be called on the line to retrieve field values
+     * of the appropriate type.
+     */
+    public void next() {
+        locateFields();
+        currentTokenIndex = 0;
+        lineAvailable = false;
+    }
+
+    /**
+     * Get the number of fields on the current line.
+     *
+     * @return the number of fields on the current line
+     */
+    public int numTokens() {
+        return fieldCount;
+    }
+
+    /**
+     * Get the current field as an int.
+     * Advances to the next field.
+     *
+     * @return the current field as an int
+     */
+    public int getInt() {
+        ensureNextField();
+        final int field = currentTokenIndex++;
+        if (needsUnescape(field)) {
+            return NumberParser.parseInt(fieldToString(field));
+        }
+        final long value = parseLong(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""
+                    + fieldToString(field) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Get the current field as a long.
+     * Advances to the next field.
+     *
+     * @return the current field as an long
+     */
+    public long getLong() {
+        ensureNextField();
+        final int field = currentTokenIndex++;
+        if (needsUnescape(field)) {
+            return NumberParser.parseLong(fieldToString(field));
+        }
+        return parseLong(field);
+    }
+
+    /**
+     * Get the current field as a float.
+     * Advances to the next field.
+     *
+     * @return the current field as a float
+     */
+    public float getFloat() {
+        ensureNextField();
+        return Float.parseFloat(fieldToString(currentTokenIndex++));
+    }
+
+    /**
+     * Get the current field as a double.
+     * Advances to the next field.
+     *
+     * @return the current field as a double
+     */
+    public double getDouble() {
+        ensureNextField();
+        final int field = currentTokenIndex++;
+        if (needsUnescape(field)) {
+            return NumberParser.parseDouble(fieldToString(field));
+        }
+        return parseDouble(field);
+    }
+
+    /**
+     * Get the current field as a String.
+     * Advances to the next field.
+     *
+     * @return the current field as a String
+     */
+    public String getString() {
+        ensureNextField();
+        return fieldToString(currentTokenIndex++);
+    }
+
+    /**
+     * Ensures we have a next field.
+     */
+    private void ensureNextField() {
+        if (currentTokenIndex >= fieldCount) {
+            throw new NoSuchElementException();
+        }
+    }
+
+    /**
+     * Map the window of the file that starts at the given position.
+     *
+     * @param start the file position of the first byte of the window
+     * @param size the requested size of the window
+     * @throws IOException error mapping the file
+     */
+    private void mapWindow(final long start, final int size) throws IOException {
+        windowStart = start;
+        windowLength = (int) Math.min(size, end - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+    }
+
+    /**
+     * Make sure the window contains the byte at {@link #position}.
+     *
+     * @throws IOException error mapping the file
+     */
+    private void ensureWindow() throws IOException {
+        if (window == null || position < windowStart || position >= windowStart + windowLength) {
+            mapWindow(position, windowSize);
+        }
+    }
+
+    /**
+     * Read the next line, setting {@link #lineStart} and {@link #lineEnd}. Lines are
+     * terminated the same way as {@link java.io.BufferedReader#readLine()}, by a line feed,
+     * a carriage return or a carriage return followed by a line feed.
+     *
+     * @return true if a line was read, false at the end of the file
+     * @throws IOException error mapping the file, or a line does not fit in a window
+     */
+    private boolean readLine() throws IOException {
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (position < end) {
+                ensureWindow();
+                if (window.get((int) (position - windowStart)) == '\n') {
+                    position++;
+                }
+            }
+        }
+        if (position >= end) {
+            return false;
+        }
+        ensureWindow();
+        int scanned = 0;
+        while (true) {
+            final int offset = (int) (position - windowStart);
+            for (int i = offset + scanned; i < windowLength; i++) {
+                final byte curByte = window.get(i);
+                if (curByte == '\n' || curByte == '\r') {
+                    lineStart = offset;
+                    lineEnd = i;
+                    position = windowStart + i + 1;
+                    skipLineFeed = curByte == '\r';
+                    return true;
+                }
+            }
+            scanned = windowLength - offset;
+            if (windowStart + windowLength >= end) {
+                // Last line of the file, without a line terminator
+                lineStart = offset;
+                lineEnd = windowLength;
+                position = end;
+                return true;
+            }
+            // The line continues past the window, slide the window to the start of the line
+            int size = windowSize;
+            if (offset == 0) {
+                // The line is longer than the window, grow it
+                if (windowLength >= WINDOW_SIZE_MAX) {
+                    throw new IOException("Line too long at position " + windowStart);
+                }
+                size = (int) Math.min(WINDOW_SIZE_MAX, Math.max((long) windowLength * 2, size));
+                windowSize = size;
+            }
+            mapWindow(position, size);
+        }
+    }
+
+    /**
+     * Record the start and end of each field of the current line. This follows the same
+     * rules as {@link ICBStringUtils#split(String, char, Character)}.
+     */
+    private void locateFields() {
+        fieldCount = 0;
+        if (lineStart == lineEnd) {
+            return;
+        }
+        final boolean useEscape = escapeChar != null && escapeChar != delimiter;
+        final byte escape = useEscape ? (byte) escapeChar.charValue() : 0;
+        int fieldStart = lineStart;
+        boolean escaped = false;
+        boolean inEscape = false;
+        for (int i = lineStart; i < lineEnd; i++) {
+            final byte curByte = window.get(i);
+            if (!inEscape && curByte == delimiter) {
+                addField(fieldStart, i, escaped);
+                fieldStart = i + 1;
+                escaped = false;
+                continue;
+            }
+            if (useEscape) {
+                if (!inEscape && curByte == escape) {
+                    inEscape = true;
+                    escaped = true;
+                    continue;
+                }
+                inEscape = false;
+            }
+        }
+        addField(fieldStart, lineEnd, escaped);
+    }
+
+    /**
+     * Record the location of a field on the current line.
+     *
+     * @param start the window offset of the first byte of the field
+     * @param fieldEnd the window offset just past the last byte of the field
+     * @param escaped true if the field contains the escape character
+     */
+    private void addField(final int start, final int fieldEnd, final boolean escaped) {
+        if (fieldCount == fieldStarts.length) {
+            final int newLength = fieldCount * 2;
+            fieldStarts = Arrays.copyOf(fieldStarts, newLength);
+            fieldEnds = Arrays.copyOf(fieldEnds, newLength);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, newLength);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = fieldEnd;
+        fieldEscaped[fieldCount] = escaped;
+        fieldCount++;
+    }
+
+    /**
+     * Check if the given field must be unescaped before it is returned.
+     *
+     * @param field the field number
+     * @return true if the field contains the escape character and results are unescaped
+     */
+    private boolean needsUnescape(final int field) {
+        return unescapeResults && fieldEscaped[field];
+    }
+
+    /**
+     * Decode the given field of the current line, unescaping it if needed.
+     *
+     * @param field the field number
+     * @return the field as a String
+     */
+    private String fieldToString(final int field) {
+        final String value = decode(fieldStarts[field], fieldEnds[field]);
+        if (needsUnescape(field)) {
+            return ICBStringUtils.unescape(value, escapeChar);
+        }
+        return value;
+    }
+
+    /**
+     * Decode a range of the window.
+     *
+     * @param start the window offset of the first byte
+     * @param rangeEnd the window offset just past the last byte
+     * @return the decoded String
+     */
+    private String decode(final int start, final int rangeEnd) {
+        final int length = rangeEnd - start;
+        if (length > decodeBuffer.length) {
+            decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            decodeBuffer[i] = window.get(start + i);
+        }
+        return new String(decodeBuffer, 0, length, charset);
+    }
+
+    /**
+     * Parse a long from a field. {@link NumberParser} reads the bytes as ISO-8859-1,
+     * fields it rejects are decoded with the charset and parsed again so that the result
+     * (or the exception) is always the same as it would be for the String value.
+     *
+     * @param field the field number
+     * @return the parsed value
+     */
+    private long parseLong(final int field) {
+        try {
+            return NumberParser.parseLong(window, fieldStarts[field], fieldEnds[field]);
+        } catch (NumberFormatException e) {
+            return Long.parseLong(decode(fieldStarts[field], fieldEnds[field]));
+        }
+    }
+
+    /**
+     * Parse a double from a field. {@link NumberParser} reads the bytes as ISO-8859-1,
+     * fields it rejects are decoded with the charset and parsed again so that the result
+     * (or the exception) is always the same as it would be for the String value.
+     *
+     * @param field the field number
+     * @return the parsed value
+     */
+    private double parseDouble(final int field) {
+        try {
+            return NumberParser.parseDouble(window, fieldStarts[field], fieldEnds[field]);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(decode(fieldStarts[field], fieldEnds[field]));
+        }
+    }
+
+    /**
+     * Closes the file. The last mapped window is released when it is garbage collected.
+     * If the scanner is already closed then invoking this method has no effect.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        file.close();
+        window = null;
+        lineAvailable = false;
+        fieldCount = 0;
+    }
+}
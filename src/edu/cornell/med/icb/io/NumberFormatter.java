@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.math.BigInteger;
+
+/**
+ * Format ints, longs and doubles directly into a char array without creating Strings.
+ * <p>
+ * Doubles are written with the shortest decimal that parses back to the same double,
+ * computed with the Schubfach algorithm (Raffaello Giulietti, "The Schubfach way to
+ * render doubles", 2020). The layout is the one of {@link Double#toString(double)}, plain
+ * for magnitudes from 10^-3 up to 10^7 and computerized scientific notation otherwise,
+ * so the text is what {@link Double#toString(double)} gives on recent JVMs and never
+ * longer than it on older ones.
+ */
+public final class NumberFormatter {
+    /**
+     * The maximum number of characters {@link #formatInt(int, char[], int)} writes.
+     */
+    public static final int MAX_INT_LENGTH = 11;
+
+    /**
+     * The maximum number of characters {@link #formatLong(long, char[], int)} writes.
+     */
+    public static final int MAX_LONG_LENGTH = 20;
+
+    /**
+     * The maximum number of characters {@link #formatDouble(double, char[], int)} writes.
+     */
+    public static final int MAX_DOUBLE_LENGTH = 24;
+
+    /**
+     * The number of bits of precision of a double.
+     */
+    private static final int P = 53;
+
+    /**
+     * The smallest binary exponent of a double, for the integer significand.
+     */
+    private static final int Q_MIN = -1074;
+
+    /**
+     * The smallest normal integer significand.
+     */
+    private static final long C_MIN = 1L << (P - 1);
+
+    /**
+     * Mask of the biased exponent bits, once shifted.
+     */
+    private static final int BQ_MASK = (1 << 11) - 1;
+
+    /**
+     * Mask of the trailing significand bits.
+     */
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+
+    /**
+     * Subnormal significands below this need one more digit of precision.
+     */
+    private static final long C_TINY = 3;
+
+    /**
+     * The smallest power of ten in {@link #G}.
+     */
+    private static final int K_MIN = -324;
+
+    /**
+     * The largest power of ten in {@link #G}.
+     */
+    private static final int K_MAX = 292;
+
+    /**
+     * The low 63 bits.
+     */
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    /**
+     * Powers of ten that fit in a long.
+     */
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    /**
+     * For each k from K_MIN to K_MAX, let 10^-k = beta 2^r with 2^125 &lt;= beta &lt; 2^126
+     * and g = floor(beta) + 1. Entry 2(k - K_MIN) holds g / 2^63 and the next entry
+     * g mod 2^63.
+     */
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        long power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            final BigInteger beta;
+            if (k <= 0) {
+                final BigInteger tenPower = BigInteger.TEN.pow(-k);
+                final int shift = tenPower.bitLength() - 126;
+                beta = shift >= 0 ? tenPower.shiftRight(shift) : tenPower.shiftLeft(-shift);
+            } else {
+                final BigInteger tenPower = BigInteger.TEN.pow(k);
+                beta = BigInteger.ONE.shiftLeft(tenPower.bitLength() + 125).divide(tenPower);
+            }
+            final BigInteger g = beta.add(BigInteger.ONE);
+            final int index = 2 * (k - K_MIN);
+            G[index] = g.shiftRight(63).longValue();
+            G[index + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    /**
+     * Private constructor for utility class.
+     */
+    private NumberFormatter() {
+        super();
+    }
+
+    /**
+     * Write an int the same way as {@link Integer#toString(int)}.
+     *
+     * @param value the value to write
+     * @param dest where to write the characters, needs room for {@link #MAX_INT_LENGTH}
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    public static int formatInt(final int value, final char[] dest, final int offset) {
+        return formatLong(value, dest, offset);
+    }
+
+    /**
+     * Write a long the same way as {@link Long#toString(long)}.
+     *
+     * @param value the value to write
+     * @param dest where to write the characters, needs room for {@link #MAX_LONG_LENGTH}
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    public static int formatLong(final long value, final char[] dest, final int offset) {
+        int pos = offset;
+        // Work with negative values so that Long.MIN_VALUE needs no special case
+        long negative = value;
+        if (value < 0) {
+            dest[pos++] = '-';
+        } else {
+            negative = -value;
+        }
+        int length = 1;
+        for (long rest = negative / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        final int end = pos + length;
+        for (int i = end - 1; i >= pos; i--) {
+            dest[i] = (char) ('0' - (negative % 10));
+            negative /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Write a double as the shortest decimal that parses back to the same value.
+     *
+     * @param value the value to write
+     * @param dest where to write the characters, needs room for {@link #MAX_DOUBLE_LENGTH}
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    public static int formatDouble(final double value, final char[] dest, final int offset) {
+        final long bits = Double.doubleToRawLongBits(value);
+        final long t = bits & T_MASK;
+        final int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq == BQ_MASK) {
+            if (t != 0) {
+                return append("NaN", dest, offset);
+            }
+            return append(bits > 0 ? "Infinity" : "-Infinity", dest, offset);
+        }
+        int pos = offset;
+        if (bits < 0) {
+            dest[pos++] = '-';
+        }
+        if (bq != 0) {
+            // normal value, mq = -q
+            final int mq = -Q_MIN + 1 - bq;
+            final long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                // integer values are exact
+                final long f = c >> mq;
+                if (f << mq == c) {
+                    return toChars(f, 0, dest, pos);
+                }
+            }
+            return toDecimal(-mq, c, 0, dest, pos);
+        }
+        if (t != 0) {
+            // subnormal value
+            return t < C_TINY
+                    ? toDecimal(Q_MIN, 10 * t, -1, dest, pos)
+                    : toDecimal(Q_MIN, t, 0, dest, pos);
+        }
+        return append("0.0", dest, pos);
+    }
+
+    /**
+     * Find the shortest decimal in the rounding interval of c 2^q and write it.
+     *
+     * @param q the binary exponent
+     * @param c the integer significand
+     * @param dk the correction to the decimal exponent
+     * @param dest where to write the characters
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    private static int toDecimal(final int q, final long c, final int dk,
+                                 final char[] dest, final int offset) {
+        final int out = (int) c & 0x1;
+        final long cb = c << 2;
+        final long cbr = cb + 2;
+        final long cbl;
+        final int k;
+        if (c != C_MIN || q == Q_MIN) {
+            // regular spacing
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // irregular spacing
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        final int h = q + flog2pow10(-k) + 2;
+
+        final int index = 2 * (k - K_MIN);
+        final long g1 = G[index];
+        final long g0 = G[index + 1];
+
+        final long vb = rop(g1, g0, cb << h);
+        final long vbl = rop(g1, g0, cbl << h);
+        final long vbr = rop(g1, g0, cbr << h);
+
+        final long s = vb >> 2;
+        if (s >= 100) {
+            // s' = floor(s / 10), try one digit less first
+            final long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+            final long tp10 = sp10 + 10;
+            final boolean upin = vbl + out <= sp10 << 2;
+            final boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return toChars(upin ? sp10 : tp10, k, dest, offset);
+            }
+        }
+        final long t = s + 1;
+        final boolean uin = vbl + out <= s << 2;
+        final boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            // exactly one of s and t is in the rounding interval
+            return toChars(uin ? s : t, k + dk, dest, offset);
+        }
+        // both are, pick the closest one and the even one on a tie
+        final long cmp = vb - ((s + t) << 1);
+        return toChars(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk, dest, offset);
+    }
+
+    /**
+     * Write f 10^e in the layout of {@link Double#toString(double)}.
+     *
+     * @param significand the decimal significand, positive
+     * @param exponent the decimal exponent
+     * @param dest where to write the characters
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    private static int toChars(final long significand, final int exponent,
+                               final char[] dest, final int offset) {
+        long f = significand;
+        int e = exponent;
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int length = 1;
+        while (length < POWERS_OF_TEN.length && f >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        // the value is d.ddd 10^scientific
+        final int scientific = e + length - 1;
+        int pos = offset;
+        if (scientific >= 0 && scientific < 7) {
+            final int integerDigits = scientific + 1;
+            if (length <= integerDigits) {
+                pos = writeDigits(f, length, dest, pos);
+                for (int i = length; i < integerDigits; i++) {
+                    dest[pos++] = '0';
+                }
+                dest[pos++] = '.';
+                dest[pos++] = '0';
+            } else {
+                final long divisor = POWERS_OF_TEN[length - integerDigits];
+                pos = writeDigits(f / divisor, integerDigits, dest, pos);
+                dest[pos++] = '.';
+                pos = writeDigits(f % divisor, length - integerDigits, dest, pos);
+            }
+        } else if (scientific < 0 && scientific >= -3) {
+            dest[pos++] = '0';
+            dest[pos++] = '.';
+            for (int i = -1; i > scientific; i--) {
+                dest[pos++] = '0';
+            }
+            pos = writeDigits(f, length, dest, pos);
+        } else {
+            final long divisor = POWERS_OF_TEN[length - 1];
+            dest[pos++] = (char) ('0' + f / divisor);
+            dest[pos++] = '.';
+            if (length == 1) {
+                dest[pos++] = '0';
+            } else {
+                pos = writeDigits(f % divisor, length - 1, dest, pos);
+            }
+            dest[pos++] = 'E';
+            pos = formatLong(scientific, dest, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Write exactly the given number of digits of a value, padding with leading zeros.
+     *
+     * @param value the value to write, not negative
+     * @param count the number of digits to write
+     * @param dest where to write the characters
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    private static int writeDigits(final long value, final int count,
+                                   final char[] dest, final int offset) {
+        long rest = value;
+        final int end = offset + count;
+        for (int i = end - 1; i >= offset; i--) {
+            dest[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Copy a String into the destination.
+     *
+     * @param value the String to copy
+     * @param dest where to write the characters
+     * @param offset the index of the first character to write
+     * @return the index just past the last character written
+     */
+    private static int append(final String value, final char[] dest, final int offset) {
+        value.getChars(0, value.length(), dest, offset);
+        return offset + value.length();
+    }
+
+    /**
+     * Computes rop(cp g 2^-127) where g = g1 2^63 + g0, rounding to odd.
+     *
+     * @param g1 the high part of g
+     * @param g0 the low part of g
+     * @param cp the scaled significand
+     * @return the rounded product
+     */
+    private static long rop(final long g1, final long g0, final long cp) {
+        final long x1 = multiplyHigh(g0, cp);
+        final long y0 = g1 * cp;
+        final long y1 = multiplyHigh(g1, cp);
+        final long z = (y0 >>> 1) + x1;
+        final long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    /**
+     * The high 64 bits of the 128 bit product of two non negative longs.
+     *
+     * @param x the first value
+     * @param y the second value
+     * @return the high 64 bits of x * y
+     */
+    private static long multiplyHigh(final long x, final long y) {
+        final long x0 = x & 0xFFFFFFFFL;
+        final long x1 = x >>> 32;
+        final long y0 = y & 0xFFFFFFFFL;
+        final long y1 = y >>> 32;
+        final long p11 = x1 * y1;
+        final long p01 = x0 * y1;
+        final long p10 = x1 * y0;
+        final long p00 = x0 * y0;
+        final long middle = p10 + (p00 >>> 32) + (p01 & 0xFFFFFFFFL);
+        return p11 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    /**
+     * floor(log10(2^e)) for |e| &lt;= 5456721.
+     *
+     * @param e the exponent
+     * @return the floor of the logarithm
+     */
+    private static int flog10pow2(final int e) {
+        return (int) ((e * 661971961083L) >> 41);
+    }
+
+    /**
+     * floor(log10(3/4 2^e)) for |e| &lt;= 2639355.
+     *
+     * @param e the exponent
+     * @return the floor of the logarithm
+     */
+    private static int flog10threeQuartersPow2(final int e) {
+        return (int) ((e * 661971961083L - 274743187321L) >> 41);
+    }
+
+    /**
+     * floor(log2(10^e)) for |e| &lt;= 1838394.
+     *
+     * @param e the exponent
+     * @return the floor of the logarithm
+     */
+    private static int flog2pow10(final int e) {
+        return (int) ((e * 913124641741L) >> 38);
+    }
+}
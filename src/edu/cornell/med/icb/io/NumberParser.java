@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Parse ints, longs and doubles from character or byte ranges without creating Strings.
+ * <p>
+ * The results (and the exceptions) are always the same as those of
+ * {@link Integer#parseInt(String)}, {@link Long#parseLong(String)} and
+ * {@link Double#parseDouble(String)} for the same text. Plain decimal numbers are parsed
+ * directly: doubles use the exact Clinger fast path when possible and the Eisel-Lemire
+ * algorithm otherwise. Anything unusual (more than 19 significant digits, hexadecimal,
+ * "NaN", surrounding whitespace, invalid input, ...) or the rare values the Eisel-Lemire
+ * algorithm cannot round with certainty are handed to the JDK parser.
+ * <p>
+ * Bytes are interpreted as ISO-8859-1 characters, so numbers in byte ranges are
+ * expected to be written with ASCII characters.
+ */
+public final class NumberParser {
+    /**
+     * The smallest power of ten covered by {@link #POWERS_OF_FIVE}.
+     */
+    private static final int MIN_POWER_OF_TEN = -342;
+
+    /**
+     * The largest power of ten covered by {@link #POWERS_OF_FIVE}.
+     */
+    private static final int MAX_POWER_OF_TEN = 308;
+
+    /**
+     * The maximum number of significant digits that always fit in an unsigned long.
+     */
+    private static final int MAX_SIGNIFICANT_DIGITS = 19;
+
+    /**
+     * Exponents larger than this are not accumulated any further, the result is
+     * zero or infinite anyway.
+     */
+    private static final int MAX_EXPONENT_DIGITS_VALUE = 100000;
+
+    /**
+     * Exact powers of ten that can be represented by a double.
+     */
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * 128 bit approximations of the powers of five from 5^MIN_POWER_OF_TEN to
+     * 5^MAX_POWER_OF_TEN, normalized so that the most significant bit is set and
+     * truncated. Entry 2i holds the high 64 bits and entry 2i + 1 the low 64 bits of
+     * 5^(i + MIN_POWER_OF_TEN).
+     */
+    private static final long[] POWERS_OF_FIVE =
+            new long[2 * (MAX_POWER_OF_TEN - MIN_POWER_OF_TEN + 1)];
+
+    static {
+        final BigInteger five = BigInteger.valueOf(5);
+        for (int q = MIN_POWER_OF_TEN; q <= MAX_POWER_OF_TEN; q++) {
+            final BigInteger power = five.pow(Math.abs(q));
+            final BigInteger value;
+            if (q >= 0) {
+                final int shift = power.bitLength() - 128;
+                value = shift >= 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {
+                // 2^(b + 127) / 5^-q is between 2^127 and 2^128 when 5^-q has b bits
+                value = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+            }
+            final int index = 2 * (q - MIN_POWER_OF_TEN);
+            POWERS_OF_FIVE[index] = value.shiftRight(64).longValue();
+            POWERS_OF_FIVE[index + 1] = value.longValue();
+        }
+    }
+
+    /**
+     * Private constructor for utility class.
+     */
+    private NumberParser() {
+        super();
+    }
+
+    /**
+     * Parse an int the same way as {@link Integer#parseInt(String)}.
+     *
+     * @param value the text to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid int
+     */
+    public static int parseInt(final CharSequence value) {
+        if (value == null) {
+            throw new NumberFormatException("null");
+        }
+        return parseInt(value, 0, value.length());
+    }
+
+    /**
+     * Parse an int from part of a CharSequence.
+     *
+     * @param value the text to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid int
+     */
+    public static int parseInt(final CharSequence value, final int start, final int end) {
+        final long result = parseLong(value, start, end);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""
+                    + value.subSequence(start, end) + "\"");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Parse an int from part of a char array.
+     *
+     * @param chars the characters to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid int
+     */
+    public static int parseInt(final char[] chars, final int start, final int end) {
+        final long result = parseLong(chars, start, end);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""
+                    + new String(chars, start, end - start) + "\"");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Parse an int from part of a byte buffer.
+     *
+     * @param bytes the bytes to parse
+     * @param start the index of the first byte
+     * @param end the index just past the last byte
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid int
+     */
+    public static int parseInt(final ByteBuffer bytes, final int start, final int end) {
+        final long result = parseLong(bytes, start, end);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""
+                    + toString(bytes, start, end) + "\"");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Parse a long the same way as {@link Long#parseLong(String)}.
+     *
+     * @param value the text to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid long
+     */
+    public static long parseLong(final CharSequence value) {
+        if (value == null) {
+            throw new NumberFormatException("null");
+        }
+        return parseLong(value, 0, value.length());
+    }
+
+    /**
+     * Parse a long from part of a CharSequence.
+     *
+     * @param value the text to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid long
+     */
+    public static long parseLong(final CharSequence value, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+            negative = value.charAt(pos) == '-';
+            pos++;
+        }
+        // 18 digits always fit in a long
+        if (pos == end || end - pos > 18) {
+            return Long.parseLong(value.subSequence(start, end).toString());
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            final int digit = value.charAt(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(value.subSequence(start, end).toString());
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse a long from part of a char array.
+     *
+     * @param chars the characters to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid long
+     */
+    public static long parseLong(final char[] chars, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (chars[pos] == '-' || chars[pos] == '+')) {
+            negative = chars[pos] == '-';
+            pos++;
+        }
+        // 18 digits always fit in a long
+        if (pos == end || end - pos > 18) {
+            return Long.parseLong(new String(chars, start, end - start));
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            final int digit = chars[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(new String(chars, start, end - start));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse a long from part of a byte buffer.
+     *
+     * @param bytes the bytes to parse
+     * @param start the index of the first byte
+     * @param end the index just past the last byte
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid long
+     */
+    public static long parseLong(final ByteBuffer bytes, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (bytes.get(pos) == '-' || bytes.get(pos) == '+')) {
+            negative = bytes.get(pos) == '-';
+            pos++;
+        }
+        // 18 digits always fit in a long
+        if (pos == end || end - pos > 18) {
+            return Long.parseLong(toString(bytes, start, end));
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            final int digit = bytes.get(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(toString(bytes, start, end));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse a double the same way as {@link Double#parseDouble(String)}.
+     *
+     * @param value the text to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid double
+     */
+    public static double parseDouble(final CharSequence value) {
+        return parseDouble(value, 0, value.length());
+    }
+
+    /**
+     * Parse a double from part of a CharSequence.
+     *
+     * @param value the text to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid double
+     */
+    public static double parseDouble(final CharSequence value, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+            negative = value.charAt(pos) == '-';
+            pos++;
+        }
+        long significand = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; pos < end; pos++) {
+            final char curChar = value.charAt(pos);
+            if (curChar >= '0' && curChar <= '9') {
+                sawDigit = true;
+                if (significand != 0 || curChar != '0') {
+                    if (++numDigits > MAX_SIGNIFICANT_DIGITS) {
+                        return Double.parseDouble(value.subSequence(start, end).toString());
+                    }
+                    significand = significand * 10 + (curChar - '0');
+                }
+                if (sawPoint) {
+                    exponent--;
+                }
+            } else if (curChar == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (sawDigit && pos < end && (value.charAt(pos) == 'e' || value.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+                negativeExponent = value.charAt(pos) == '-';
+                pos++;
+            }
+            int explicitExponent = 0;
+            boolean sawExponentDigit = false;
+            for (; pos < end; pos++) {
+                final int digit = value.charAt(pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                sawExponentDigit = true;
+                if (explicitExponent < MAX_EXPONENT_DIGITS_VALUE) {
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+            }
+            if (!sawExponentDigit) {
+                sawDigit = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        final double result;
+        if (!sawDigit || pos != end
+                || Double.isNaN(result = toDouble(negative, significand, exponent))) {
+            return Double.parseDouble(value.subSequence(start, end).toString());
+        }
+        return result;
+    }
+
+    /**
+     * Parse a double from part of a char array.
+     *
+     * @param chars the characters to parse
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid double
+     */
+    public static double parseDouble(final char[] chars, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (chars[pos] == '-' || chars[pos] == '+')) {
+            negative = chars[pos] == '-';
+            pos++;
+        }
+        long significand = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; pos < end; pos++) {
+            final char curChar = chars[pos];
+            if (curChar >= '0' && curChar <= '9') {
+                sawDigit = true;
+                if (significand != 0 || curChar != '0') {
+                    if (++numDigits > MAX_SIGNIFICANT_DIGITS) {
+                        return Double.parseDouble(new String(chars, start, end - start));
+                    }
+                    significand = significand * 10 + (curChar - '0');
+                }
+                if (sawPoint) {
+                    exponent--;
+                }
+            } else if (curChar == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (sawDigit && pos < end && (chars[pos] == 'e' || chars[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (chars[pos] == '-' || chars[pos] == '+')) {
+                negativeExponent = chars[pos] == '-';
+                pos++;
+            }
+            int explicitExponent = 0;
+            boolean sawExponentDigit = false;
+            for (; pos < end; pos++) {
+                final int digit = chars[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                sawExponentDigit = true;
+                if (explicitExponent < MAX_EXPONENT_DIGITS_VALUE) {
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+            }
+            if (!sawExponentDigit) {
+                sawDigit = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        final double result;
+        if (!sawDigit || pos != end
+                || Double.isNaN(result = toDouble(negative, significand, exponent))) {
+            return Double.parseDouble(new String(chars, start, end - start));
+        }
+        return result;
+    }
+
+    /**
+     * Parse a double from part of a byte buffer.
+     *
+     * @param bytes the bytes to parse
+     * @param start the index of the first byte
+     * @param end the index just past the last byte
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a valid double
+     */
+    public static double parseDouble(final ByteBuffer bytes, final int start, final int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (bytes.get(pos) == '-' || bytes.get(pos) == '+')) {
+            negative = bytes.get(pos) == '-';
+            pos++;
+        }
+        long significand = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; pos < end; pos++) {
+            final byte curByte = bytes.get(pos);
+            if (curByte >= '0' && curByte <= '9') {
+                sawDigit = true;
+                if (significand != 0 || curByte != '0') {
+                    if (++numDigits > MAX_SIGNIFICANT_DIGITS) {
+                        return Double.parseDouble(toString(bytes, start, end));
+                    }
+                    significand = significand * 10 + (curByte - '0');
+                }
+                if (sawPoint) {
+                    exponent--;
+                }
+            } else if (curByte == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (sawDigit && pos < end && (bytes.get(pos) == 'e' || bytes.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (bytes.get(pos) == '-' || bytes.get(pos) == '+')) {
+                negativeExponent = bytes.get(pos) == '-';
+                pos++;
+            }
+            int explicitExponent = 0;
+            boolean sawExponentDigit = false;
+            for (; pos < end; pos++) {
+                final int digit = bytes.get(pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                sawExponentDigit = true;
+                if (explicitExponent < MAX_EXPONENT_DIGITS_VALUE) {
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+            }
+            if (!sawExponentDigit) {
+                sawDigit = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        final double result;
+        if (!sawDigit || pos != end
+                || Double.isNaN(result = toDouble(negative, significand, exponent))) {
+            return Double.parseDouble(toString(bytes, start, end));
+        }
+        return result;
+    }
+
+    /**
+     * Parse an int the way {@link org.apache.commons.lang.math.NumberUtils#toInt(String, int)}
+     * does, returning the default value rather than throwing an exception.
+     *
+     * @param value the text to parse, may be null
+     * @param defaultValue the value to return if the text is not a valid int
+     * @return the parsed value or the default value
+     */
+    public static int toInt(final CharSequence value, final int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse a double the way
+     * {@link org.apache.commons.lang.math.NumberUtils#toDouble(String, double)} does,
+     * returning the default value rather than throwing an exception.
+     *
+     * @param value the text to parse, may be null
+     * @param defaultValue the value to return if the text is not a valid double
+     * @return the parsed value or the default value
+     */
+    public static double toDouble(final CharSequence value, final double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Compute the double closest to significand * 10^exponent.
+     *
+     * @param negative true if the value is negative
+     * @param significand the decimal significand, as an unsigned long
+     * @param exponent the power of ten
+     * @return the double, or NaN if the value cannot be rounded with certainty
+     */
+    private static double toDouble(final boolean negative, final long significand,
+                                   final int exponent) {
+        final double result;
+        if (significand == 0 || exponent < MIN_POWER_OF_TEN) {
+            result = 0.0d;
+        } else if (exponent > MAX_POWER_OF_TEN) {
+            result = Double.POSITIVE_INFINITY;
+        } else if (exponent >= -22 && exponent <= 22
+                && significand >= 0 && significand <= (1L << 53)) {
+            // Clinger's fast path, both operands are exact so the result is correctly rounded
+            if (exponent < 0) {
+                result = significand / EXACT_POWERS_OF_TEN[-exponent];
+            } else {
+                result = significand * EXACT_POWERS_OF_TEN[exponent];
+            }
+        } else {
+            result = eiselLemire(significand, exponent);
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * The Eisel-Lemire algorithm, see Daniel Lemire, "Number Parsing at a Gigabyte per
+     * Second", Software: Practice and Experience 51 (8), 2021.
+     *
+     * @param significand the decimal significand, non zero, as an unsigned long
+     * @param exponent the power of ten, between MIN_POWER_OF_TEN and MAX_POWER_OF_TEN
+     * @return the positive double, or NaN if the value cannot be rounded with certainty
+     */
+    private static double eiselLemire(final long significand, final int exponent) {
+        final int index = 2 * (exponent - MIN_POWER_OF_TEN);
+        final long factorHigh = POWERS_OF_FIVE[index];
+        // floor(log2(5^q)) + q + 1024 + 63, valid for q in (-400, 350)
+        final long biasedExponent = (((152170L + 65536L) * exponent) >> 16) + 1024 + 63;
+        int leadingZeros = Long.numberOfLeadingZeros(significand);
+        final long shifted = significand << leadingZeros;
+
+        long upper = unsignedMultiplyHigh(shifted, factorHigh);
+        long lower = shifted * factorHigh;
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + shifted, lower) < 0) {
+            // The truncated low bits of the power of five could carry into the
+            // result, include them
+            final long factorLow = POWERS_OF_FIVE[index + 1];
+            final long productLow = shifted * factorLow;
+            final long productMiddle2 = unsignedMultiplyHigh(shifted, factorLow);
+            final long productMiddle = lower + productMiddle2;
+            if (Long.compareUnsigned(productMiddle, lower) < 0) {
+                upper++;
+            }
+            if (productMiddle + 1 == 0 && (upper & 0x1FF) == 0x1FF
+                    && Long.compareUnsigned(productLow + shifted, productLow) < 0) {
+                return Double.NaN;
+            }
+            lower = productMiddle;
+        }
+        final long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        leadingZeros += (int) (1 ^ upperBit);
+        if ((upper & 0x1FF) == 0x1FF || ((upper & 0x1FF) == 0 && (mantissa & 3) == 1)) {
+            // Possibly exactly halfway between two doubles
+            return Double.NaN;
+        }
+        mantissa += 1;
+        mantissa >>>= 1;
+        if (mantissa >= (1L << 53)) {
+            mantissa = 1L << 52;
+            leadingZeros--;
+        }
+        mantissa &= ~(1L << 52);
+        final long realExponent = biasedExponent - leadingZeros;
+        if (realExponent < 1 || realExponent > 2046) {
+            // Subnormal or overflow
+            return Double.NaN;
+        }
+        return Double.longBitsToDouble(mantissa | realExponent << 52);
+    }
+
+    /**
+     * The high 64 bits of the unsigned 128 bit product of two longs.
+     *
+     * @param x the first value, unsigned
+     * @param y the second value, unsigned
+     * @return the high 64 bits of x * y
+     */
+    private static long unsignedMultiplyHigh(final long x, final long y) {
+        final long x0 = x & 0xFFFFFFFFL;
+        final long x1 = x >>> 32;
+        final long y0 = y & 0xFFFFFFFFL;
+        final long y1 = y >>> 32;
+        final long p11 = x1 * y1;
+        final long p01 = x0 * y1;
+        final long p10 = x1 * y0;
+        final long p00 = x0 * y0;
+        final long middle = p10 + (p00 >>> 32) + (p01 & 0xFFFFFFFFL);
+        return p11 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    /**
+     * Convert part of a byte buffer to a String, one character per byte.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte
+     * @param end the index just past the last byte
+     * @return the String
+     */
+    private static String toString(final ByteBuffer bytes, final int start, final int end) {
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (bytes.get(i) & 0xFF);
+        }
+        return new String(chars);
+    }
+}
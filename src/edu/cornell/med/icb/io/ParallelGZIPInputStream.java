@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An InputStream that decompresses BGZF files on several threads.
+ * <p>
+ * BGZF files, as written by samtools and friends or by {@link ParallelGZIPOutputStream},
+ * are made of independent gzip members that record their compressed size in a "BC" extra
+ * field. The members are read from the underlying stream on the calling thread, inflated
+ * on the executor and returned in order. Members without the "BC" field, such as those of a
+ * plain gzip file appended to a BGZF file, are inflated on the calling thread as they are
+ * read; use {@link CompressedStreams#isBgzf(java.io.File)} to tell if a file benefits from
+ * this class.
+ * <p>
+ * At most twice as many blocks as there are threads are held in memory at once.
+ */
+public final class ParallelGZIPInputStream extends InputStream {
+    /**
+     * The size of the fixed part of a gzip member header, up to and including XLEN.
+     */
+    private static final int FIXED_HEADER_SIZE = 12;
+
+    /**
+     * The size of the member trailer (CRC32 and uncompressed size).
+     */
+    private static final int TRAILER_SIZE = 8;
+
+    /**
+     * The FEXTRA bit of the gzip header flags.
+     */
+    private static final int FEXTRA = 4;
+
+    /**
+     * The FNAME bit of the gzip header flags.
+     */
+    private static final int FNAME = 8;
+
+    /**
+     * The FCOMMENT bit of the gzip header flags.
+     */
+    private static final int FCOMMENT = 16;
+
+    /**
+     * The FHCRC bit of the gzip header flags.
+     */
+    private static final int FHCRC = 2;
+
+    /**
+     * The size of the buffers used to inflate members that are not BGZF blocks.
+     */
+    private static final int SERIAL_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The stream of compressed members. Bytes read past the end of a member that is not a
+     * BGZF block are pushed back.
+     */
+    private final PushbackInputStream in;
+
+    /**
+     * Decompressors not in use. There are never more than the number of blocks inflated at
+     * once, plus one for the calling thread.
+     */
+    private final ArrayDeque<Inflater> idleInflaters = new ArrayDeque<Inflater>();
+
+    /**
+     * True once the decompressors have been released, guarded by {@link #idleInflaters}.
+     */
+    private boolean inflatersEnded;
+
+    /**
+     * The executor decompressing the blocks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * True if the executor was created here and must be shut down on close.
+     */
+    private final boolean ownExecutor;
+
+    /**
+     * The maximum number of blocks being decompressed or waiting to be read.
+     */
+    private final int maxPendingBlocks;
+
+    /**
+     * Blocks being decompressed, in the order they must be read.
+     */
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+    /**
+     * The decompressed block being read.
+     */
+    private byte[] current;
+
+    /**
+     * The position of the next byte to read in current.
+     */
+    private int position;
+
+    /**
+     * The number of bytes of data in current.
+     */
+    private int limit;
+
+    /**
+     * True if the next member after the pending blocks is not a BGZF block.
+     */
+    private boolean serialMemberNext;
+
+    /**
+     * The decompressor of the member that is not a BGZF block being read, null if none.
+     */
+    private Inflater serialInflater;
+
+    /**
+     * The compressed input of serialInflater.
+     */
+    private byte[] serialInput;
+
+    /**
+     * The number of bytes last given to serialInflater.
+     */
+    private int serialInputLength;
+
+    /**
+     * The buffer serialInflater decompresses into.
+     */
+    private byte[] serialOutput;
+
+    /**
+     * The CRC of the data of the member that is not a BGZF block.
+     */
+    private final CRC32 serialCrc = new CRC32();
+
+    /**
+     * The number of bytes of data of the member that is not a BGZF block.
+     */
+    private long serialSize;
+
+    /**
+     * True once all the members have been read from the underlying stream.
+     */
+    private boolean inputDone;
+
+    /**
+     * True once the stream has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Create a stream that decompresses on as many threads as there are processors.
+     *
+     * @param in the BGZF stream to read
+     */
+    public ParallelGZIPInputStream(final InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a stream that decompresses on the given number of threads.
+     *
+     * @param in the BGZF stream to read
+     * @param threads the number of decompression threads
+     */
+    public ParallelGZIPInputStream(final InputStream in, final int threads) {
+        this(in, Executors.newFixedThreadPool(checkThreads(threads), new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ParallelGZIPInputStream-inflate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, threads);
+    }
+
+    /**
+     * Create a stream that decompresses using an existing executor. The executor is not
+     * shut down when the stream is closed.
+     *
+     * @param in the BGZF stream to read
+     * @param executor the executor to decompress on
+     * @param threads the number of threads of the executor that may be used
+     */
+    public ParallelGZIPInputStream(final InputStream in, final ExecutorService executor,
+                                   final int threads) {
+        this(in, executor, false, checkThreads(threads));
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param in the BGZF stream to read
+     * @param executor the executor to decompress on
+     * @param ownExecutor true if the executor must be shut down on close
+     * @param threads the number of threads that may be used
+     */
+    private ParallelGZIPInputStream(final InputStream in, final ExecutorService executor,
+                                    final boolean ownExecutor, final int threads) {
+        super();
+        this.in = new PushbackInputStream(in, SERIAL_BUFFER_SIZE);
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPendingBlocks = 2 * threads;
+    }
+
+    /**
+     * Check the number of threads is positive.
+     *
+     * @param threads the number of threads
+     * @return the number of threads
+     */
+    private static int checkThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        return threads;
+    }
+
+    /**
+     * Get if a gzip member header is the header of a BGZF block. Only the first extra
+     * subfield is examined, which is where BGZF writers put the "BC" field.
+     *
+     * @param header the first bytes of the member
+     * @param length the number of bytes of header, at least 16 for a BGZF block
+     * @return true if the header is a BGZF block header
+     */
+    public static boolean isBgzfHeader(final byte[] header, final int length) {
+        return length >= FIXED_HEADER_SIZE + 4
+                && header[0] == 31 && header[1] == (byte) 139 && header[2] == 8
+                && (header[3] & FEXTRA) != 0
+                && readShort(header, 10) >= 6
+                && header[12] == 'B' && header[13] == 'C' && readShort(header, 14) == 2;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        final int count = Math.min(length, limit - position);
+        System.arraycopy(current, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * The number of bytes that can be read without waiting for a block to be decompressed.
+     *
+     * @return the number of bytes left in the current block
+     */
+    @Override
+    public int available() {
+        return current == null ? 0 : limit - position;
+    }
+
+    /**
+     * Stops decompressing and closes the underlying stream.
+     *
+     * @throws IOException error closing the stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Future<byte[]> pending : pendingBlocks) {
+            pending.cancel(true);
+        }
+        pendingBlocks.clear();
+        current = null;
+        try {
+            if (ownExecutor) {
+                executor.shutdown();
+            }
+            in.close();
+        } finally {
+            if (serialInflater != null) {
+                releaseInflater(serialInflater);
+                serialInflater = null;
+            }
+            endInflaters();
+        }
+    }
+
+    /**
+     * Make sure current has unread bytes.
+     *
+     * @return false at the end of the stream
+     * @throws IOException error reading or decompressing the stream
+     */
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == limit) {
+            if (serialInflater != null || pendingBlocks.isEmpty() && serialMemberNext) {
+                inflateSerial();
+                continue;
+            }
+            submitBlocks();
+            if (pendingBlocks.isEmpty()) {
+                if (serialMemberNext) {
+                    continue;
+                }
+                return false;
+            }
+            final Future<byte[]> pending = pendingBlocks.removeFirst();
+            try {
+                current = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error decompressing block", e.getCause());
+            }
+            position = 0;
+            limit = current.length;
+        }
+        submitBlocks();
+        return true;
+    }
+
+    /**
+     * Read members from the underlying stream and hand them to the executor until
+     * enough blocks are pending, the stream ends or a member that is not a BGZF block is
+     * next.
+     *
+     * @throws IOException error reading the stream
+     */
+    private void submitBlocks() throws IOException {
+        while (!inputDone && !serialMemberNext && pendingBlocks.size() < maxPendingBlocks) {
+            final byte[] member = readMember();
+            if (member == null) {
+                inputDone = !serialMemberNext;
+            } else if (readInt(member, member.length - 4) != 0) {
+                pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return inflateMember(member);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Read the next complete BGZF block. If the next member is not a BGZF block, its header
+     * is pushed back and serialMemberNext is set.
+     *
+     * @return the member, null at the end of the stream or if the member is not a BGZF block
+     * @throws IOException error reading the stream or if the data is not gzip
+     */
+    private byte[] readMember() throws IOException {
+        final byte[] header = new byte[FIXED_HEADER_SIZE + 6];
+        final int headerLength = readFully(header, 0, header.length);
+        if (headerLength == 0) {
+            return null;
+        }
+        if (!isBgzfHeader(header, headerLength)) {
+            if (headerLength < 2 || header[0] != 31 || header[1] != (byte) 139) {
+                throw new IOException("Not a gzip member");
+            }
+            in.unread(header, 0, headerLength);
+            serialMemberNext = true;
+            return null;
+        }
+        if (headerLength != header.length) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        final int xlen = readShort(header, 10);
+        final int blockSize = readShort(header, 16) + 1;
+        if (blockSize < FIXED_HEADER_SIZE + xlen + TRAILER_SIZE) {
+            throw new IOException("Invalid BGZF block size " + blockSize);
+        }
+        final byte[] member = new byte[blockSize];
+        System.arraycopy(header, 0, member, 0, header.length);
+        if (readFully(member, header.length, blockSize - header.length)
+                != blockSize - header.length) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        return member;
+    }
+
+    /**
+     * Read until a buffer range is full or the end of the stream.
+     *
+     * @param bytes the buffer
+     * @param offset where to start writing
+     * @param length the number of bytes to read
+     * @return the number of bytes read
+     * @throws IOException error reading the stream
+     */
+    private int readFully(final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int count = in.read(bytes, offset + total, length - total);
+            if (count == -1) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Decompress the next bytes of the member that is not a BGZF block into current,
+     * starting the member first if needed. When the member ends, its trailer is checked
+     * and current is left empty.
+     *
+     * @throws IOException error reading the stream or if the data is corrupt
+     */
+    private void inflateSerial() throws IOException {
+        if (serialInflater == null) {
+            skipHeader();
+            serialInflater = acquireInflater();
+            serialInflater.reset();
+            if (serialInput == null) {
+                serialInput = new byte[SERIAL_BUFFER_SIZE];
+                serialOutput = new byte[SERIAL_BUFFER_SIZE];
+            }
+            serialCrc.reset();
+            serialSize = 0;
+        }
+        current = serialOutput;
+        position = 0;
+        limit = 0;
+        try {
+            while (!serialInflater.finished()) {
+                if (serialInflater.needsInput()) {
+                    serialInputLength = in.read(serialInput, 0, serialInput.length);
+                    if (serialInputLength == -1) {
+                        throw new EOFException("Truncated gzip member");
+                    }
+                    serialInflater.setInput(serialInput, 0, serialInputLength);
+                } else if (serialInflater.needsDictionary()) {
+                    throw new IOException("Corrupt gzip member");
+                }
+                limit = serialInflater.inflate(serialOutput, 0, serialOutput.length);
+                if (limit > 0) {
+                    serialCrc.update(serialOutput, 0, limit);
+                    serialSize += limit;
+                    return;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member", e);
+        }
+        final int remaining = serialInflater.getRemaining();
+        in.unread(serialInput, serialInputLength - remaining, remaining);
+        releaseInflater(serialInflater);
+        serialInflater = null;
+        serialMemberNext = false;
+        final byte[] trailer = new byte[TRAILER_SIZE];
+        if (readFully(trailer, 0, TRAILER_SIZE) != TRAILER_SIZE) {
+            throw new EOFException("Truncated gzip member");
+        }
+        if (readInt(trailer, 0) != (int) serialCrc.getValue()) {
+            throw new IOException("Corrupt gzip member, CRC mismatch");
+        }
+        if (readInt(trailer, 4) != (int) serialSize) {
+            throw new IOException("Corrupt gzip member, size mismatch");
+        }
+    }
+
+    /**
+     * Read the header of a gzip member from the underlying stream.
+     *
+     * @throws IOException error reading the stream or if the header is invalid
+     */
+    private void skipHeader() throws IOException {
+        final byte[] header = new byte[FIXED_HEADER_SIZE - 2];
+        if (readFully(header, 0, header.length) != header.length) {
+            throw new EOFException("Truncated gzip member");
+        }
+        if (header[2] != 8) {
+            throw new IOException("Unsupported gzip compression method " + header[2]);
+        }
+        final int flags = header[3];
+        if ((flags & FEXTRA) != 0) {
+            if (readFully(header, 0, 2) != 2) {
+                throw new EOFException("Truncated gzip member");
+            }
+            skipFully(readShort(header, 0));
+        }
+        if ((flags & FNAME) != 0) {
+            skipString();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipString();
+        }
+        if ((flags & FHCRC) != 0) {
+            skipFully(2);
+        }
+    }
+
+    /**
+     * Skip bytes of the underlying stream.
+     *
+     * @param length the number of bytes to skip
+     * @throws IOException error reading the stream or if it ends first
+     */
+    private void skipFully(final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            if (in.read() == -1) {
+                throw new EOFException("Truncated gzip member");
+            }
+        }
+    }
+
+    /**
+     * Skip a zero terminated string of the underlying stream.
+     *
+     * @throws IOException error reading the stream or if it ends first
+     */
+    private void skipString() throws IOException {
+        int value;
+        do {
+            value = in.read();
+            if (value == -1) {
+                throw new EOFException("Truncated gzip member");
+            }
+        } while (value != 0);
+    }
+
+    /**
+     * Take an idle decompressor, or create one.
+     *
+     * @return the decompressor
+     */
+    private Inflater acquireInflater() {
+        synchronized (idleInflaters) {
+            final Inflater inflater = idleInflaters.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater(true);
+    }
+
+    /**
+     * Give back a decompressor, releasing it if the stream has been closed.
+     *
+     * @param inflater the decompressor
+     */
+    private void releaseInflater(final Inflater inflater) {
+        synchronized (idleInflaters) {
+            if (!inflatersEnded) {
+                idleInflaters.add(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Release the native memory of the idle decompressors. Decompressors still in use are
+     * released when they are given back.
+     */
+    private void endInflaters() {
+        synchronized (idleInflaters) {
+            inflatersEnded = true;
+            for (final Inflater inflater : idleInflaters) {
+                inflater.end();
+            }
+            idleInflaters.clear();
+        }
+    }
+
+    /**
+     * Decompress one gzip member and check its CRC and size.
+     *
+     * @param member the complete member
+     * @return the decompressed data
+     * @throws IOException if the data is corrupt
+     */
+    private byte[] inflateMember(final byte[] member) throws IOException {
+        final int dataOffset = FIXED_HEADER_SIZE + readShort(member, 10);
+        final int dataLength = member.length - dataOffset - TRAILER_SIZE;
+        final int expectedCrc = readInt(member, member.length - TRAILER_SIZE);
+        final byte[] result = new byte[readInt(member, member.length - 4)];
+        final Inflater inflater = acquireInflater();
+        inflater.reset();
+        inflater.setInput(member, dataOffset, dataLength);
+        try {
+            int length = 0;
+            while (length < result.length) {
+                final int count = inflater.inflate(result, length, result.length - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != result.length) {
+                throw new IOException("Corrupt BGZF block, size mismatch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block", e);
+        } finally {
+            releaseInflater(inflater);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(result, 0, result.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Corrupt BGZF block, CRC mismatch");
+        }
+        return result;
+    }
+
+    /**
+     * Read a little endian unsigned short.
+     *
+     * @param source where to read
+     * @param offset the index of the first byte
+     * @return the value
+     */
+    private static int readShort(final byte[] source, final int offset) {
+        return (source[offset] & 0xFF) | ((source[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * Read a little endian int.
+     *
+     * @param source where to read
+     * @param offset the index of the first byte
+     * @return the value
+     */
+    private static int readInt(final byte[] source, final int offset) {
+        return readShort(source, offset) | (readShort(source, offset + 2) << 16);
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream that compresses to gzip on several threads.
+ * <p>
+ * The data is cut into blocks of up to {@link #BLOCK_DATA_SIZE} bytes that are compressed
+ * independently and written, in order, as separate gzip members in the BGZF layout used by
+ * samtools and friends: each member carries a "BC" extra field with its compressed size and
+ * the stream ends with an empty member. Any gzip reader, including
+ * {@link java.util.zip.GZIPInputStream}, reads the result as one stream, while
+ * block-aware readers can inflate the members in parallel.
+ * <p>
+ * At most twice as many blocks as there are threads are held in memory at once. The
+ * compressors are released when the stream is closed, which must be done even when
+ * writing fails.
+ */
+public final class ParallelGZIPOutputStream extends FilterOutputStream {
+    /**
+     * The maximum number of uncompressed bytes in one block.
+     */
+    public static final int BLOCK_DATA_SIZE = 65280;
+
+    /**
+     * The maximum size of a compressed block, including header and trailer.
+     */
+    private static final int MAX_BLOCK_SIZE = 65536;
+
+    /**
+     * The size of the block header.
+     */
+    private static final int HEADER_SIZE = 18;
+
+    /**
+     * The size of the block trailer (CRC32 and uncompressed size).
+     */
+    private static final int TRAILER_SIZE = 8;
+
+    /**
+     * The empty block that marks the end of a BGZF stream.
+     */
+    private static final byte[] EOF_BLOCK = {
+            31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0,
+            27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    /**
+     * The compression level.
+     */
+    private final int level;
+
+    /**
+     * Compressors not in use, at most one per thread compressing at once.
+     */
+    private final ArrayDeque<Deflater> idleDeflaters = new ArrayDeque<Deflater>();
+
+    /**
+     * True once the compressors have been released, guarded by {@link #idleDeflaters}.
+     */
+    private boolean deflatersEnded;
+
+    /**
+     * The executor compressing the blocks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * True if the executor was created here and must be shut down on close.
+     */
+    private final boolean ownExecutor;
+
+    /**
+     * The maximum number of blocks being compressed or waiting to be written.
+     */
+    private final int maxPendingBlocks;
+
+    /**
+     * Blocks being compressed, in the order they must be written.
+     */
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+    /**
+     * The block currently being filled.
+     */
+    private byte[] block = new byte[BLOCK_DATA_SIZE];
+
+    /**
+     * The number of bytes in {@link #block}.
+     */
+    private int blockLength;
+
+    /**
+     * True once the stream has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Create a stream that compresses on as many threads as there are processors.
+     *
+     * @param out the stream to write the compressed data to
+     */
+    public ParallelGZIPOutputStream(final OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a stream that compresses on the given number of threads.
+     *
+     * @param out the stream to write the compressed data to
+     * @param threads the number of compression threads
+     */
+    public ParallelGZIPOutputStream(final OutputStream out, final int threads) {
+        this(out, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create a stream that compresses on the given number of threads.
+     *
+     * @param out the stream to write the compressed data to
+     * @param threads the number of compression threads
+     * @param level the compression level, see {@link Deflater}
+     */
+    public ParallelGZIPOutputStream(final OutputStream out, final int threads,
+                                    final int level) {
+        this(out, Executors.newFixedThreadPool(checkThreads(threads), new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ParallelGZIPOutputStream-deflate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, threads, level);
+    }
+
+    /**
+     * Create a stream that compresses using an existing executor. The executor is not
+     * shut down when the stream is closed.
+     *
+     * @param out the stream to write the compressed data to
+     * @param executor the executor to compress on
+     * @param threads the number of threads of the executor that may be used
+     * @param level the compression level, see {@link Deflater}
+     */
+    public ParallelGZIPOutputStream(final OutputStream out, final ExecutorService executor,
+                                    final int threads, final int level) {
+        this(out, executor, false, checkThreads(threads), level);
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param out the stream to write the compressed data to
+     * @param executor the executor to compress on
+     * @param ownExecutor true if the executor must be shut down on close
+     * @param threads the number of threads that may be used
+     * @param level the compression level, see {@link Deflater}
+     */
+    private ParallelGZIPOutputStream(final OutputStream out, final ExecutorService executor,
+                                     final boolean ownExecutor, final int threads,
+                                     final int level) {
+        super(out);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPendingBlocks = 2 * threads;
+        this.level = level;
+    }
+
+    /**
+     * Check the number of threads is positive.
+     *
+     * @param threads the number of threads
+     * @return the number of threads
+     */
+    private static int checkThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        return threads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        if (blockLength == BLOCK_DATA_SIZE) {
+            submitBlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        ensureOpen();
+        int pos = offset;
+        final int end = offset + length;
+        while (pos < end) {
+            final int count = Math.min(end - pos, BLOCK_DATA_SIZE - blockLength);
+            System.arraycopy(bytes, pos, block, blockLength, count);
+            blockLength += count;
+            pos += count;
+            if (blockLength == BLOCK_DATA_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the current partial block, waits for all the blocks to be written and
+     * flushes the underlying stream.
+     *
+     * @throws IOException error writing the data
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeFirstPendingBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes all remaining data and the end of stream marker, then closes the underlying
+     * stream.
+     *
+     * @throws IOException error writing the data
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+        } finally {
+            closed = true;
+            for (final Future<byte[]> pending : pendingBlocks) {
+                pending.cancel(true);
+            }
+            pendingBlocks.clear();
+            if (ownExecutor) {
+                executor.shutdown();
+            }
+            endDeflaters();
+            out.close();
+        }
+    }
+
+    /**
+     * Throws an exception if the stream has been closed.
+     *
+     * @throws IOException if the stream has been closed
+     */
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Hand the current block to the executor and start a new one, first writing
+     * finished blocks if too many are pending.
+     *
+     * @throws IOException error writing the data
+     */
+    private void submitBlock() throws IOException {
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeFirstPendingBlock();
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return compressBlock(data, length);
+            }
+        }));
+        block = new byte[BLOCK_DATA_SIZE];
+        blockLength = 0;
+    }
+
+    /**
+     * Wait for the oldest pending block and write it.
+     *
+     * @throws IOException error compressing or writing the data
+     */
+    private void writeFirstPendingBlock() throws IOException {
+        final Future<byte[]> pending = pendingBlocks.removeFirst();
+        try {
+            out.write(pending.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+    }
+
+    /**
+     * Take an idle compressor, or create one.
+     *
+     * @return the compressor
+     */
+    private Deflater acquireDeflater() {
+        synchronized (idleDeflaters) {
+            final Deflater deflater = idleDeflaters.poll();
+            if (deflater != null) {
+                return deflater;
+            }
+        }
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Give back a compressor, releasing it if the stream has been closed.
+     *
+     * @param deflater the compressor
+     */
+    private void releaseDeflater(final Deflater deflater) {
+        synchronized (idleDeflaters) {
+            if (!deflatersEnded) {
+                idleDeflaters.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Release the native memory of the idle compressors. Compressors still in use are
+     * released when they are given back.
+     */
+    private void endDeflaters() {
+        synchronized (idleDeflaters) {
+            deflatersEnded = true;
+            for (final Deflater deflater : idleDeflaters) {
+                deflater.end();
+            }
+            idleDeflaters.clear();
+        }
+    }
+
+    /**
+     * Compress one block into a complete gzip member.
+     *
+     * @param data the uncompressed data
+     * @param length the number of bytes of data
+     * @return the gzip member
+     */
+    private byte[] compressBlock(final byte[] data, final int length) {
+        final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        final int maxDeflated = MAX_BLOCK_SIZE - HEADER_SIZE - TRAILER_SIZE;
+        final Deflater deflater = acquireDeflater();
+        int deflated;
+        final boolean finished;
+        try {
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            deflated = deflater.deflate(compressed, HEADER_SIZE, maxDeflated);
+            finished = deflater.finished();
+        } finally {
+            releaseDeflater(deflater);
+        }
+        if (!finished) {
+            // Incompressible data, store it instead
+            final Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                store.setInput(data, 0, length);
+                store.finish();
+                deflated = store.deflate(compressed, HEADER_SIZE, maxDeflated);
+            } finally {
+                store.end();
+            }
+        }
+        final int blockSize = HEADER_SIZE + deflated + TRAILER_SIZE;
+        compressed[0] = 31;
+        compressed[1] = (byte) 139;
+        compressed[2] = 8;
+        // FEXTRA
+        compressed[3] = 4;
+        // MTIME (4 bytes) and XFL stay 0, OS is unknown
+        compressed[9] = (byte) 255;
+        writeShort(compressed, 10, 6);
+        compressed[12] = 'B';
+        compressed[13] = 'C';
+        writeShort(compressed, 14, 2);
+        writeShort(compressed, 16, blockSize - 1);
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(compressed, HEADER_SIZE + deflated, (int) crc.getValue());
+        writeInt(compressed, HEADER_SIZE + deflated + 4, length);
+        return Arrays.copyOf(compressed, blockSize);
+    }
+
+    /**
+     * Write a little endian short.
+     *
+     * @param dest where to write
+     * @param offset the index of the first byte
+     * @param value the value to write
+     */
+    private static void writeShort(final byte[] dest, final int offset, final int value) {
+        dest[offset] = (byte) value;
+        dest[offset + 1] = (byte) (value >>> 8);
+    }
+
+    /**
+     * Write a little endian int.
+     *
+     * @param dest where to write
+     * @param offset the index of the first byte
+     * @param value the value to write
+     */
+    private static void writeInt(final byte[] dest, final int offset, final int value) {
+        writeShort(dest, offset, value);
+        writeShort(dest, offset + 2, value >>> 16);
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parse a large uncompressed tab/single character delimited file on several cores.
+ * The file is split into byte ranges that are aligned to line boundaries, each range
+ * is parsed with a {@link MappedTsvScanner} on a fork-join pool, and the rows are handed
+ * to a {@link RowHandler} on the thread that called {@link #parse(RowHandler)}. Rows
+ * can be delivered in file order or in whatever order the ranges are parsed. Parsed rows
+ * are passed to the calling thread through bounded queues, so parsing never gets more than
+ * a few batches ahead of the handler.
+ * <p>
+ * Comment lines are skipped and fields are split and unescaped with the same rules as the
+ * {@link TSVReader#hasNext()}/{@link TSVReader#next()} loop.
+ */
+public final class ParallelTsvParser {
+    /**
+     * Receives the rows of the file.
+     */
+    public interface RowHandler {
+        /**
+         * Handle one row of the file. This is always called from the thread that
+         * called {@link ParallelTsvParser#parse(RowHandler)}.
+         *
+         * @param fields the fields of the row
+         */
+        void handleRow(String[] fields);
+    }
+
+    /**
+     * The default size of the byte ranges the file is split into.
+     */
+    private static final long CHUNK_SIZE_DEFAULT = 64L * 1024 * 1024;
+
+    /**
+     * The default number of rows passed from a parsing task to the handler at once.
+     */
+    private static final int BATCH_SIZE_DEFAULT = 1024;
+
+    /**
+     * The default number of batches that can be waiting for the handler.
+     */
+    private static final int QUEUE_CAPACITY_DEFAULT = 16;
+
+    /**
+     * How long a parsing task waits on a full queue before checking if parsing was aborted.
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * The file being parsed.
+     */
+    private final File file;
+
+    /**
+     * The line delimiter character (for tokenizing the line).
+     */
+    private final char delimiter;
+
+    /**
+     * The charset used to decode the fields.
+     */
+    private final Charset charset;
+
+    /**
+     * The comment prefix.
+     */
+    private String commentPrefix = "#";
+
+    /**
+     * The escape character.
+     */
+    private Character escapeChar = '\\';
+
+    /**
+     * If true, the results will be unescaped.
+     */
+    private boolean unescapeResults = true;
+
+    /**
+     * If true, empty lines will be skipped.
+     */
+    private boolean skipEmptyLines = true;
+
+    /**
+     * If true, rows are handed to the handler in file order.
+     */
+    private boolean ordered = true;
+
+    /**
+     * The size of the byte ranges the file is split into.
+     */
+    private long chunkSize = CHUNK_SIZE_DEFAULT;
+
+    /**
+     * The number of rows passed from a parsing task to the handler at once.
+     */
+    private int batchSize = BATCH_SIZE_DEFAULT;
+
+    /**
+     * The number of batches that can be waiting for the handler.
+     */
+    private int queueCapacity = QUEUE_CAPACITY_DEFAULT;
+
+    /**
+     * The pool to parse on, or null to create a pool for each call to parse.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Create a parser for the given file with a tab delimiter, decoding fields with
+     * the platform default charset.
+     *
+     * @param fileToParse the file to parse
+     */
+    public ParallelTsvParser(final File fileToParse) {
+        this(fileToParse, '\t', Charset.defaultCharset());
+    }
+
+    /**
+     * Create a parser for the given file.
+     *
+     * @param fileToParse the file to parse
+     * @param delimiterVal the delimiter used to tokenize the line of text
+     * @param charsetVal the charset used to decode the fields
+     */
+    public ParallelTsvParser(final File fileToParse, final char delimiterVal,
+                             final Charset charsetVal) {
+        super();
+        this.file = fileToParse;
+        this.delimiter = delimiterVal;
+        this.charset = charsetVal;
+    }
+
+    /**
+     * Set the comment prefix that will be used to ignore commented lines.
+     *
+     * @param commentPrefixVal the new comment prefix.
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setCommentPrefix(final String commentPrefixVal) {
+        this.commentPrefix = commentPrefixVal;
+        return this;
+    }
+
+    /**
+     * Set the escape character being used.
+     *
+     * @param escapeCharVal the escape character being used.
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setEscapeChar(final Character escapeCharVal) {
+        this.escapeChar = escapeCharVal;
+        return this;
+    }
+
+    /**
+     * Set the if the results should be unescaped.
+     *
+     * @param unescapeResultsVal if results should be unescaped.
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setUnescapeResults(final boolean unescapeResultsVal) {
+        this.unescapeResults = unescapeResultsVal;
+        return this;
+    }
+
+    /**
+     * Set if empty lines will be skipped. If they are not skipped they are handed to
+     * the handler as rows with no fields.
+     *
+     * @param skipEmptyLinesVal if empty lines will be skipped.
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setSkipEmptyLines(final boolean skipEmptyLinesVal) {
+        this.skipEmptyLines = skipEmptyLinesVal;
+        return this;
+    }
+
+    /**
+     * Set if rows are handed to the handler in file order. When false rows are
+     * handed over as soon as they are parsed, which keeps all cores busy even when
+     * the ranges take different amounts of time to parse.
+     *
+     * @param orderedVal if rows are handed to the handler in file order
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setOrdered(final boolean orderedVal) {
+        this.ordered = orderedVal;
+        return this;
+    }
+
+    /**
+     * Set the size of the byte ranges the file is split into.
+     *
+     * @param chunkSizeVal the size of the ranges in bytes
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setChunkSize(final long chunkSizeVal) {
+        if (chunkSizeVal <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSizeVal;
+        return this;
+    }
+
+    /**
+     * Set the number of rows passed from a parsing task to the handler at once.
+     *
+     * @param batchSizeVal the number of rows in a batch
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setBatchSize(final int batchSizeVal) {
+        if (batchSizeVal <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSizeVal;
+        return this;
+    }
+
+    /**
+     * Set the number of batches that can be waiting for the handler. When ordered,
+     * this is the number of batches per range being parsed.
+     *
+     * @param queueCapacityVal the number of batches
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setQueueCapacity(final int queueCapacityVal) {
+        if (queueCapacityVal <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacityVal;
+        return this;
+    }
+
+    /**
+     * Set the pool the ranges are parsed on. By default a pool with one thread per
+     * core is created for each call to {@link #parse(RowHandler)}. At most as many
+     * ranges as the parallelism of the pool are parsed at the same time.
+     *
+     * @param poolVal the pool to parse on
+     * @return this ParallelTsvParser for command chaining
+     */
+    public ParallelTsvParser setPool(final ForkJoinPool poolVal) {
+        this.pool = poolVal;
+        return this;
+    }
+
+    /**
+     * Parse the file, handing every row to the handler. This returns when the whole
+     * file has been parsed and handled.
+     *
+     * @param handler the handler for the rows
+     * @throws IOException error reading the file
+     */
+    public void parse(final RowHandler handler) throws IOException {
+        final long[] bounds = computeChunkBounds();
+        final int numChunks = bounds.length - 1;
+        final ForkJoinPool parsePool = pool == null ? new ForkJoinPool() : pool;
+        final int maxInFlight = parsePool.getParallelism();
+        final AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            if (ordered) {
+                final List<BlockingQueue<Batch>> queues =
+                        new ArrayList<BlockingQueue<Batch>>(numChunks);
+                int submitted = 0;
+                for (int chunk = 0; chunk < numChunks; chunk++) {
+                    while (submitted < numChunks && submitted < chunk + maxInFlight) {
+                        final BlockingQueue<Batch> queue =
+                                new ArrayBlockingQueue<Batch>(queueCapacity);
+                        queues.add(queue);
+                        parsePool.execute(new ChunkTask(bounds[submitted],
+                                bounds[submitted + 1], queue, aborted));
+                        submitted++;
+                    }
+                    drainChunk(queues.get(chunk), handler);
+                    queues.set(chunk, null);
+                }
+            } else {
+                final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(queueCapacity);
+                int submitted = 0;
+                int remaining = numChunks;
+                while (remaining > 0) {
+                    while (submitted < numChunks && submitted < numChunks - remaining + maxInFlight) {
+                        parsePool.execute(new ChunkTask(bounds[submitted],
+                                bounds[submitted + 1], queue, aborted));
+                        submitted++;
+                    }
+                    if (handleBatch(take(queue), handler)) {
+                        remaining--;
+                    }
+                }
+            }
+        } finally {
+            aborted.set(true);
+            if (pool == null) {
+                parsePool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Hand all of the rows of one range to the handler.
+     *
+     * @param queue the queue the range is parsed into
+     * @param handler the handler for the rows
+     * @throws IOException error parsing the range
+     */
+    private void drainChunk(final BlockingQueue<Batch> queue, final RowHandler handler)
+            throws IOException {
+        while (!handleBatch(take(queue), handler)) {
+            // keep going until the last batch of the range
+        }
+    }
+
+    /**
+     * Hand the rows of a batch to the handler.
+     *
+     * @param batch the batch
+     * @param handler the handler for the rows
+     * @return true if this was the last batch of a range
+     * @throws IOException error parsing the range
+     */
+    private boolean handleBatch(final Batch batch, final RowHandler handler) throws IOException {
+        if (batch.error != null) {
+            if (batch.error instanceof IOException) {
+                throw (IOException) batch.error;
+            }
+            throw new IOException("Error parsing " + file, batch.error);
+        }
+        for (final String[] row : batch.rows) {
+            handler.handleRow(row);
+        }
+        return batch.last;
+    }
+
+    /**
+     * Take the next batch from a queue.
+     *
+     * @param queue the queue
+     * @return the next batch
+     * @throws IOException if the thread is interrupted
+     */
+    private static Batch take(final BlockingQueue<Batch> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing");
+        }
+    }
+
+    /**
+     * Split the file into ranges. Each range except the first starts just after
+     * a line feed.
+     *
+     * @return the range boundaries, range i is [bounds[i], bounds[i + 1])
+     * @throws IOException error reading the file
+     */
+    private long[] computeChunkBounds() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            final LongArrayList bounds = new LongArrayList();
+            bounds.add(0L);
+            final ByteBuffer scanBuffer = ByteBuffer.allocate(64 * 1024);
+            long nominal = chunkSize;
+            while (nominal < size) {
+                final long bound = findLineStart(channel, nominal, size, scanBuffer);
+                if (bound >= size) {
+                    break;
+                }
+                if (bound > bounds.getLong(bounds.size() - 1)) {
+                    bounds.add(bound);
+                }
+                nominal = Math.max(nominal + chunkSize, bound);
+            }
+            bounds.add(size);
+            return bounds.toLongArray();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the position just after the first line feed at or after the given position.
+     *
+     * @param channel the channel to read
+     * @param from the position to start searching at
+     * @param size the size of the file
+     * @param scanBuffer buffer to read into
+     * @return the position after the line feed, or the size of the file if there is none
+     * @throws IOException error reading the file
+     */
+    private static long findLineStart(final FileChannel channel, final long from,
+                                      final long size, final ByteBuffer scanBuffer)
+            throws IOException {
+        long position = from;
+        while (position < size) {
+            scanBuffer.clear();
+            final int read = channel.read(scanBuffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scanBuffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * A batch of rows passed from a parsing task to the handler.
+     */
+    private static final class Batch {
+        /**
+         * The rows.
+         */
+        private final List<String[]> rows;
+
+        /**
+         * True if this is the last batch of a range.
+         */
+        private final boolean last;
+
+        /**
+         * The error that stopped the parsing of the range, if any.
+         */
+        private final Throwable error;
+
+        /**
+         * Create a batch.
+         *
+         * @param rowsVal the rows
+         * @param lastVal true if this is the last batch of a range
+         * @param errorVal the error that stopped the parsing of the range, if any
+         */
+        private Batch(final List<String[]> rowsVal, final boolean lastVal,
+                      final Throwable errorVal) {
+            super();
+            this.rows = rowsVal;
+            this.last = lastVal;
+            this.error = errorVal;
+        }
+    }
+
+    /**
+     * Parses one range of the file into a queue.
+     */
+    private final class ChunkTask extends RecursiveAction {
+        /**
+         * Used during serialization.
+         */
+        private static final long serialVersionUID = 2516436394861409744L;
+
+        /**
+         * The file position where the range starts.
+         */
+        private final long start;
+
+        /**
+         * The file position where the range ends.
+         */
+        private final long end;
+
+        /**
+         * The queue the rows are parsed into.
+         */
+        private final BlockingQueue<Batch> queue;
+
+        /**
+         * Set when the parse this task belongs to stops early so the task gives up.
+         */
+        private final AtomicBoolean aborted;
+
+        /**
+         * Create a task to parse a range.
+         *
+         * @param startVal the file position where the range starts
+         * @param endVal the file position where the range ends
+         * @param queueVal the queue the rows are parsed into
+         * @param abortedVal set when the parse this task belongs to stops early
+         */
+        private ChunkTask(final long startVal, final long endVal,
+                          final BlockingQueue<Batch> queueVal, final AtomicBoolean abortedVal) {
+            super();
+            this.start = startVal;
+            this.end = endVal;
+            this.queue = queueVal;
+            this.aborted = abortedVal;
+        }
+
+        /**
+         * Parse the range.
+         */
+        @Override
+        protected void compute() {
+            MappedTsvScanner scanner = null;
+            try {
+                scanner = new MappedTsvScanner(file, delimiter, charset, start, end);
+                scanner.setCommentPrefix(commentPrefix);
+                scanner.setEscapeChar(escapeChar);
+                scanner.setUnescapeResults(unescapeResults);
+                scanner.setWindowSize((int) Math.min(end - start + 1, Integer.MAX_VALUE - 8));
+                List<String[]> rows = new ArrayList<String[]>(batchSize);
+                while (scanner.hasNext()) {
+                    if (scanner.isCommentLine() || (skipEmptyLines && scanner.isEmptyLine())) {
+                        scanner.skip();
+                        continue;
+                    }
+                    scanner.next();
+                    final String[] row = new String[scanner.numTokens()];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = scanner.getString();
+                    }
+                    rows.add(row);
+                    if (rows.size() == batchSize) {
+                        if (!offer(new Batch(rows, false, null))) {
+                            return;
+                        }
+                        rows = new ArrayList<String[]>(batchSize);
+                    }
+                }
+                offer(new Batch(rows, true, null));
+            } catch (Throwable t) {
+                offer(new Batch(new ArrayList<String[]>(0), true, t));
+            } finally {
+                if (scanner != null) {
+                    try {
+                        scanner.close();
+                    } catch (IOException e) {
+                        // Ignore, the range has already been read
+                    }
+                }
+            }
+        }
+
+        /**
+         * Put a batch on the queue, waiting while the queue is full.
+         *
+         * @param batch the batch
+         * @return false if parsing was aborted before the batch could be queued
+         */
+        private boolean offer(final Batch batch) {
+            try {
+                while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (aborted.get()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads the underlying stream on a background thread, so that reading
+ * (and decompressing) the next block overlaps with processing the current one.
+ * <p>
+ * Two buffers are handed back and forth between the threads: the background thread fills
+ * one while the caller reads from the other. Errors of the background thread are thrown
+ * by the read that reaches them. This class is not meant to be read from several threads.
+ */
+public final class ReadAheadInputStream extends InputStream {
+    /**
+     * The default size of each buffer.
+     */
+    public static final int BUFFER_SIZE_DEFAULT = 1 << 20;
+
+    /**
+     * A buffer with the number of bytes it holds.
+     */
+    private static final class Chunk {
+        /** The bytes. */
+        private final byte[] data;
+
+        /** The number of bytes in data, -1 at the end of the stream. */
+        private int length;
+
+        /** The error that stopped the background thread, if any. */
+        private IOException error;
+
+        /**
+         * Create a chunk.
+         *
+         * @param size the size of the buffer
+         */
+        private Chunk(final int size) {
+            super();
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * The stream being read.
+     */
+    private final InputStream in;
+
+    /**
+     * Empty chunks for the background thread to fill.
+     */
+    private final BlockingQueue<Chunk> emptyChunks = new ArrayBlockingQueue<Chunk>(2);
+
+    /**
+     * Filled chunks for the caller to read.
+     */
+    private final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<Chunk>(2);
+
+    /**
+     * The thread reading the underlying stream.
+     */
+    private final Thread readerThread;
+
+    /**
+     * An error hit by the background thread after some bytes of a chunk were read; it is
+     * handed over with the next chunk so that those bytes are not lost.
+     */
+    private IOException pendingError;
+
+    /**
+     * The chunk being read by the caller.
+     */
+    private Chunk current;
+
+    /**
+     * The position of the next byte to read in current.
+     */
+    private int position;
+
+    /**
+     * True once the end of the stream (or an error) has been reached.
+     */
+    private boolean endOfStream;
+
+    /**
+     * True once the stream has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Create a read ahead stream with the default buffer size.
+     *
+     * @param in the stream to read
+     */
+    public ReadAheadInputStream(final InputStream in) {
+        this(in, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create a read ahead stream.
+     *
+     * @param in the stream to read
+     * @param bufferSize the size of each of the two buffers
+     */
+    public ReadAheadInputStream(final InputStream in, final int bufferSize) {
+        super();
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        this.in = in;
+        emptyChunks.add(new Chunk(bufferSize));
+        emptyChunks.add(new Chunk(bufferSize));
+        readerThread = new Thread(new Runnable() {
+            public void run() {
+                readAhead();
+            }
+        }, "ReadAheadInputStream");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Fill chunks until the end of the stream, an error or close.
+     */
+    private void readAhead() {
+        try {
+            while (!closed) {
+                final Chunk chunk = emptyChunks.take();
+                try {
+                    chunk.length = fill(chunk.data);
+                } catch (IOException e) {
+                    chunk.error = e;
+                } catch (RuntimeException e) {
+                    chunk.error = new IOException(e);
+                }
+                filledChunks.put(chunk);
+                if (chunk.length == -1 || chunk.error != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Read into a buffer until it is full, the end of the stream is reached or the stream
+     * is closed.
+     *
+     * @param data the buffer
+     * @return the number of bytes read, -1 at the end of the stream
+     * @throws IOException error reading the stream
+     */
+    private int fill(final byte[] data) throws IOException {
+        if (pendingError != null) {
+            throw pendingError;
+        }
+        int length = 0;
+        while (length < data.length && !closed) {
+            final int count;
+            try {
+                count = in.read(data, length, data.length - length);
+            } catch (IOException e) {
+                if (length == 0) {
+                    throw e;
+                }
+                pendingError = e;
+                break;
+            }
+            if (count == -1) {
+                return length == 0 ? -1 : length;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Make sure current has unread bytes.
+     *
+     * @return false at the end of the stream
+     * @throws IOException error reading the stream
+     */
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            if (endOfStream) {
+                return false;
+            }
+            if (current != null) {
+                emptyChunks.add(current);
+                current = null;
+            }
+            final Chunk chunk;
+            try {
+                chunk = filledChunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            }
+            if (chunk.error != null) {
+                endOfStream = true;
+                throw chunk.error;
+            }
+            if (chunk.length == -1) {
+                endOfStream = true;
+                return false;
+            }
+            current = chunk;
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        final int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * The number of bytes that can be read without waiting for the background thread.
+     *
+     * @return the number of bytes left in the current buffer
+     */
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * Stops the background thread and closes the underlying stream once the thread is no
+     * longer reading it.
+     *
+     * @throws IOException error closing the stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readerThread.interrupt();
+        boolean interrupted = false;
+        while (readerThread.isAlive()) {
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+}
@@ -25,10 +25,20 @@ import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
  * Helper class to parse tab/single character delimited file.
+ * <p>
+ * By default each line is split into an array of Strings when {@link #next()} is called.
+ * When {@link #setCursorMode(boolean) cursor mode} is enabled, lines are instead read into
+ * a reusable character buffer and {@link #next()} only records where each field starts and
+ * ends. The numeric getters then parse the field directly from the buffer and
+ * {@link #getString()} only creates a String when it is called, so reading numeric columns
+ * creates close to no garbage. In cursor mode field values must be retrieved before the
+ * next call to {@link #hasNext()}. A {@link #setProjection(int...) projection} restricts
+ * parsing to a few columns of wide files.
  *
  * @author Fabien Campagne
  *         Date: Apr 14, 2007
@@ -81,6 +91,88 @@ public final class TSVReader implements Closeable {
      */
     private boolean unescapeResults = true;
 
+    /**
+     * The initial size of the character buffer used in cursor mode.
+     */
+    private static final int CURSOR_BUFFER_SIZE_DEFAULT = 8192;
+
+    /**
+     * If true, lines are read into {@link #buffer} and fields are located by offset.
+     */
+    private boolean cursorMode;
+
+    /**
+     * The characters read from the reader when in cursor mode.
+     */
+    private char[] buffer;
+
+    /**
+     * The position of the next unread character in the buffer.
+     */
+    private int bufferPosition;
+
+    /**
+     * The number of valid characters in the buffer.
+     */
+    private int bufferLimit;
+
+    /**
+     * If true the previous line ended with a carriage return so a following
+     * line feed should be ignored.
+     */
+    private boolean skipLineFeed;
+
+    /**
+     * True if a line has been read into the buffer but not yet consumed
+     * by {@link #next()} or {@link #skip()}.
+     */
+    private boolean lineAvailable;
+
+    /**
+     * The offset in the buffer of the first character of the current line.
+     */
+    private int lineStart;
+
+    /**
+     * The offset in the buffer just past the last character of the current line.
+     */
+    private int lineEnd;
+
+    /**
+     * The number of fields on the current line when in cursor mode.
+     */
+    private int fieldCount;
+
+    /**
+     * The buffer offset of the first character of each field.
+     */
+    private int[] fieldStarts;
+
+    /**
+     * The buffer offset just past the last character of each field.
+     */
+    private int[] fieldEnds;
+
+    /**
+     * True for each field that contains the escape character.
+     */
+    private boolean[] fieldEscaped;
+
+    /**
+     * The column names read by {@link #readHeader()}.
+     */
+    private String[] columnNames;
+
+    /**
+     * The columns that are returned by the getters, in order, or null for all columns.
+     */
+    private int[] projection;
+
+    /**
+     * The largest column number in {@link #projection}.
+     */
+    private int lastProjectedColumn;
+
     /**
      * Create a new TSVReader based on the supplied reader
      * with a tab delimiter.
@@ -174,6 +266,133 @@ public final class TSVReader implements Closeable {
         return this.unescapeResults;
     }
 
+    /**
+     * Set if the reader should run in cursor mode. In cursor mode lines are not split
+     * into Strings, the getters read each field directly from the line buffer.
+     * This should be set before the first call to {@link #hasNext()}.
+     *
+     * @param cursorModeVal if the reader should run in cursor mode
+     * @return this TSVReader for command chaining
+     */
+    public TSVReader setCursorMode(final boolean cursorModeVal) {
+        this.cursorMode = cursorModeVal;
+        if (cursorMode && buffer == null) {
+            buffer = new char[CURSOR_BUFFER_SIZE_DEFAULT];
+            fieldStarts = new int[16];
+            fieldEnds = new int[16];
+            fieldEscaped = new boolean[16];
+        }
+        return this;
+    }
+
+    /**
+     * Get if the reader is running in cursor mode.
+     *
+     * @return if the reader is running in cursor mode
+     */
+    public boolean isCursorMode() {
+        return this.cursorMode;
+    }
+
+    /**
+     * Read the column names from the first line that is not a comment line. The names
+     * can then be used with {@link #setProjection(String...)}. This should be called
+     * before a projection is set.
+     *
+     * @return the column names, or null if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    public String[] readHeader() throws IOException {
+        while (hasNext()) {
+            if (isCommentLine()) {
+                skip();
+                continue;
+            }
+            next();
+            columnNames = new String[numTokens()];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = getString();
+            }
+            return columnNames;
+        }
+        return null;
+    }
+
+    /**
+     * Get the column names read by {@link #readHeader()}.
+     *
+     * @return the column names, or null if the header has not been read
+     */
+    public String[] getColumnNames() {
+        return this.columnNames;
+    }
+
+    /**
+     * Only parse the given columns. After {@link #next()} the getters return the
+     * projected columns in the order given here and {@link #numTokens()} returns the
+     * number of projected columns. Columns that are not projected are skipped without
+     * creating Strings and the rest of the line is not scanned after the last projected
+     * column. A projected column that is missing from a line causes the getters to throw
+     * NoSuchElementException. Setting a projection turns on
+     * {@link #setCursorMode(boolean) cursor mode}.
+     *
+     * @param columns the column numbers (starting at 0) to parse, or null
+     * to parse all columns
+     * @return this TSVReader for command chaining
+     */
+    public TSVReader setProjection(final int... columns) {
+        if (columns == null || columns.length == 0) {
+            this.projection = null;
+            return this;
+        }
+        int last = 0;
+        for (final int column : columns) {
+            if (column < 0) {
+                throw new IllegalArgumentException("Invalid column number " + column);
+            }
+            last = Math.max(last, column);
+        }
+        this.projection = columns.clone();
+        this.lastProjectedColumn = last;
+        return setCursorMode(true);
+    }
+
+    /**
+     * Only parse the named columns. The names are those read by {@link #readHeader()}.
+     * See {@link #setProjection(int...)}.
+     *
+     * @param names the names of the columns to parse
+     * @return this TSVReader for command chaining
+     */
+    public TSVReader setProjection(final String... names) {
+        if (columnNames == null) {
+            throw new IllegalStateException("The header must be read before projecting by name");
+        }
+        final int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = -1;
+            for (int j = 0; j < columnNames.length; j++) {
+                if (columnNames[j].equals(names[i])) {
+                    columns[i] = j;
+                    break;
+                }
+            }
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("No column named " + names[i]);
+            }
+        }
+        return setProjection(columns);
+    }
+
+    /**
+     * Get the columns that are parsed.
+     *
+     * @return the projected column numbers, or null if all columns are parsed
+     */
+    public int[] getProjection() {
+        return projection == null ? null : projection.clone();
+    }
+
     /**
      * Check if the file has more lines.
      *
@@ -181,6 +400,15 @@ public final class TSVReader implements Closeable {
      * @throws java.io.IOException problem reading from file
      */
     public boolean hasNext() throws IOException {
+        if (cursorMode) {
+            if (!lineAvailable) {
+                lineAvailable = readLineIntoBuffer();
+                if (!lineAvailable) {
+                    fieldCount = 0;
+                }
+            }
+            return lineAvailable;
+        }
         if (currentLine != null) {
             return true;
         }
@@ -199,8 +427,22 @@ public final class TSVReader implements Closeable {
      * @return true of the current line is a comment line
      */
     public boolean isCommentLine() {
-        return !StringUtils.isBlank(this.commentPrefix)
-                && currentLine.startsWith(this.commentPrefix);
+        if (StringUtils.isBlank(this.commentPrefix)) {
+            return false;
+        }
+        if (cursorMode) {
+            final int prefixLength = commentPrefix.length();
+            if (lineEnd - lineStart < prefixLength) {
+                return false;
+            }
+            for (int i = 0; i < prefixLength; i++) {
+                if (buffer[lineStart + i] != commentPrefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return currentLine.startsWith(this.commentPrefix);
     }
 
     /**
@@ -209,6 +451,7 @@ public final class TSVReader implements Closeable {
     public void skip() {
         currentTokenIndex = 0;
         currentLine = null;
+        lineAvailable = false;
     }
 
     /**
@@ -218,6 +461,12 @@ public final class TSVReader implements Closeable {
      * of the appropriate type.
      */
     public void next() {
+        if (cursorMode) {
+            locateFields();
+            currentTokenIndex = 0;
+            lineAvailable = false;
+            return;
+        }
         currentTokens = ICBStringUtils.split(currentLine, delimiter, escapeChar);
         if (unescapeResults) {
             currentTokens = ICBStringUtils.unescape(currentTokens, escapeChar);
@@ -234,7 +483,14 @@ public final class TSVReader implements Closeable {
      */
     public int getInt() {
         ensureNextField();
-        return Integer.parseInt(currentTokens[currentTokenIndex++]);
+        if (cursorMode) {
+            final int field = nextCursorField();
+            if (needsUnescape(field)) {
+                return NumberParser.parseInt(fieldToString(field));
+            }
+            return NumberParser.parseInt(buffer, fieldStarts[field], fieldEnds[field]);
+        }
+        return NumberParser.parseInt(currentTokens[currentTokenIndex++]);
     }
 
     /**
@@ -245,7 +501,14 @@ public final class TSVReader implements Closeable {
      */
     public long getLong() {
         ensureNextField();
-        return Long.parseLong(currentTokens[currentTokenIndex++]);
+        if (cursorMode) {
+            final int field = nextCursorField();
+            if (needsUnescape(field)) {
+                return NumberParser.parseLong(fieldToString(field));
+            }
+            return NumberParser.parseLong(buffer, fieldStarts[field], fieldEnds[field]);
+        }
+        return NumberParser.parseLong(currentTokens[currentTokenIndex++]);
     }
 
     /**
@@ -256,6 +519,9 @@ public final class TSVReader implements Closeable {
      */
     public float getFloat() {
         ensureNextField();
+        if (cursorMode) {
+            return Float.parseFloat(fieldToString(nextCursorField()));
+        }
         return Float.parseFloat(currentTokens[currentTokenIndex++]);
     }
 
@@ -267,7 +533,14 @@ public final class TSVReader implements Closeable {
      */
     public double getDouble() {
         ensureNextField();
-        return Double.parseDouble(currentTokens[currentTokenIndex++]);
+        if (cursorMode) {
+            final int field = nextCursorField();
+            if (needsUnescape(field)) {
+                return NumberParser.parseDouble(fieldToString(field));
+            }
+            return NumberParser.parseDouble(buffer, fieldStarts[field], fieldEnds[field]);
+        }
+        return NumberParser.parseDouble(currentTokens[currentTokenIndex++]);
     }
 
     /**
@@ -278,24 +551,208 @@ public final class TSVReader implements Closeable {
      */
     public String getString() {
         ensureNextField();
+        if (cursorMode) {
+            return fieldToString(nextCursorField());
+        }
+        return currentTokens[currentTokenIndex++];
+    }
+
+    /**
+     * Get the current field as a CharSequence. In cursor mode the returned sequence is
+     * a view on the line buffer (unless the field needs to be unescaped) and is only
+     * valid until the next call to {@link #hasNext()}.
+     * Advances to the next field.
+     *
+     * @return the current field as a CharSequence
+     */
+    public CharSequence getCharSequence() {
+        ensureNextField();
+        if (cursorMode) {
+            final int field = nextCursorField();
+            if (needsUnescape(field)) {
+                return fieldToString(field);
+            }
+            return new FieldView(fieldStarts[field], fieldEnds[field]);
+        }
         return currentTokens[currentTokenIndex++];
     }
 
+    /**
+     * Read the next line that is not a comment or empty line and parse its fields as
+     * doubles into dest. The values are parsed directly from the line buffer: this turns on
+     * {@link #setCursorMode(boolean) cursor mode} for the rest of the file. Fields past
+     * the length of dest are ignored.
+     *
+     * @param dest the array to fill, starting at index 0
+     * @return the number of values stored in dest, or -1 if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    public int readDoubleRow(final double[] dest) throws IOException {
+        if (!nextDataLine()) {
+            return -1;
+        }
+        final int count = Math.min(dest.length, numTokens());
+        for (int i = 0; i < count; i++) {
+            dest[i] = getDouble();
+        }
+        return count;
+    }
+
+    /**
+     * Read the next line that is not a comment or empty line and parse its fields as
+     * ints into dest. The values are parsed directly from the line buffer: this turns on
+     * {@link #setCursorMode(boolean) cursor mode} for the rest of the file. Fields past
+     * the length of dest are ignored.
+     *
+     * @param dest the array to fill, starting at index 0
+     * @return the number of values stored in dest, or -1 if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    public int readIntRow(final int[] dest) throws IOException {
+        if (!nextDataLine()) {
+            return -1;
+        }
+        final int count = Math.min(dest.length, numTokens());
+        for (int i = 0; i < count; i++) {
+            dest[i] = getInt();
+        }
+        return count;
+    }
+
+    /**
+     * Read the next line that is not a comment or empty line and parse its fields as
+     * longs into dest. The values are parsed directly from the line buffer: this turns on
+     * {@link #setCursorMode(boolean) cursor mode} for the rest of the file. Fields past
+     * the length of dest are ignored.
+     *
+     * @param dest the array to fill, starting at index 0
+     * @return the number of values stored in dest, or -1 if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    public int readLongRow(final long[] dest) throws IOException {
+        if (!nextDataLine()) {
+            return -1;
+        }
+        final int count = Math.min(dest.length, numTokens());
+        for (int i = 0; i < count; i++) {
+            dest[i] = getLong();
+        }
+        return count;
+    }
+
+    /**
+     * Read up to rows lines (skipping comment and empty lines) into a column oriented
+     * block, dest[column][row]. Each line must have at least dest.length fields
+     * (or projected columns), further fields are ignored. Each dest[column] must
+     * have room for rows values. Like {@link #readDoubleRow(double[])} this turns on
+     * {@link #setCursorMode(boolean) cursor mode} for the rest of the file.
+     *
+     * @param rows the maximum number of lines to read
+     * @param dest the block to fill, indexed by column then row
+     * @return the number of lines read, 0 if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    public int readDoubleColumnBlock(final int rows, final double[][] dest) throws IOException {
+        final int columns = dest.length;
+        int row = 0;
+        while (row < rows && nextDataLine()) {
+            for (int column = 0; column < columns; column++) {
+                dest[column][row] = getDouble();
+            }
+            row++;
+        }
+        return row;
+    }
+
+    /**
+     * Advance to the next line that is not a comment or empty line and prepare it for
+     * parsing.
+     *
+     * @return false if there are no more lines
+     * @throws IOException problem reading from file
+     */
+    private boolean nextDataLine() throws IOException {
+        useCursorMode();
+        while (hasNext()) {
+            if (isCommentLine() || isEmptyLine()) {
+                skip();
+                continue;
+            }
+            next();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Turn on cursor mode, so the bulk readers parse the fields without creating
+     * Strings. A line already read by {@link #hasNext()} is moved into the line buffer.
+     */
+    private void useCursorMode() {
+        if (cursorMode) {
+            return;
+        }
+        setCursorMode(true);
+        if (currentLine != null) {
+            final int length = currentLine.length();
+            final int remaining = bufferLimit - bufferPosition;
+            final char[] chars = new char[Math.max(buffer.length, length + 1 + remaining)];
+            currentLine.getChars(0, length, chars, 0);
+            chars[length] = '\n';
+            System.arraycopy(buffer, bufferPosition, chars, length + 1, remaining);
+            buffer = chars;
+            bufferPosition = 0;
+            bufferLimit = length + 1 + remaining;
+            currentLine = null;
+        }
+        currentTokens = null;
+        currentTokenIndex = 0;
+    }
+
     /**
      * Ensures we have a next field.
      */
     private void ensureNextField() {
+        if (cursorMode) {
+            if (projection == null) {
+                if (currentTokenIndex >= fieldCount) {
+                    throw new NoSuchElementException();
+                }
+            } else if (currentTokenIndex >= projection.length
+                    || projection[currentTokenIndex] >= fieldCount) {
+                throw new NoSuchElementException();
+            }
+            return;
+        }
         if (currentTokens == null || currentTokenIndex >= currentTokens.length) {
             throw new NoSuchElementException();
         }
     }
 
     /**
-     * Get the number of fields on the current line.
+     * Get the field number on the line of the current field in cursor mode and
+     * advance to the next field.
+     *
+     * @return the field number on the line
+     */
+    private int nextCursorField() {
+        final int field = currentTokenIndex++;
+        return projection == null ? field : projection[field];
+    }
+
+    /**
+     * Get the number of fields on the current line. When a projection is set this
+     * is the number of projected columns.
      *
      * @return the number of fields on the current line
      */
     public int numTokens() {
+        if (projection != null) {
+            return projection.length;
+        }
+        if (cursorMode) {
+            return fieldCount;
+        }
         return currentTokens.length;
     }
 
@@ -305,9 +762,238 @@ public final class TSVReader implements Closeable {
      * @return true if the current line is empty
      */
     public boolean isEmptyLine() {
+        if (cursorMode) {
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (!Character.isWhitespace(buffer[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
         return StringUtils.isBlank(currentLine);
     }
 
+    /**
+     * Read the next line into the buffer, setting {@link #lineStart} and {@link #lineEnd}.
+     * Lines are terminated the same way as {@link BufferedReader#readLine()}, by a line
+     * feed, a carriage return or a carriage return followed by a line feed.
+     *
+     * @return true if a line was read, false at the end of the stream
+     * @throws IOException problem reading from the reader
+     */
+    private boolean readLineIntoBuffer() throws IOException {
+        if (skipLineFeed) {
+            if (bufferPosition >= bufferLimit && !fillBuffer()) {
+                return false;
+            }
+            skipLineFeed = false;
+            if (buffer[bufferPosition] == '\n') {
+                bufferPosition++;
+            }
+        }
+        int scanned = 0;
+        while (true) {
+            for (int i = bufferPosition + scanned; i < bufferLimit; i++) {
+                final char curChar = buffer[i];
+                if (curChar == '\n' || curChar == '\r') {
+                    lineStart = bufferPosition;
+                    lineEnd = i;
+                    bufferPosition = i + 1;
+                    skipLineFeed = curChar == '\r';
+                    return true;
+                }
+            }
+            scanned = bufferLimit - bufferPosition;
+            if (!fillBuffer()) {
+                if (scanned == 0) {
+                    return false;
+                }
+                // Last line of the stream, without a line terminator
+                lineStart = bufferPosition;
+                lineEnd = bufferLimit;
+                bufferPosition = bufferLimit;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Read more characters into the buffer. Unconsumed characters are moved to the start
+     * of the buffer and the buffer is grown if it is full.
+     *
+     * @return false if the end of the stream has been reached
+     * @throws IOException problem reading from the reader
+     */
+    private boolean fillBuffer() throws IOException {
+        final int remaining = bufferLimit - bufferPosition;
+        if (bufferPosition > 0) {
+            System.arraycopy(buffer, bufferPosition, buffer, 0, remaining);
+            bufferPosition = 0;
+            bufferLimit = remaining;
+        } else if (remaining == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        final int read = bufferedReader.read(buffer, bufferLimit, buffer.length - bufferLimit);
+        if (read <= 0) {
+            return false;
+        }
+        bufferLimit += read;
+        return true;
+    }
+
+    /**
+     * Record the start and end of each field of the current line. This follows the same
+     * rules as {@link ICBStringUtils#split(String, char, Character)}. When a projection
+     * is set, scanning stops after the last projected column.
+     */
+    private void locateFields() {
+        fieldCount = 0;
+        if (lineStart == lineEnd) {
+            return;
+        }
+        final int lastField = projection == null ? Integer.MAX_VALUE : lastProjectedColumn;
+        final boolean useEscape = escapeChar != null && escapeChar != delimiter;
+        final char escape = useEscape ? escapeChar : 0;
+        int fieldStart = lineStart;
+        boolean escaped = false;
+        boolean inEscape = false;
+        for (int i = lineStart; i < lineEnd; i++) {
+            final char curChar = buffer[i];
+            if (!inEscape && curChar == delimiter) {
+                addField(fieldStart, i, escaped);
+                if (fieldCount > lastField) {
+                    return;
+                }
+                fieldStart = i + 1;
+                escaped = false;
+                continue;
+            }
+            if (useEscape) {
+                if (!inEscape && curChar == escape) {
+                    inEscape = true;
+                    escaped = true;
+                    continue;
+                }
+                inEscape = false;
+            }
+        }
+        addField(fieldStart, lineEnd, escaped);
+    }
+
+    /**
+     * Record the location of a field on the current line.
+     *
+     * @param start the buffer offset of the first character of the field
+     * @param end the buffer offset just past the last character of the field
+     * @param escaped true if the field contains the escape character
+     */
+    private void addField(final int start, final int end, final boolean escaped) {
+        if (fieldCount == fieldStarts.length) {
+            final int newLength = fieldCount * 2;
+            fieldStarts = Arrays.copyOf(fieldStarts, newLength);
+            fieldEnds = Arrays.copyOf(fieldEnds, newLength);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, newLength);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldEscaped[fieldCount] = escaped;
+        fieldCount++;
+    }
+
+    /**
+     * Check if the given field must be unescaped before it is returned.
+     *
+     * @param field the field number
+     * @return true if the field contains the escape character and results are unescaped
+     */
+    private boolean needsUnescape(final int field) {
+        return unescapeResults && fieldEscaped[field];
+    }
+
+    /**
+     * Create a String for the given field of the current line, unescaping it if needed.
+     *
+     * @param field the field number
+     * @return the field as a String
+     */
+    private String fieldToString(final int field) {
+        final String value = new String(buffer, fieldStarts[field],
+                fieldEnds[field] - fieldStarts[field]);
+        if (needsUnescape(field)) {
+            return ICBStringUtils.unescape(value, escapeChar);
+        }
+        return value;
+    }
+
+    /**
+     * A CharSequence view on a field of the current line in the buffer.
+     */
+    private final class FieldView implements CharSequence {
+        /**
+         * The buffer offset of the first character.
+         */
+        private final int start;
+
+        /**
+         * The buffer offset just past the last character.
+         */
+        private final int end;
+
+        /**
+         * Create a view on the buffer.
+         *
+         * @param startVal the buffer offset of the first character
+         * @param endVal the buffer offset just past the last character
+         */
+        private FieldView(final int startVal, final int endVal) {
+            super();
+            this.start = startVal;
+            this.end = endVal;
+        }
+
+        /**
+         * The length of the field.
+         * @return the number of characters in the field
+         */
+        public int length() {
+            return end - start;
+        }
+
+        /**
+         * Get a character of the field.
+         * @param index the index of the character within the field
+         * @return the character
+         */
+        public char charAt(final int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+            return buffer[start + index];
+        }
+
+        /**
+         * Get a view on part of the field.
+         * @param subStart the start index, inclusive
+         * @param subEnd the end index, exclusive
+         * @return the view on part of the field
+         */
+        public CharSequence subSequence(final int subStart, final int subEnd) {
+            if (subStart < 0 || subEnd > end - start || subStart > subEnd) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new FieldView(start + subStart, start + subEnd);
+        }
+
+        /**
+         * Copy the field into a new String.
+         * @return the field as a String
+         */
+        @Override
+        public String toString() {
+            return new String(buffer, start, end - start);
+        }
+    }
+
     /**
      * Closes this stream and releases any system resources associated with it.
      * If the stream is already closed then invoking this method has no effect.
@@ -318,5 +1004,7 @@ public final class TSVReader implements Closeable {
         bufferedReader.close();
         currentLine = null;
         currentTokens = null;
+        lineAvailable = false;
+        fieldCount = 0;
     }
 }
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *               Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helper class to write tab/single character delimited files, the counterpart of
+ * {@link TSVReader}.
+ * <p>
+ * Fields are appended to a reusable character buffer and the delimiter is written between
+ * the fields of a line automatically. Numbers are formatted straight into the buffer
+ * by {@link NumberFormatter}, so writing primitive columns creates no garbage, and the
+ * buffer is handed to the underlying Writer in large blocks. Delimiter and escape characters
+ * in String fields, and a '#' starting a line, are escaped so that {@link TSVReader} reads
+ * back the same values rather than taking the line for a comment.
+ * Lines are terminated with '\n'.
+ */
+public final class TSVWriter implements Closeable, Flushable {
+    /**
+     * The default size of the character buffer.
+     */
+    public static final int BUFFER_SIZE_DEFAULT = 65536;
+
+    /**
+     * The size of the byte buffers between the encoder, the compressor and the file.
+     */
+    private static final int STREAM_BUFFER_SIZE = 65536;
+
+    /**
+     * The default escape character.
+     */
+    private static final char ESCAPE_CHAR_DEFAULT = '\\';
+
+    /**
+     * The character that starts comment lines for {@link TSVReader} by default.
+     */
+    private static final char COMMENT_CHAR = '#';
+
+    /**
+     * The writer being written to.
+     */
+    private final Writer writer;
+
+    /**
+     * The field delimiter character.
+     */
+    private final char delimiter;
+
+    /**
+     * The escape character, null if values cannot be escaped.
+     */
+    private Character escapeChar = ESCAPE_CHAR_DEFAULT;
+
+    /**
+     * The characters not yet handed to the writer.
+     */
+    private final char[] buffer;
+
+    /**
+     * The number of characters in {@link #buffer}.
+     */
+    private int bufferLength;
+
+    /**
+     * The number of fields written on the current line.
+     */
+    private int fieldCount;
+
+    /**
+     * Create a new TSVWriter based on the supplied writer
+     * with a tab delimiter.
+     *
+     * @param writer the writer to write the data to
+     */
+    public TSVWriter(final Writer writer) {
+        this(writer, '\t');
+    }
+
+    /**
+     * Create a new TSVWriter based on the supplied writer
+     * with the supplied delimiter.
+     *
+     * @param writer       the writer to write the data to
+     * @param delimiterVal the delimiter written between the fields of a line
+     */
+    public TSVWriter(final Writer writer, final char delimiterVal) {
+        this(writer, delimiterVal, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create a new TSVWriter based on the supplied writer
+     * with the supplied delimiter and buffer size.
+     *
+     * @param writer       the writer to write the data to
+     * @param delimiterVal the delimiter written between the fields of a line
+     * @param bufferSize   the number of characters to collect before writing them
+     */
+    public TSVWriter(final Writer writer, final char delimiterVal, final int bufferSize) {
+        super();
+        if (bufferSize < NumberFormatter.MAX_DOUBLE_LENGTH + 1) {
+            throw new IllegalArgumentException("bufferSize is too small: " + bufferSize);
+        }
+        this.writer = writer;
+        this.delimiter = delimiterVal;
+        this.buffer = new char[bufferSize];
+    }
+
+    /**
+     * Create a TSVWriter for a file with a tab delimiter. Files with names ending in ".gz"
+     * are gzip compressed.
+     *
+     * @param file the file to write
+     * @param charset the charset to encode the text with
+     * @return the TSVWriter
+     * @throws IOException error opening the file
+     */
+    public static TSVWriter open(final File file, final Charset charset) throws IOException {
+        return open(file, charset, 1);
+    }
+
+    /**
+     * Create a TSVWriter for a file with a tab delimiter. Files with names ending in ".gz"
+     * are gzip compressed, on several threads with a {@link ParallelGZIPOutputStream}
+     * when compressionThreads is more than one.
+     *
+     * @param file the file to write
+     * @param charset the charset to encode the text with
+     * @param compressionThreads the number of threads to compress with
+     * @return the TSVWriter
+     * @throws IOException error opening the file
+     */
+    public static TSVWriter open(final File file, final Charset charset,
+                                 final int compressionThreads) throws IOException {
+        final OutputStream fileStream = new FileOutputStream(file);
+        OutputStream out = fileStream;
+        try {
+            if (file.getName().endsWith(".gz")) {
+                if (compressionThreads > 1) {
+                    out = new ParallelGZIPOutputStream(fileStream, compressionThreads);
+                } else {
+                    out = new GZIPOutputStream(fileStream, STREAM_BUFFER_SIZE);
+                }
+            } else {
+                out = new BufferedOutputStream(fileStream, STREAM_BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+        return new TSVWriter(new OutputStreamWriter(out, charset));
+    }
+
+    /**
+     * Set the escape character written before delimiter and escape characters that
+     * appear in String fields. Null means String fields must not contain the delimiter.
+     *
+     * @param escapeCharVal the escape character to use
+     * @return this TSVWriter for command chaining
+     */
+    public TSVWriter setEscapeChar(final Character escapeCharVal) {
+        this.escapeChar = escapeCharVal;
+        return this;
+    }
+
+    /**
+     * Get the escape character being used.
+     *
+     * @return the escape character being used.
+     */
+    public Character getEscapeChar() {
+        return this.escapeChar;
+    }
+
+    /**
+     * Write an int field.
+     *
+     * @param value the value to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeInt(final int value) throws IOException {
+        startField(NumberFormatter.MAX_INT_LENGTH);
+        bufferLength = NumberFormatter.formatInt(value, buffer, bufferLength);
+        return this;
+    }
+
+    /**
+     * Write a long field.
+     *
+     * @param value the value to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeLong(final long value) throws IOException {
+        startField(NumberFormatter.MAX_LONG_LENGTH);
+        bufferLength = NumberFormatter.formatLong(value, buffer, bufferLength);
+        return this;
+    }
+
+    /**
+     * Write a double field as the shortest text that reads back as the same value.
+     *
+     * @param value the value to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeDouble(final double value) throws IOException {
+        startField(NumberFormatter.MAX_DOUBLE_LENGTH);
+        bufferLength = NumberFormatter.formatDouble(value, buffer, bufferLength);
+        return this;
+    }
+
+    /**
+     * Write a String field, escaping delimiter and escape characters, and a '#' at the
+     * start of the first field of a line. A null value is written as an empty field.
+     *
+     * @param value the value to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     * @throws IllegalArgumentException if the value contains a line break, or the
+     * delimiter or a leading '#' that needs escaping when there is no escape character
+     */
+    public TSVWriter writeString(final CharSequence value) throws IOException {
+        final boolean lineStart = fieldCount == 0;
+        startField(0);
+        if (value == null) {
+            return this;
+        }
+        final boolean canEscape = escapeChar != null && escapeChar != delimiter;
+        final char escape = canEscape ? escapeChar : delimiter;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char curChar = value.charAt(i);
+            if (curChar == '\n' || curChar == '\r') {
+                throw new IllegalArgumentException("Fields cannot contain line breaks");
+            }
+            if (bufferLength + 2 > buffer.length) {
+                flushBuffer();
+            }
+            if (curChar == delimiter || curChar == escape
+                    || (i == 0 && lineStart && curChar == COMMENT_CHAR)) {
+                if (!canEscape) {
+                    throw new IllegalArgumentException("Field contains the delimiter or starts"
+                            + " a line with '#' and there is no escape character");
+                }
+                buffer[bufferLength++] = escape;
+            }
+            buffer[bufferLength++] = curChar;
+        }
+        return this;
+    }
+
+    /**
+     * Write a line of double fields.
+     *
+     * @param values the values to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeRow(final double[] values) throws IOException {
+        for (final double value : values) {
+            writeDouble(value);
+        }
+        return newLine();
+    }
+
+    /**
+     * Write a line of int fields.
+     *
+     * @param values the values to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeRow(final int[] values) throws IOException {
+        for (final int value : values) {
+            writeInt(value);
+        }
+        return newLine();
+    }
+
+    /**
+     * Write a line of String fields.
+     *
+     * @param values the values to write
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter writeRow(final CharSequence... values) throws IOException {
+        for (final CharSequence value : values) {
+            writeString(value);
+        }
+        return newLine();
+    }
+
+    /**
+     * End the current line.
+     *
+     * @return this TSVWriter for command chaining
+     * @throws IOException error writing the data
+     */
+    public TSVWriter newLine() throws IOException {
+        if (bufferLength == buffer.length) {
+            flushBuffer();
+        }
+        buffer[bufferLength++] = '\n';
+        fieldCount = 0;
+        return this;
+    }
+
+    /**
+     * Write the buffered characters and flush the underlying writer.
+     *
+     * @throws IOException error writing the data
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Write the buffered characters and close the underlying writer.
+     *
+     * @throws IOException error writing the data
+     */
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the delimiter if this is not the first field of the line and make sure
+     * the buffer has room for the field.
+     *
+     * @param fieldLength the maximum number of characters the field needs
+     * @throws IOException error writing the data
+     */
+    private void startField(final int fieldLength) throws IOException {
+        if (bufferLength + fieldLength + 1 > buffer.length) {
+            flushBuffer();
+        }
+        if (fieldCount++ > 0) {
+            buffer[bufferLength++] = delimiter;
+        }
+    }
+
+    /**
+     * Hand the buffered characters to the writer.
+     *
+     * @throws IOException error writing the data
+     */
+    private void flushBuffer() throws IOException {
+        if (bufferLength > 0) {
+            writer.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import edu.cornell.med.icb.iterators.TsvLineIterator;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The values of a TSV file stored column by column in a binary side file, so the file
+ * can be read again without parsing it. Columns whose values are all ints, or all
+ * doubles, written the way {@link Integer#toString(int)} and {@link Double#toString(double)}
+ * write them, are stored as little endian numbers; every other column is stored as
+ * indexes into a dictionary of its distinct values. Either way the values read back
+ * exactly as they are in the TSV file, and empty values stay empty.
+ * <p>
+ * A cache is built with {@link #build(File, File)}, which reads the TSV file twice with
+ * a {@link TsvLineIterator}, and is kept next to the TSV file in a side file (see
+ * {@link #getCacheFile(File)}); {@link #open(File)} reuses the side file while it
+ * matches the length and modification time of the TSV file and rebuilds it otherwise.
+ * The numbers and indexes of the side file are memory mapped, the dictionaries are
+ * loaded. The rows are read with the {@link TsvRow} API, through {@link #rows()} or
+ * {@link #getRow(int, TsvRow)}, with the columns of {@link #getColumns()}:
+ * <pre>
+ * final TsvColumnarCache cache = TsvColumnarCache.open(file);
+ * final ColumnRef&lt;Double&gt; expr = cache.getColumns().doubleColumn("expr");
+ * for (final TsvRow row : cache.rows()) {
+ *     total += expr.get(row);
+ * }
+ * </pre>
+ * The column names come from the first non comment line, as in
+ * {@link TsvToFromMap#createFromTsvFile(File)}. Each column must fit in a 2GB mapping,
+ * which is about 268 million rows.
+ */
+public final class TsvColumnarCache {
+    /** The extension of the cache side file. */
+    public static final String CACHE_EXTENSION = ".tsvc";
+
+    /** Identifies cache side files. */
+    private static final int MAGIC = 0x54535643;
+
+    /** The version of the side file format. */
+    private static final int VERSION = 1;
+
+    /** A column stored as dictionary indexes. */
+    private static final byte STRING = 0;
+
+    /** A column stored as ints. */
+    private static final byte INT = 1;
+
+    /** A column stored as doubles. */
+    private static final byte DOUBLE = 2;
+
+    /** The int standing for an empty value. */
+    private static final int EMPTY_INT = Integer.MIN_VALUE;
+
+    /** The bits of the double standing for an empty value, a NaN no parse returns. */
+    private static final long EMPTY_DOUBLE = 0x7FF80000000000FFL;
+
+    /** The size of the buffers used to write each column. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The charset of the column names and dictionaries. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The TSV file. */
+    private final File file;
+
+    /** The length of the TSV file when it was cached. */
+    private final long fileLength;
+
+    /** The modification time of the TSV file when it was cached. */
+    private final long lastModified;
+
+    /** The columns of the TSV file. */
+    private final TsvToFromMap columns;
+
+    /** The number of rows. */
+    private final int numRows;
+
+    /** How each column is stored. */
+    private final byte[] types;
+
+    /** The mapped numbers or dictionary indexes of each column. */
+    private final ByteBuffer[] data;
+
+    /** The dictionary of each string column, null for number columns. */
+    private final String[][] dictionaries;
+
+    /**
+     * Create a cache.
+     * @param file the TSV file
+     * @param fileLength the length of the TSV file when it was cached
+     * @param lastModified the modification time of the TSV file when it was cached
+     * @param columns the columns of the TSV file
+     * @param numRows the number of rows
+     * @param types how each column is stored
+     * @param data the numbers or dictionary indexes of each column
+     * @param dictionaries the dictionary of each string column
+     */
+    private TsvColumnarCache(final File file, final long fileLength, final long lastModified,
+                             final TsvToFromMap columns, final int numRows, final byte[] types,
+                             final ByteBuffer[] data, final String[][] dictionaries) {
+        super();
+        this.file = file;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.columns = columns;
+        this.numRows = numRows;
+        this.types = types;
+        this.data = data;
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Get the side file the cache of a TSV file is saved to.
+     * @param file the TSV file
+     * @return the cache file
+     */
+    public static File getCacheFile(final File file) {
+        return new File(file.getPath() + CACHE_EXTENSION);
+    }
+
+    /**
+     * Get the cache of a TSV file, loading it from the side file if it is up to date,
+     * building it otherwise.
+     * @param file the TSV file
+     * @return the cache
+     * @throws IOException error reading the file or writing the cache
+     */
+    public static TsvColumnarCache open(final File file) throws IOException {
+        final File cacheFile = getCacheFile(file);
+        if (cacheFile.exists()) {
+            final TsvColumnarCache cache = load(file, cacheFile, true);
+            if (cache != null) {
+                return cache;
+            }
+        }
+        return build(file, cacheFile);
+    }
+
+    /**
+     * Build the cache of a TSV file by reading it twice, once to find how each column
+     * can be stored and once to store it. The cache is written to a temporary file
+     * renamed to cacheFile once complete, so readers of an older cache are not disturbed.
+     * @param file the TSV file
+     * @param cacheFile the file to write the cache to
+     * @return the cache
+     * @throws IOException error reading the file or writing the cache
+     */
+    public static TsvColumnarCache build(final File file, final File cacheFile)
+            throws IOException {
+        final long length = file.length();
+        final long modified = file.lastModified();
+        TsvLineIterator in = new TsvLineIterator(file);
+        final TsvToFromMap header = in.getTsvReader();
+        if (header == null) {
+            in.close();
+            throw new IOException("No header line in " + file);
+        }
+        final int numColumns = header.getNumColumnHeaders();
+
+        // Find the columns that can be stored as numbers
+        final boolean[] ints = new boolean[numColumns];
+        final boolean[] doubles = new boolean[numColumns];
+        Arrays.fill(ints, true);
+        Arrays.fill(doubles, true);
+        long count = 0;
+        try {
+            for (final TsvRow row : in.rows()) {
+                for (int column = 0; column < numColumns; column++) {
+                    if (ints[column] || doubles[column]) {
+                        final String value = row.getString(column);
+                        ints[column] &= isCanonicalInt(value);
+                        doubles[column] &= isCanonicalDouble(value);
+                    }
+                }
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        if (count * 8 > Integer.MAX_VALUE) {
+            throw new IOException("Too many rows to cache " + file);
+        }
+        final int rows = (int) count;
+        final byte[] types = new byte[numColumns];
+        for (int column = 0; column < numColumns; column++) {
+            types[column] = ints[column] ? INT : doubles[column] ? DOUBLE : STRING;
+        }
+
+        // The header: magic, version, header length, TSV file length and modification
+        // time, rows, columns, then the name, type, data offset, dictionary offset and
+        // dictionary length of each column
+        final byte[][] names = new byte[numColumns][];
+        int headerLength = 3 * 4 + 2 * 8 + 2 * 4;
+        for (int column = 0; column < numColumns; column++) {
+            names[column] = header.getColumnHeaders().get(column).getBytes(UTF8);
+            headerLength += 4 + names[column].length + 1 + 3 * 8;
+        }
+        final long[] dataOffsets = new long[numColumns];
+        long offset = (headerLength + 7) & ~7L;
+        for (int column = 0; column < numColumns; column++) {
+            dataOffsets[column] = offset;
+            offset += (long) rows * width(types[column]);
+        }
+
+        final File tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getAbsoluteFile().getParentFile());
+        final RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+        boolean written = false;
+        try {
+            final FileChannel channel = out.getChannel();
+            final ColumnWriter[] writers = new ColumnWriter[numColumns];
+            final List<Object2IntOpenHashMap<String>> indexes =
+                    new ObjectArrayList<Object2IntOpenHashMap<String>>();
+            final List<List<String>> values = new ObjectArrayList<List<String>>();
+            for (int column = 0; column < numColumns; column++) {
+                writers[column] = new ColumnWriter(channel, dataOffsets[column]);
+                if (types[column] == STRING) {
+                    final Object2IntOpenHashMap<String> index =
+                            new Object2IntOpenHashMap<String>();
+                    index.defaultReturnValue(-1);
+                    indexes.add(index);
+                    values.add(new ObjectArrayList<String>());
+                } else {
+                    indexes.add(null);
+                    values.add(null);
+                }
+            }
+
+            // Store the values
+            int stored = 0;
+            in = new TsvLineIterator(file, header);
+            try {
+                for (final TsvRow row : in.rows()) {
+                    if (stored++ == rows) {
+                        throw new IOException(file + " changed while it was cached");
+                    }
+                    for (int column = 0; column < numColumns; column++) {
+                        final String value = row.getString(column);
+                        final ByteBuffer buffer = writers[column].reserve(width(types[column]));
+                        if (types[column] == INT) {
+                            buffer.putInt(value.length() == 0
+                                    ? EMPTY_INT : NumberParser.parseInt(value));
+                        } else if (types[column] == DOUBLE) {
+                            buffer.putLong(value.length() == 0 ? EMPTY_DOUBLE
+                                    : Double.doubleToRawLongBits(NumberParser.parseDouble(value)));
+                        } else {
+                            final Object2IntOpenHashMap<String> index = indexes.get(column);
+                            int id = index.getInt(value);
+                            if (id == -1) {
+                                id = index.size();
+                                index.put(value, id);
+                                values.get(column).add(value);
+                            }
+                            buffer.putInt(id);
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (stored != rows) {
+                throw new IOException(file + " changed while it was cached");
+            }
+            for (final ColumnWriter writer : writers) {
+                writer.flush();
+            }
+
+            // Append the dictionaries, each a count then length prefixed UTF-8 values
+            final long[] dictionaryOffsets = new long[numColumns];
+            final long[] dictionaryLengths = new long[numColumns];
+            for (int column = 0; column < numColumns; column++) {
+                if (types[column] != STRING) {
+                    continue;
+                }
+                dictionaryOffsets[column] = offset;
+                final ColumnWriter writer = new ColumnWriter(channel, offset);
+                writer.reserve(4).putInt(values.get(column).size());
+                for (final String value : values.get(column)) {
+                    final byte[] bytes = value.getBytes(UTF8);
+                    writer.reserve(4).putInt(bytes.length);
+                    writer.write(bytes);
+                }
+                writer.flush();
+                dictionaryLengths[column] = writer.getPosition() - offset;
+                offset = writer.getPosition();
+                values.set(column, null);
+                indexes.set(column, null);
+            }
+
+            final ByteBuffer buffer =
+                    ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(headerLength);
+            buffer.putLong(length).putLong(modified);
+            buffer.putInt(rows).putInt(numColumns);
+            for (int column = 0; column < numColumns; column++) {
+                buffer.putInt(names[column].length).put(names[column]).put(types[column]);
+                buffer.putLong(dataOffsets[column]);
+                buffer.putLong(dictionaryOffsets[column]).putLong(dictionaryLengths[column]);
+            }
+            buffer.flip();
+            writeFully(channel, buffer, 0);
+            if (channel.size() < offset) {
+                // Columns without rows still start within the file
+                out.setLength(offset);
+            }
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(cacheFile)
+                && !(cacheFile.delete() && tempFile.renameTo(cacheFile))) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + cacheFile);
+        }
+        final TsvColumnarCache cache = load(file, cacheFile, false);
+        if (cache == null) {
+            throw new IOException("Error reading back " + cacheFile);
+        }
+        return cache;
+    }
+
+    /**
+     * Load a cache from its side file.
+     * @param file the TSV file
+     * @param cacheFile the side file
+     * @param upToDate true to only load a cache that matches the TSV file
+     * @return the cache, or null if cacheFile is not a cache of this version, or is out
+     * of date when upToDate is true
+     * @throws IOException error reading the cache
+     */
+    private static TsvColumnarCache load(final File file, final File cacheFile,
+                                         final boolean upToDate) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(cacheFile, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < start.capacity()) {
+                return null;
+            }
+            readFully(channel, start, 0);
+            if (start.getInt() != MAGIC || start.getInt() != VERSION) {
+                return null;
+            }
+            final ByteBuffer header =
+                    ByteBuffer.allocate(start.getInt()).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.position(start.capacity());
+            final long fileLength = header.getLong();
+            final long lastModified = header.getLong();
+            if (upToDate
+                    && (file.length() != fileLength || file.lastModified() != lastModified)) {
+                return null;
+            }
+            final int numRows = header.getInt();
+            final int numColumns = header.getInt();
+            final String[] names = new String[numColumns];
+            final byte[] types = new byte[numColumns];
+            final ByteBuffer[] data = new ByteBuffer[numColumns];
+            final String[][] dictionaries = new String[numColumns][];
+            for (int column = 0; column < numColumns; column++) {
+                final byte[] name = new byte[header.getInt()];
+                header.get(name);
+                names[column] = new String(name, UTF8);
+                types[column] = header.get();
+                final long dataOffset = header.getLong();
+                final long dictionaryOffset = header.getLong();
+                final long dictionaryLength = header.getLong();
+                data[column] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset,
+                        (long) numRows * width(types[column])).order(ByteOrder.LITTLE_ENDIAN);
+                if (types[column] == STRING) {
+                    dictionaries[column] = readDictionary(channel.map(
+                            FileChannel.MapMode.READ_ONLY, dictionaryOffset, dictionaryLength));
+                }
+            }
+            return new TsvColumnarCache(file, fileLength, lastModified,
+                    new TsvToFromMap(names), numRows, types, data, dictionaries);
+        } finally {
+            // The mappings remain valid once the file is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Read a dictionary.
+     * @param buffer the dictionary as written by {@link #build(File, File)}
+     * @return the values of the dictionary
+     */
+    private static String[] readDictionary(final ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final String[] values = new String[buffer.getInt()];
+        for (int id = 0; id < values.length; id++) {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            values[id] = new String(bytes, UTF8);
+        }
+        return values;
+    }
+
+    /**
+     * Get if a value reads back the same when stored as an int.
+     * @param value the value
+     * @return true if the value is empty or an int without extra signs, zeros or spaces
+     */
+    private static boolean isCanonicalInt(final String value) {
+        if (value.length() == 0) {
+            return true;
+        }
+        try {
+            final int number = NumberParser.parseInt(value);
+            return number != EMPTY_INT && Integer.toString(number).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get if a value reads back the same when stored as a double.
+     * @param value the value
+     * @return true if the value is empty or a double as {@link Double#toString(double)}
+     * writes it
+     */
+    private static boolean isCanonicalDouble(final String value) {
+        if (value.length() == 0) {
+            return true;
+        }
+        try {
+            return Double.toString(NumberParser.parseDouble(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of bytes each row takes in a column.
+     * @param type how the column is stored
+     * @return the number of bytes
+     */
+    private static int width(final byte type) {
+        return type == DOUBLE ? 8 : 4;
+    }
+
+    /**
+     * Read from a channel until a buffer is full.
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position where to read from
+     * @throws IOException error reading, or the channel ends first
+     */
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+                                  final long position) throws IOException {
+        long next = position;
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, next);
+            if (count == -1) {
+                throw new IOException("Truncated cache file");
+            }
+            next += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Write all of a buffer to a channel.
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position where to write to
+     * @throws IOException error writing
+     */
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer,
+                                   final long position) throws IOException {
+        long next = position;
+        while (buffer.hasRemaining()) {
+            next += channel.write(buffer, next);
+        }
+    }
+
+    /**
+     * Get if the TSV file has the length and modification time it had when it was cached.
+     * @return true if the cache matches the TSV file
+     */
+    public boolean isUpToDate() {
+        return file.length() == fileLength && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Get the TSV file.
+     * @return the TSV file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the columns of the TSV file. Column handles for the rows of the cache must be
+     * created from these columns.
+     * @return the columns
+     */
+    public TsvToFromMap getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows.
+     * @return the number of data lines of the TSV file
+     */
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Point a row at a row of the cache.
+     * @param row the row number
+     * @param reuse a row of this cache to reuse, or null to create one
+     * @return the row
+     */
+    public TsvRow getRow(final int row, final TsvRow reuse) {
+        if (row < 0 || row >= numRows) {
+            throw new IndexOutOfBoundsException("Invalid row " + row);
+        }
+        final TsvRow result;
+        if (reuse == null) {
+            result = new TsvRow(columns);
+        } else if (reuse.getColumns() != columns) {
+            throw new IllegalArgumentException("The row belongs to another TsvToFromMap");
+        } else {
+            result = reuse;
+        }
+        result.set(this, row);
+        return result;
+    }
+
+    /**
+     * Iterate the rows. Each iterator returns the same row for every row of the cache,
+     * overwritten by the next call to next().
+     * @return the rows of the cache
+     */
+    public Iterable<TsvRow> rows() {
+        return new Iterable<TsvRow>() {
+            public Iterator<TsvRow> iterator() {
+                return new Iterator<TsvRow>() {
+                    /** The row returned for every row. */
+                    private final TsvRow row = new TsvRow(columns);
+
+                    /** The next row number. */
+                    private int next;
+
+                    public boolean hasNext() {
+                        return next < numRows;
+                    }
+
+                    public TsvRow next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        row.set(TsvColumnarCache.this, next++);
+                        return row;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Get if a column is stored as numbers.
+     * @param column the column index
+     * @return true for int and double columns
+     */
+    boolean isNumeric(final int column) {
+        return types[column] != STRING;
+    }
+
+    /**
+     * Get if a column is stored as ints.
+     * @param column the column index
+     * @return true for int columns
+     */
+    boolean isInt(final int column) {
+        return types[column] == INT;
+    }
+
+    /**
+     * Get if a value is empty.
+     * @param column the column index
+     * @param row the row number
+     * @return true if the value is empty
+     */
+    boolean isEmpty(final int column, final int row) {
+        switch (types[column]) {
+            case INT:
+                return data[column].getInt(row << 2) == EMPTY_INT;
+            case DOUBLE:
+                return data[column].getLong(row << 3) == EMPTY_DOUBLE;
+            default:
+                return dictionaries[column][data[column].getInt(row << 2)].length() == 0;
+        }
+    }
+
+    /**
+     * Get a value as it is in the TSV file.
+     * @param column the column index
+     * @param row the row number
+     * @return the value
+     */
+    String getString(final int column, final int row) {
+        if (isEmpty(column, row)) {
+            return "";
+        }
+        switch (types[column]) {
+            case INT:
+                return Integer.toString(getInt(column, row));
+            case DOUBLE:
+                return Double.toString(getDouble(column, row));
+            default:
+                return dictionaries[column][data[column].getInt(row << 2)];
+        }
+    }
+
+    /**
+     * Get a value of an int column.
+     * @param column the column index, stored as ints
+     * @param row the row number, its value not empty
+     * @return the value
+     */
+    int getInt(final int column, final int row) {
+        return data[column].getInt(row << 2);
+    }
+
+    /**
+     * Get a value of a number column as a double.
+     * @param column the column index, stored as numbers
+     * @param row the row number, its value not empty
+     * @return the value
+     */
+    double getDouble(final int column, final int row) {
+        if (types[column] == INT) {
+            return data[column].getInt(row << 2);
+        }
+        return Double.longBitsToDouble(data[column].getLong(row << 3));
+    }
+
+    /**
+     * Writes a section of the cache file through a buffer.
+     */
+    private static final class ColumnWriter {
+        /** The channel of the cache file. */
+        private final FileChannel channel;
+
+        /** The buffer holding the bytes not written yet. */
+        private final ByteBuffer buffer =
+                ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        /** Where the buffer is written to in the file. */
+        private long position;
+
+        /**
+         * Create a writer.
+         * @param channel the channel of the cache file
+         * @param position where the section starts
+         */
+        ColumnWriter(final FileChannel channel, final long position) {
+            super();
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Make room in the buffer.
+         * @param length the number of bytes about to be put in the buffer
+         * @return the buffer
+         * @throws IOException error writing the buffer
+         */
+        ByteBuffer reserve(final int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+            return buffer;
+        }
+
+        /**
+         * Write bytes of any length.
+         * @param bytes the bytes
+         * @throws IOException error writing
+         */
+        void write(final byte[] bytes) throws IOException {
+            if (bytes.length > buffer.remaining()) {
+                flush();
+                if (bytes.length > buffer.capacity()) {
+                    writeFully(channel, ByteBuffer.wrap(bytes), position);
+                    position += bytes.length;
+                    return;
+                }
+            }
+            buffer.put(bytes);
+        }
+
+        /**
+         * Write the buffer to the file.
+         * @throws IOException error writing
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            final int length = buffer.remaining();
+            writeFully(channel, buffer, position);
+            position += length;
+            buffer.clear();
+        }
+
+        /**
+         * Get where the next byte goes, once the buffer is flushed.
+         * @return the position in the file
+         */
+        long getPosition() {
+            return position + buffer.position();
+        }
+    }
+}
@@ -0,0 +1,662 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+
+import java.util.Arrays;
+
+/**
+ * One line of a TSV file, read with {@link TsvToFromMap#readDataToRow(String, TsvRow)}.
+ * Unlike the map of {@link TsvToFromMap#readDataToMap(String)} a row only records where
+ * each value starts and ends in the line, and the same row object can be reused for
+ * every line. Columns are found by position, or by name through the column index
+ * shared by all the rows of a TsvToFromMap. Values are only turned into Strings or
+ * numbers when they are asked for, with the same results as the getters of
+ * {@link LinkedHashToMultiTypeMap}. Parsed numbers and lists are kept until the row
+ * moves to another line, so reading a value again does not parse it again.
+ * <p>
+ * A reused row is overwritten by the next line; {@link #copy()} or {@link #toMap()}
+ * keep a line that is needed for longer.
+ * <p>
+ * When the TsvToFromMap has a {@link TsvToFromMap#setSchema(TsvSchema) schema},
+ * {@link #getValue(int)} parses each value with the routine for the type of its column
+ * instead of examining the value.
+ * <p>
+ * Rows of a {@link TsvColumnarCache} read their values from the cache instead of a line;
+ * numbers stored as numbers are returned without parsing.
+ */
+public final class TsvRow {
+    /** The columns of the TSV file. */
+    private final TsvToFromMap columns;
+
+    /** The line of the row. */
+    private String line;
+
+    /** Where the value of each column starts in the line. */
+    private int[] starts = new int[0];
+
+    /** Where the value of each column ends in the line. */
+    private int[] ends = new int[0];
+
+    /** The number of values in the line. */
+    private int numValues;
+
+    /** The parsed value of each column, valid where parsedStamps equals stamp. */
+    private Object[] parsed = new Object[0];
+
+    /** The line each parsed value was parsed from. */
+    private int[] parsedStamps = new int[0];
+
+    /** Counts the lines the row has been pointed at, to invalidate parsed values. */
+    private int stamp;
+
+    /** The cache the row reads its values from, null for rows of a line. */
+    private TsvColumnarCache cache;
+
+    /** The row number in the cache. */
+    private int row;
+
+    /**
+     * Create an empty row.
+     * @param columns the columns of the TSV file
+     */
+    public TsvRow(final TsvToFromMap columns) {
+        super();
+        this.columns = columns;
+    }
+
+    /**
+     * Point the row at a new line, splitting it on tabs like
+     * {@link org.apache.commons.lang.StringUtils#splitPreserveAllTokens(String, char)}.
+     * @param newLine the line
+     * @return the number of values in the line
+     */
+    int set(final String newLine) {
+        this.line = newLine;
+        this.cache = null;
+        numValues = 0;
+        stamp++;
+        if (newLine.length() == 0) {
+            // No values at all, as StringUtils.splitPreserveAllTokens() sees it
+            return 0;
+        }
+        int start = 0;
+        while (true) {
+            if (numValues == starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(8, numValues * 2));
+                ends = Arrays.copyOf(ends, starts.length);
+                parsed = Arrays.copyOf(parsed, starts.length);
+                parsedStamps = Arrays.copyOf(parsedStamps, starts.length);
+            }
+            final int end = newLine.indexOf('\t', start);
+            starts[numValues] = start;
+            ends[numValues] = end == -1 ? newLine.length() : end;
+            numValues++;
+            if (end == -1) {
+                return numValues;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Point the row at a row of a columnar cache.
+     * @param newCache the cache, with the columns of this row
+     * @param newRow the row number in the cache
+     */
+    void set(final TsvColumnarCache newCache, final int newRow) {
+        this.cache = newCache;
+        this.row = newRow;
+        this.line = null;
+        numValues = columns.getNumColumnHeaders();
+        stamp++;
+        if (parsed.length < numValues) {
+            parsed = new Object[numValues];
+            parsedStamps = new int[numValues];
+        }
+    }
+
+    /**
+     * Get the line of the row. The line of a row of a columnar cache is the values
+     * joined with tabs.
+     * @return the line
+     */
+    public String getLine() {
+        if (line == null && cache != null) {
+            final StringBuilder result = new StringBuilder();
+            for (int column = 0; column < numValues; column++) {
+                if (column > 0) {
+                    result.append('\t');
+                }
+                result.append(cache.getString(column, row));
+            }
+            line = result.toString();
+        }
+        return line;
+    }
+
+    /**
+     * Get the columns of the TSV file.
+     * @return the TsvToFromMap the row was read with
+     */
+    public TsvToFromMap getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of columns.
+     * @return the number of column headers
+     */
+    public int size() {
+        return columns.getNumColumnHeaders();
+    }
+
+    /**
+     * Get the column index of a field.
+     * @param field the column name
+     * @return the column index, or -1 if there is no such column
+     */
+    public int getColumnIndex(final String field) {
+        return columns.getColumnIndex(field);
+    }
+
+    /**
+     * Get the value of a column as a String. Columns missing from a line read with a
+     * lenient column count are empty.
+     * @param column the column index
+     * @return the String value for the column
+     */
+    public String getString(final int column) {
+        checkColumn(column);
+        if (cache != null) {
+            return cache.getString(column, row);
+        }
+        if (column >= numValues) {
+            return "";
+        }
+        return line.substring(starts[column], ends[column]);
+    }
+
+    /**
+     * Get the value of a field as a String.
+     * @param field the field to get
+     * @return the String value for the field, null if there is no such field
+     */
+    public String getString(final String field) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getString(column);
+    }
+
+    /**
+     * Get the value of a column as a Double.
+     * @param column the column index
+     * @return the Double value for the column, null if the value is empty
+     */
+    public Double getDouble(final int column) {
+        if (isEmpty(column)) {
+            return null;
+        }
+        if (cache != null && cache.isNumeric(column)) {
+            return cache.getDouble(column, row);
+        }
+        final Object cached = getParsed(column);
+        if (cached instanceof Double) {
+            return (Double) cached;
+        }
+        final String text = getText(column);
+        final Double value = toDouble(text, getStart(column), getEnd(column, text));
+        setParsed(column, value);
+        return value;
+    }
+
+    /**
+     * Get the value of a field as a Double.
+     * @param field the field to get
+     * @return the Double value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public Double getDouble(final String field) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getDouble(column);
+    }
+
+    /**
+     * Get the value of a column as an Integer.
+     * @param column the column index
+     * @return the Integer value for the column, null if the value is empty
+     */
+    public Integer getInt(final int column) {
+        if (isEmpty(column)) {
+            return null;
+        }
+        if (cache != null && cache.isInt(column)) {
+            return cache.getInt(column, row);
+        }
+        final Object cached = getParsed(column);
+        if (cached instanceof Integer) {
+            return (Integer) cached;
+        }
+        final String text = getText(column);
+        final Integer value = toInt(text, getStart(column), getEnd(column, text));
+        setParsed(column, value);
+        return value;
+    }
+
+    /**
+     * Get the value of a field as an Integer.
+     * @param field the field to get
+     * @return the Integer value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public Integer getInt(final String field) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getInt(column);
+    }
+
+    /**
+     * Get the value of a field as a double[], split with the ',' character.
+     * @param field the field to get
+     * @return the double[] value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public double[] getDoubleArray(final String field) {
+        return getDoubleArray(field, ',');
+    }
+
+    /**
+     * Get the value of a field as a double[].
+     * @param field the field to get
+     * @param splitChar the char to split the doubles
+     * @return the double[] value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public double[] getDoubleArray(final String field, final char splitChar) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getDoubleArray(column, splitChar);
+    }
+
+    /**
+     * Get the value of a column as a double[]. Empty elements are skipped and blank
+     * elements are 0, as in {@link LinkedHashToMultiTypeMap#getDoubleArray(Object, char)}.
+     * @param column the column index
+     * @param splitChar the char to split the doubles
+     * @return the double[] value for the column, null if the value is empty
+     */
+    public double[] getDoubleArray(final int column, final char splitChar) {
+        if (isEmpty(column)) {
+            return null;
+        }
+        if (splitChar == ',') {
+            final Object cached = getParsed(column);
+            if (cached instanceof double[]) {
+                return ((double[]) cached).clone();
+            }
+            final double[] value = parseDoubleArray(column, splitChar);
+            setParsed(column, value);
+            return value.clone();
+        }
+        return parseDoubleArray(column, splitChar);
+    }
+
+    /**
+     * Parse the value of a column as a double[].
+     * @param column the column index, its value not empty
+     * @param splitChar the char to split the doubles
+     * @return the double[] value for the column
+     */
+    private double[] parseDoubleArray(final int column, final char splitChar) {
+        final String text = getText(column);
+        final int start = getStart(column);
+        final int end = getEnd(column, text);
+        if (!contains(text, start, end, splitChar)) {
+            return new double[] {toDouble(text, start, end)};
+        }
+        final double[] result = new double[countElements(text, start, end, splitChar)];
+        int i = 0;
+        int elementStart = start;
+        for (int pos = start; pos <= end; pos++) {
+            if (pos == end || text.charAt(pos) == splitChar) {
+                if (pos > elementStart) {
+                    final int trimmedStart = trimStart(text, elementStart, pos);
+                    result[i++] = toDouble(text, trimmedStart, trimEnd(text, trimmedStart, pos));
+                }
+                elementStart = pos + 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the value of a field as an int[], split with the ',' character.
+     * @param field the field to get
+     * @return the int[] value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public int[] getIntArray(final String field) {
+        return getIntArray(field, ',');
+    }
+
+    /**
+     * Get the value of a field as an int[].
+     * @param field the field to get
+     * @param splitChar the char to split the ints
+     * @return the int[] value for the field, null if there is no such field or the
+     * value is empty
+     */
+    public int[] getIntArray(final String field, final char splitChar) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getIntArray(column, splitChar);
+    }
+
+    /**
+     * Get the value of a column as an int[]. Empty elements are skipped and blank
+     * elements are 0, as in {@link LinkedHashToMultiTypeMap#getIntArray(Object, char)}.
+     * @param column the column index
+     * @param splitChar the char to split the ints
+     * @return the int[] value for the column, null if the value is empty
+     */
+    public int[] getIntArray(final int column, final char splitChar) {
+        if (isEmpty(column)) {
+            return null;
+        }
+        if (splitChar == ',') {
+            final Object cached = getParsed(column);
+            if (cached instanceof int[]) {
+                return ((int[]) cached).clone();
+            }
+            final int[] value = parseIntArray(column, splitChar);
+            setParsed(column, value);
+            return value.clone();
+        }
+        return parseIntArray(column, splitChar);
+    }
+
+    /**
+     * Parse the value of a column as an int[].
+     * @param column the column index, its value not empty
+     * @param splitChar the char to split the ints
+     * @return the int[] value for the column
+     */
+    private int[] parseIntArray(final int column, final char splitChar) {
+        final String text = getText(column);
+        final int start = getStart(column);
+        final int end = getEnd(column, text);
+        if (!contains(text, start, end, splitChar)) {
+            return new int[] {toInt(text, start, end)};
+        }
+        final int[] result = new int[countElements(text, start, end, splitChar)];
+        int i = 0;
+        int elementStart = start;
+        for (int pos = start; pos <= end; pos++) {
+            if (pos == end || text.charAt(pos) == splitChar) {
+                if (pos > elementStart) {
+                    final int trimmedStart = trimStart(text, elementStart, pos);
+                    result[i++] = toInt(text, trimmedStart, trimEnd(text, trimmedStart, pos));
+                }
+                elementStart = pos + 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the value of a column parsed with {@link TsvSchema#parse(int, String)}, as a
+     * Boolean, Integer, Long, Double or String for scalar columns and as a boolean[],
+     * int[], long[], double[] or String[] for list columns.
+     * @param column the column index
+     * @return the parsed value, null if the value is empty
+     * @throws IllegalStateException if the TsvToFromMap has no schema
+     * @throws NumberFormatException if the value does not match the column type
+     */
+    public Object getValue(final int column) {
+        final TsvSchema schema = columns.getSchema();
+        if (schema == null) {
+            throw new IllegalStateException("No schema has been set");
+        }
+        return isEmpty(column) ? null : schema.parse(column, getString(column));
+    }
+
+    /**
+     * Get the value of a field parsed with the schema, see {@link #getValue(int)}.
+     * @param field the field to get
+     * @return the parsed value, null if there is no such field or the value is empty
+     * @throws IllegalStateException if the TsvToFromMap has no schema
+     * @throws NumberFormatException if the value does not match the column type
+     */
+    public Object getValue(final String field) {
+        final int column = columns.getColumnIndex(field);
+        return column == -1 ? null : getValue(column);
+    }
+
+    /**
+     * Copy the row into a map, as returned by {@link TsvToFromMap#readDataToMap(String)}.
+     * @return the map of column name to value
+     */
+    public LinkedHashToMultiTypeMap<String> toMap() {
+        final LinkedHashToMultiTypeMap<String> result = new LinkedHashToMultiTypeMap<String>();
+        int column = 0;
+        for (final String columnHeader : columns.getColumnHeaders()) {
+            result.put(columnHeader, getString(column++));
+        }
+        return result;
+    }
+
+    /**
+     * Copy the row, so it is not changed when this row is reused.
+     * @return a copy of the row
+     */
+    public TsvRow copy() {
+        final TsvRow copy = new TsvRow(columns);
+        copy.cache = cache;
+        copy.row = row;
+        copy.line = line;
+        copy.numValues = numValues;
+        if (cache == null) {
+            copy.starts = Arrays.copyOf(starts, numValues);
+            copy.ends = Arrays.copyOf(ends, numValues);
+        }
+        copy.parsed = new Object[numValues];
+        copy.parsedStamps = new int[numValues];
+        copy.stamp = 1;
+        return copy;
+    }
+
+    /**
+     * Get the line of the row.
+     * @return the line
+     */
+    @Override
+    public String toString() {
+        return getLine();
+    }
+
+    /**
+     * Make sure a column index is valid.
+     * @param column the column index
+     */
+    private void checkColumn(final int column) {
+        if (column < 0 || column >= columns.getNumColumnHeaders()) {
+            throw new IndexOutOfBoundsException("Invalid column " + column);
+        }
+    }
+
+    /**
+     * Get the parsed value of a column.
+     * @param column the column index
+     * @return the value parsed from the current line, or null if it has not been parsed
+     */
+    private Object getParsed(final int column) {
+        return parsedStamps[column] == stamp ? parsed[column] : null;
+    }
+
+    /**
+     * Keep the parsed value of a column until the row moves to another line.
+     * @param column the column index
+     * @param value the parsed value
+     */
+    private void setParsed(final int column, final Object value) {
+        parsed[column] = value;
+        parsedStamps[column] = stamp;
+    }
+
+    /**
+     * Get if the value of a column is empty or missing.
+     * @param column the column index
+     * @return true if the value is empty
+     */
+    private boolean isEmpty(final int column) {
+        checkColumn(column);
+        if (cache != null) {
+            return cache.isEmpty(column, row);
+        }
+        return column >= numValues || starts[column] == ends[column];
+    }
+
+    /**
+     * Get the text holding the value of a column.
+     * @param column the column index, its value not empty
+     * @return the line, or the value itself for rows of a cache
+     */
+    private String getText(final int column) {
+        return cache == null ? line : cache.getString(column, row);
+    }
+
+    /**
+     * Get where the value of a column starts in its text.
+     * @param column the column index, its value not empty
+     * @return where the value starts
+     */
+    private int getStart(final int column) {
+        return cache == null ? starts[column] : 0;
+    }
+
+    /**
+     * Get where the value of a column ends in its text.
+     * @param column the column index, its value not empty
+     * @param text the text returned by {@link #getText(int)}
+     * @return where the value ends
+     */
+    private int getEnd(final int column, final String text) {
+        return cache == null ? ends[column] : text.length();
+    }
+
+    /**
+     * Get if part of a text contains a char.
+     * @param text the text
+     * @param start where the part starts
+     * @param end where the part ends
+     * @param c the char to look for
+     * @return true if the char is found
+     */
+    private static boolean contains(final String text, final int start, final int end,
+                                    final char c) {
+        final int pos = text.indexOf(c, start);
+        return pos != -1 && pos < end;
+    }
+
+    /**
+     * Count the non-empty elements of a list value.
+     * @param text the text holding the value
+     * @param start where the value starts
+     * @param end where the value ends
+     * @param splitChar the char between the elements
+     * @return the number of elements
+     */
+    private static int countElements(final String text, final int start, final int end,
+                                     final char splitChar) {
+        int count = 0;
+        int elementStart = start;
+        for (int pos = start; pos <= end; pos++) {
+            if (pos == end || text.charAt(pos) == splitChar) {
+                if (pos > elementStart) {
+                    count++;
+                }
+                elementStart = pos + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Skip leading whitespace, as {@link String#trim()} does.
+     * @param text the text
+     * @param start where the part to trim starts
+     * @param end where the part to trim ends
+     * @return where the trimmed part starts
+     */
+    private static int trimStart(final String text, final int start, final int end) {
+        int pos = start;
+        while (pos < end && text.charAt(pos) <= ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Skip trailing whitespace, as {@link String#trim()} does.
+     * @param text the text
+     * @param start where the part to trim starts
+     * @param end where the part to trim ends
+     * @return where the trimmed part ends
+     */
+    private static int trimEnd(final String text, final int start, final int end) {
+        int pos = end;
+        while (pos > start && text.charAt(pos - 1) <= ' ') {
+            pos--;
+        }
+        return pos;
+    }
+
+    /**
+     * Parse part of a text as a double, 0 if it is not a valid double.
+     * @param text the text
+     * @param start where the number starts
+     * @param end where the number ends
+     * @return the value
+     */
+    private static double toDouble(final String text, final int start, final int end) {
+        if (start == end) {
+            return 0.0d;
+        }
+        try {
+            return NumberParser.parseDouble(text, start, end);
+        } catch (NumberFormatException e) {
+            return 0.0d;
+        }
+    }
+
+    /**
+     * Parse part of a text as an int, 0 if it is not a valid int.
+     * @param text the text
+     * @param start where the number starts
+     * @param end where the number ends
+     * @return the value
+     */
+    private static int toInt(final String text, final int start, final int end) {
+        if (start == end) {
+            return 0;
+        }
+        try {
+            return NumberParser.parseInt(text, start, end);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
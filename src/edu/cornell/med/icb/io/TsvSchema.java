@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The names and value types of the columns of a TSV file. A schema is usually inferred
+ * from the first rows of a file with {@link TsvToFromMap#inferSchema(java.io.File, int)},
+ * after which every value of a column can be parsed with the routine for its type
+ * instead of being re-examined cell by cell. Set on a TsvToFromMap with
+ * {@link TsvToFromMap#setSchema(TsvSchema)}, the schema is used by
+ * {@link TsvRow#getValue(int)} and the handles of {@link TsvToFromMap#valueColumn(String)}.
+ * <p>
+ * A list column holds values of its type separated by {@link #LIST_SEPARATOR}, the way
+ * {@link edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap#getDoubleArray(Object)}
+ * reads them.
+ */
+public final class TsvSchema {
+    /**
+     * Enum for column value types, from the most to the least specific.
+     */
+    public enum ColumnType {
+        /** "true" or "false", in any case. */
+        BOOLEAN,
+        /** Values that fit in an int. */
+        INT,
+        /** Values that fit in a long. */
+        LONG,
+        /** Any value {@link Double#parseDouble(String)} accepts. */
+        DOUBLE,
+        /** Anything else. */
+        STRING
+    }
+
+    /**
+     * The separator between the elements of list values.
+     */
+    public static final char LIST_SEPARATOR = ',';
+
+    /**
+     * The column names.
+     */
+    private final String[] columnNames;
+
+    /**
+     * The type of the values (or list elements) of each column.
+     */
+    private final ColumnType[] columnTypes;
+
+    /**
+     * True for the columns that hold lists.
+     */
+    private final boolean[] lists;
+
+    /**
+     * Column name to column index.
+     */
+    private final Object2IntMap<String> columnIndexes;
+
+    /**
+     * Create a schema.
+     *
+     * @param columnNames the column names
+     * @param columnTypes the type of the values of each column
+     * @param lists true for the columns that hold lists of values
+     */
+    public TsvSchema(final String[] columnNames, final ColumnType[] columnTypes,
+                     final boolean[] lists) {
+        super();
+        if (columnNames.length != columnTypes.length || columnNames.length != lists.length) {
+            throw new IllegalArgumentException("All arrays must have one entry per column");
+        }
+        this.columnNames = columnNames.clone();
+        this.columnTypes = columnTypes.clone();
+        this.lists = lists.clone();
+        this.columnIndexes = new Object2IntOpenHashMap<String>(columnNames.length);
+        this.columnIndexes.defaultReturnValue(-1);
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes.put(columnNames[i], i);
+        }
+    }
+
+    /**
+     * Infer the schema of a table from sample rows. Empty values are ignored. A column
+     * is a list when some of its values contain the list separator and all the list
+     * elements have a type other than STRING.
+     *
+     * @param columnNames the column names
+     * @param sampleRows the sample rows, split into fields
+     * @return the inferred schema
+     */
+    public static TsvSchema infer(final String[] columnNames,
+                                  final Iterable<String[]> sampleRows) {
+        final int numColumns = columnNames.length;
+        final ColumnType[] scalarTypes = new ColumnType[numColumns];
+        final ColumnType[] elementTypes = new ColumnType[numColumns];
+        final boolean[] sawSeparator = new boolean[numColumns];
+        for (final String[] row : sampleRows) {
+            final int numFields = Math.min(row.length, numColumns);
+            for (int column = 0; column < numFields; column++) {
+                final String value = row[column];
+                if (value == null || value.length() == 0) {
+                    continue;
+                }
+                scalarTypes[column] = widen(scalarTypes[column], classify(value));
+                if (elementTypes[column] == ColumnType.STRING) {
+                    continue;
+                }
+                if (value.indexOf(LIST_SEPARATOR) != -1) {
+                    sawSeparator[column] = true;
+                }
+                for (final String element : StringUtils.split(value, LIST_SEPARATOR)) {
+                    if (!StringUtils.isBlank(element)) {
+                        elementTypes[column] =
+                                widen(elementTypes[column], classify(element.trim()));
+                    }
+                }
+            }
+        }
+        final ColumnType[] columnTypes = new ColumnType[numColumns];
+        final boolean[] lists = new boolean[numColumns];
+        for (int column = 0; column < numColumns; column++) {
+            if (sawSeparator[column] && elementTypes[column] != ColumnType.STRING) {
+                columnTypes[column] = elementTypes[column];
+                lists[column] = true;
+            } else if (scalarTypes[column] == null) {
+                columnTypes[column] = ColumnType.STRING;
+            } else {
+                columnTypes[column] = scalarTypes[column];
+            }
+        }
+        return new TsvSchema(columnNames, columnTypes, lists);
+    }
+
+    /**
+     * Find the most specific type of a single non empty value.
+     *
+     * @param value the value
+     * @return the type of the value
+     */
+    public static ColumnType classify(final String value) {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return ColumnType.BOOLEAN;
+        }
+        final char first = value.charAt(0);
+        if (first > '9' && first != 'N' && first != 'I') {
+            // Cannot be a number, not even NaN or Infinity
+            return ColumnType.STRING;
+        }
+        try {
+            final long longValue = NumberParser.parseLong(value);
+            if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                return ColumnType.INT;
+            }
+            return ColumnType.LONG;
+        } catch (NumberFormatException e) {
+            // Not an integer
+        }
+        try {
+            NumberParser.parseDouble(value);
+            return ColumnType.DOUBLE;
+        } catch (NumberFormatException e) {
+            return ColumnType.STRING;
+        }
+    }
+
+    /**
+     * The least specific of two types, integers widen to doubles and anything else
+     * that differs to STRING.
+     *
+     * @param current the type so far, may be null
+     * @param type the new type
+     * @return the type that accepts both
+     */
+    private static ColumnType widen(final ColumnType current, final ColumnType type) {
+        if (current == null || current == type) {
+            return type;
+        }
+        if (current == ColumnType.BOOLEAN || type == ColumnType.BOOLEAN) {
+            return ColumnType.STRING;
+        }
+        return current.ordinal() > type.ordinal() ? current : type;
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return the number of columns
+     */
+    public int getNumColumns() {
+        return columnNames.length;
+    }
+
+    /**
+     * Obtain a copy of the column names.
+     *
+     * @return the column names
+     */
+    public List<String> getColumnNames() {
+        return new ArrayList<String>(Arrays.asList(columnNames));
+    }
+
+    /**
+     * Get the name of a column.
+     *
+     * @param column the column index
+     * @return the column name
+     */
+    public String getColumnName(final int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * Get the index of a column. If several columns have the same name this is the last
+     * of them, as for {@link TsvToFromMap#getColumnIndex(String)}.
+     *
+     * @param columnName the column name
+     * @return the index of the last column with that name, or -1 if there is none
+     */
+    public int getColumnIndex(final String columnName) {
+        return columnIndexes.getInt(columnName);
+    }
+
+    /**
+     * Get the type of the values (or of the list elements) of a column.
+     *
+     * @param column the column index
+     * @return the column type
+     */
+    public ColumnType getColumnType(final int column) {
+        return columnTypes[column];
+    }
+
+    /**
+     * Get if a column holds lists of values.
+     *
+     * @param column the column index
+     * @return true if the column holds lists
+     */
+    public boolean isList(final int column) {
+        return lists[column];
+    }
+
+    /**
+     * Parse a value of a column with the routine for the column type. Scalar columns give
+     * a Boolean, Integer, Long, Double or String and list columns a boolean[], int[],
+     * long[] or double[]; blank list elements are read as false or 0 like
+     * {@link edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap} reads them.
+     *
+     * @param column the column index
+     * @param value the value to parse
+     * @return the parsed value, null if the value is null or empty
+     * @throws NumberFormatException if the value does not match the column type
+     */
+    public Object parse(final int column, final String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        final ColumnType type = columnTypes[column];
+        if (!lists[column]) {
+            switch (type) {
+                case BOOLEAN:
+                    return parseBoolean(value);
+                case INT:
+                    return NumberParser.parseInt(value);
+                case LONG:
+                    return NumberParser.parseLong(value);
+                case DOUBLE:
+                    return NumberParser.parseDouble(value);
+                default:
+                    return value;
+            }
+        }
+        final String[] elements = StringUtils.split(value, LIST_SEPARATOR);
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = StringUtils.isBlank(elements[i]) ? null : elements[i].trim();
+        }
+        switch (type) {
+            case BOOLEAN:
+                final boolean[] booleans = new boolean[elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    booleans[i] = elements[i] != null && parseBoolean(elements[i]);
+                }
+                return booleans;
+            case INT:
+                final int[] ints = new int[elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    ints[i] = elements[i] == null ? 0 : NumberParser.parseInt(elements[i]);
+                }
+                return ints;
+            case LONG:
+                final long[] longs = new long[elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    longs[i] = elements[i] == null ? 0 : NumberParser.parseLong(elements[i]);
+                }
+                return longs;
+            case DOUBLE:
+                final double[] doubles = new double[elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    doubles[i] = elements[i] == null ? 0 : NumberParser.parseDouble(elements[i]);
+                }
+                return doubles;
+            default:
+                return elements;
+        }
+    }
+
+    /**
+     * Parse a boolean strictly.
+     *
+     * @param value the value
+     * @return the boolean
+     * @throws NumberFormatException if the value is not "true" or "false"
+     */
+    private static boolean parseBoolean(final String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new NumberFormatException("For input string: \"" + value + "\"");
+    }
+
+    /**
+     * The columns as name:TYPE, with [] after list types.
+     *
+     * @return the schema as a String
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < columnNames.length; i++) {
+            if (i > 0) {
+                result.append('\t');
+            }
+            result.append(columnNames[i]).append(':').append(columnTypes[i]);
+            if (lists[i]) {
+                result.append("[]");
+            }
+        }
+        return result.toString();
+    }
+}
@@ -20,6 +20,8 @@ package edu.cornell.med.icb.io;
 
 import edu.cornell.med.icb.iterators.TextFileLineIterator;
 import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.apache.commons.lang.StringUtils;
 
 import java.io.File;
@@ -56,6 +58,15 @@ public class TsvToFromMap {
      */
     private boolean lenientColumnCount;
 
+    /**
+     * Column name to column index, shared by the rows read with readDataToRow(). Built
+     * when first needed and dropped when a column is added.
+     */
+    private volatile Object2IntMap<String> columnIndexes;
+
+    /** The types of the columns, null if they are not known. */
+    private TsvSchema schema;
+
     /**
      * Create a new TsvToFromMap object with no columns, it is expected that the columns
      * will be added later with addColumn(...).
@@ -88,9 +99,30 @@ public class TsvToFromMap {
         if (!columnHeaders.contains(newColumnHeader)) {
             columnHeaders.add(newColumnHeader);
             numColumnHeaders++;
+            columnIndexes = null;
         }
     }
 
+    /**
+     * Get the index of a column. If several columns have the same name this is the
+     * last of them, whose value is the one kept by readDataToMap().
+     * @param columnHeader the column header
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int getColumnIndex(final String columnHeader) {
+        Object2IntMap<String> indexes = columnIndexes;
+        if (indexes == null) {
+            indexes = new Object2IntOpenHashMap<String>(numColumnHeaders);
+            indexes.defaultReturnValue(-1);
+            int column = 0;
+            for (final String header : columnHeaders) {
+                indexes.put(header, column++);
+            }
+            columnIndexes = indexes;
+        }
+        return indexes.getInt(columnHeader);
+    }
+
     /**
      * Obtain a copy of the column headers. You can safely modify the list that is returned
      * from this method as you are only receiving a copy of the list of column headers.
@@ -139,6 +171,132 @@ public class TsvToFromMap {
         out.println();
     }
 
+    /**
+     * Get a handle reading a column as a String.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public ColumnRef<String> stringColumn(final String columnHeader) {
+        return new ColumnRef<String>(this, columnHeader) {
+            @Override
+            String read(final TsvRow row, final int column) {
+                return row.getString(column);
+            }
+
+            @Override
+            String read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return map.getString(field);
+            }
+        };
+    }
+
+    /**
+     * Get a handle reading a column with the routine for its type in the schema, see
+     * {@link TsvRow#getValue(int)}.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     * @throws IllegalStateException if no schema has been set
+     */
+    public ColumnRef<Object> valueColumn(final String columnHeader) {
+        if (schema == null) {
+            throw new IllegalStateException("No schema has been set");
+        }
+        final TsvSchema columnTypes = schema;
+        return new ColumnRef<Object>(this, columnHeader) {
+            @Override
+            Object read(final TsvRow row, final int column) {
+                return row.getValue(column);
+            }
+
+            @Override
+            Object read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return columnTypes.parse(getIndex(), map.get(field));
+            }
+        };
+    }
+
+    /**
+     * Get a handle reading a column as a Double.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public ColumnRef<Double> doubleColumn(final String columnHeader) {
+        return new ColumnRef<Double>(this, columnHeader) {
+            @Override
+            Double read(final TsvRow row, final int column) {
+                return row.getDouble(column);
+            }
+
+            @Override
+            Double read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return map.getDouble(field);
+            }
+        };
+    }
+
+    /**
+     * Get a handle reading a column as an Integer.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public ColumnRef<Integer> intColumn(final String columnHeader) {
+        return new ColumnRef<Integer>(this, columnHeader) {
+            @Override
+            Integer read(final TsvRow row, final int column) {
+                return row.getInt(column);
+            }
+
+            @Override
+            Integer read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return map.getInt(field);
+            }
+        };
+    }
+
+    /**
+     * Get a handle reading a column as a double[] split with ','.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public ColumnRef<double[]> doubleArrayColumn(final String columnHeader) {
+        return new ColumnRef<double[]>(this, columnHeader) {
+            @Override
+            double[] read(final TsvRow row, final int column) {
+                return row.getDoubleArray(column, ',');
+            }
+
+            @Override
+            double[] read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return map.getDoubleArray(field);
+            }
+        };
+    }
+
+    /**
+     * Get a handle reading a column as an int[] split with ','.
+     * @param columnHeader the column header
+     * @return the handle
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public ColumnRef<int[]> intArrayColumn(final String columnHeader) {
+        return new ColumnRef<int[]>(this, columnHeader) {
+            @Override
+            int[] read(final TsvRow row, final int column) {
+                return row.getIntArray(column, ',');
+            }
+
+            @Override
+            int[] read(final LinkedHashToMultiTypeMap<String> map, final String field) {
+                return map.getIntArray(field);
+            }
+        };
+    }
+
     /**
      * Given a line of text, convert it to a Map[columnName, value] of data.
      * @param line the line of data to convert to the the Map
@@ -170,6 +328,33 @@ public class TsvToFromMap {
         return result;
     }
 
+    /**
+     * Given a line of text, point a row at it. Unlike readDataToMap() this neither
+     * copies the values nor creates a map, so reusing one row for every line of a
+     * file creates close to no garbage.
+     * @param line the line of data
+     * @param reuse the row to point at the line, or null to create a new row
+     * @return the row, or null if the line is a comment
+     * @throws IOException the number of columns found in the data is incorrect given the
+     * number of columns expected in the TSV file
+     */
+    public TsvRow readDataToRow(final String line, final TsvRow reuse) throws IOException {
+        if (line.startsWith("#")) {
+            return null;
+        }
+        if (reuse != null && reuse.getColumns() != this) {
+            throw new IllegalArgumentException("The row belongs to another TsvToFromMap");
+        }
+        final TsvRow result = reuse == null ? new TsvRow(this) : reuse;
+        final int numParts = result.set(line);
+        if ((!lenientColumnCount) && (numParts != numColumnHeaders)) {
+            throw new IOException(String.format(
+                    "Line should have %d columns but has %d",
+                    numColumnHeaders, numParts));
+        }
+        return result;
+    }
+
     /**
      * Write the Map[columnHeader, value] of data to the PrintWriter out.
      * If the Map value for the given column is missing (null) an empty
@@ -209,8 +394,7 @@ public class TsvToFromMap {
                 if (line.startsWith("#")) {
                     continue;
                 }
-                final String[] parts = StringUtils.split(line, '\t');
-                return new TsvToFromMap(parts);
+                return createFromHeaderLine(line);
             }
         } finally {
             if (in != null) {
@@ -221,6 +405,56 @@ public class TsvToFromMap {
         return null;
     }
 
+    /**
+     * Construct a TsvToFromMap from the header line of a TSV file, as read by
+     * {@link #createFromTsvFile(File)}.
+     * @param line the header line
+     * @return the TsvToFromMap for the columns of the line
+     */
+    public static TsvToFromMap createFromHeaderLine(final String line) {
+        return new TsvToFromMap(StringUtils.split(line, '\t'));
+    }
+
+    /**
+     * Infer the schema of a given TSV file from its first rows. This assumes that the
+     * first non-commented line contains the column names, like
+     * {@link #createFromTsvFile(File)}. The file is only read as far as needed.
+     * @param file the TSV file
+     * @param sampleRows the maximum number of data rows to examine
+     * @return the inferred schema, or null if the file has no header line
+     * @throws IOException error reading file that was supposed to be a TSV file
+     */
+    public static TsvSchema inferSchema(final File file, final int sampleRows)
+            throws IOException {
+        TextFileLineIterator in = null;
+        try {
+            in = new TextFileLineIterator(file);
+            String[] header = null;
+            final List<String[]> rows = new ArrayList<String[]>();
+            for (final String line : in) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                if (header == null) {
+                    header = StringUtils.split(line, '\t');
+                } else if (rows.size() < sampleRows) {
+                    rows.add(StringUtils.splitPreserveAllTokens(line, '\t'));
+                } else {
+                    break;
+                }
+            }
+            if (header == null) {
+                // Empty file or all lines were comments (start with "#")
+                return null;
+            }
+            return TsvSchema.infer(header, rows);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
     /**
      * Retrieve the number of column headers.
      * @return the number of column headers.
@@ -248,4 +482,27 @@ public class TsvToFromMap {
     public void setLenientColumnCount(final boolean lenientColumnCount) {
         this.lenientColumnCount = lenientColumnCount;
     }
+
+    /**
+     * Get the types of the columns.
+     * @return the schema, null if none has been set
+     */
+    public TsvSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Set the types of the columns, for instance as inferred by
+     * {@link #inferSchema(File, int)}, so the rows read with readDataToRow() can parse
+     * each value with the routine for its column, see {@link TsvRow#getValue(int)}.
+     * @param schema the schema, with the same columns in the same order, or null
+     * @throws IllegalArgumentException if the schema has other columns
+     */
+    public void setSchema(final TsvSchema schema) {
+        if (schema != null && !schema.getColumnNames().equals(columnHeaders)) {
+            throw new IllegalArgumentException("The schema columns " + schema.getColumnNames()
+                    + " are not " + columnHeaders);
+        }
+        this.schema = schema;
+    }
 }
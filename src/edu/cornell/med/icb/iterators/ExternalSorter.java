@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.CompressedStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sort the lines of a text or TSV file of any size, like GNU sort but without leaving
+ * the JVM. The lines are read into runs that fit in the memory budget. Each run is
+ * sorted and written to a temporary file on a pool of threads while the next run is
+ * read. The runs are then merged with {@link PreSortedMergeTextFilesLineIterator}, at
+ * most fan-in runs at a time, with intermediate passes when there are more runs than
+ * that.
+ * <p>
+ * Lines are sorted as Strings unless a {@link #setComparator(Comparator) comparator} or
+ * a {@link #setLineKey(LineKey) key} is set. Lines that compare equal are kept in String
+ * order. Lines are written out exactly as they were read, never split or unescaped. A
+ * key finds its columns past the delimiters that TSVWriter escapes, and compares the
+ * unescaped values, see {@link LineKey#setEscapeChar(Character)}. Files are read and
+ * written in the platform default charset, and files with names ending in ".gz" are
+ * read and written gzip compressed.
+ * <pre>
+ * final ExternalSorter sorter = new ExternalSorter();
+ * sorter.setLineKey(new LineKey().addStringColumn(0).addLongColumn(1));
+ * sorter.sort(new File("reads.tsv.gz"), new File("reads-sorted.tsv.gz"));
+ * </pre>
+ */
+public class ExternalSorter {
+    /** The default memory budget, a quarter of the maximum heap. */
+    public static final long MEMORY_BUDGET_DEFAULT = Runtime.getRuntime().maxMemory() / 4;
+
+    /** The default maximum number of runs merged at once. */
+    public static final int FAN_IN_DEFAULT = 64;
+
+    /** The default number of threads sorting and merging runs. */
+    public static final int THREADS_DEFAULT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The estimated memory used by a line in a run besides its characters: the String
+     * and char[] headers, the reference to it and its share of the key when sorting by key.
+     */
+    private static final int LINE_OVERHEAD = 96;
+
+    /** The buffer size of the temporary files. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The memory the lines being sorted may use, in bytes. */
+    private long memoryBudget = MEMORY_BUDGET_DEFAULT;
+
+    /** The maximum number of runs merged at once. */
+    private int fanIn = FAN_IN_DEFAULT;
+
+    /** The number of threads sorting and merging runs. */
+    private int threads = THREADS_DEFAULT;
+
+    /** The order of the lines, null for String order. */
+    private Comparator<String> comparator;
+
+    /** The key the lines are ordered by, null to use the comparator. */
+    private LineKey lineKey;
+
+    /** If true, the temporary files are gzip compressed. */
+    private boolean compressTempFiles;
+
+    /** Where the temporary files are created, null for the default temporary directory. */
+    private File tempDirectory;
+
+    /** If true, only one of each set of identical lines is written. */
+    private boolean unique;
+
+    /** If true, empty lines are dropped. */
+    private boolean skipEmptyLines;
+
+    /**
+     * Sort a file. The sorted lines are written to a temporary file in the directory of the
+     * output, which replaces the output once the sort succeeds.
+     * @param input the file to sort
+     * @param output where to write the sorted lines, it may be the input file
+     * @throws IOException error reading or writing
+     */
+    public void sort(final File input, final File output) throws IOException {
+        final File partial = createPartialFile(output);
+        try {
+            final TextFileLineIterator lines = new TextFileLineIterator(input);
+            try {
+                writeSorted(lines.iterator(), partial);
+            } finally {
+                lines.close();
+            }
+            replace(partial, output);
+        } finally {
+            partial.delete();
+        }
+    }
+
+    /**
+     * Sort lines. The sorted lines are written to a temporary file in the directory of the
+     * output, which replaces the output once the sort succeeds.
+     * @param lines the lines to sort
+     * @param output where to write the sorted lines
+     * @throws IOException error writing
+     */
+    public void sort(final Iterator<String> lines, final File output) throws IOException {
+        final File partial = createPartialFile(output);
+        try {
+            writeSorted(lines, partial);
+            replace(partial, output);
+        } finally {
+            partial.delete();
+        }
+    }
+
+    /**
+     * Create the file the sorted lines are written to before they replace the output. Its
+     * name ends with the name of the output, so it is compressed the same way.
+     * @param output where the sorted lines go
+     * @return the file
+     * @throws IOException error creating the file
+     */
+    private static File createPartialFile(final File output) throws IOException {
+        return File.createTempFile("sort-", "-" + output.getName(),
+                output.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Replace the output with the file the sorted lines were written to.
+     * @param partial the sorted lines
+     * @param output where the sorted lines go
+     * @throws IOException if the file cannot be renamed
+     */
+    private static void replace(final File partial, final File output) throws IOException {
+        if (!partial.renameTo(output) && !(output.delete() && partial.renameTo(output))) {
+            throw new IOException("Cannot rename " + partial + " to " + output);
+        }
+    }
+
+    /**
+     * Sort lines into a file.
+     * @param lines the lines to sort
+     * @param output the file to write
+     * @throws IOException error writing
+     */
+    private void writeSorted(final Iterator<String> lines, final File output)
+            throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "ExternalSorter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final List<File> tempFiles = new ArrayList<File>();
+        try {
+            final List<Future<File>> runs = new ArrayList<Future<File>>();
+            final long runBudget = Math.max(1, memoryBudget / (threads + 1));
+            int waited = 0;
+            while (true) {
+                final List<String> run = readRun(lines, runBudget);
+                if (!lines.hasNext() && runs.isEmpty()) {
+                    // Everything fit in memory, no temporary file needed
+                    writeRun(run, output, false);
+                    return;
+                }
+                if (!run.isEmpty()) {
+                    final File runFile = createTempFile(tempFiles);
+                    runs.add(executor.submit(new Callable<File>() {
+                        public File call() throws IOException {
+                            writeRun(run, runFile, true);
+                            return runFile;
+                        }
+                    }));
+                }
+                if (!lines.hasNext()) {
+                    break;
+                }
+                // Bound the number of runs held in memory
+                while (runs.size() - waited >= threads) {
+                    get(runs.get(waited++));
+                }
+            }
+            List<File> runFiles = getAll(runs);
+            while (runFiles.size() > fanIn) {
+                final List<Future<File>> merged = new ArrayList<Future<File>>();
+                for (int from = 0; from < runFiles.size(); from += fanIn) {
+                    final List<File> group =
+                            runFiles.subList(from, Math.min(from + fanIn, runFiles.size()));
+                    final File mergedFile = createTempFile(tempFiles);
+                    merged.add(executor.submit(new Callable<File>() {
+                        public File call() throws IOException {
+                            merge(group, mergedFile, true);
+                            for (final File runFile : group) {
+                                runFile.delete();
+                            }
+                            return mergedFile;
+                        }
+                    }));
+                }
+                runFiles = getAll(merged);
+            }
+            merge(runFiles, output, false);
+        } finally {
+            executor.shutdownNow();
+            for (final File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Read lines until the estimated memory they use reaches the budget.
+     * @param lines the lines to read
+     * @param budget the memory budget of the run in bytes
+     * @return the lines read
+     */
+    private List<String> readRun(final Iterator<String> lines, final long budget) {
+        final List<String> run = new ArrayList<String>();
+        long used = 0;
+        while (used < budget && lines.hasNext()) {
+            final String line = lines.next();
+            if (skipEmptyLines && line.length() == 0) {
+                continue;
+            }
+            run.add(line);
+            used += 2L * line.length() + LINE_OVERHEAD;
+        }
+        return run;
+    }
+
+    /**
+     * Sort a run and write it to a file.
+     * @param run the lines of the run
+     * @param file the file to write
+     * @param temporary if true, the file is a temporary file
+     * @throws IOException error writing
+     */
+    private void writeRun(final List<String> run, final File file, final boolean temporary)
+            throws IOException {
+        final String[] lines = run.toArray(new String[run.size()]);
+        run.clear();
+        sortLines(lines);
+        final Writer writer = createWriter(file, temporary);
+        try {
+            String previous = null;
+            for (final String line : lines) {
+                if (unique && line.equals(previous)) {
+                    continue;
+                }
+                writer.write(line);
+                writer.write('\n');
+                previous = line;
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Sort lines in memory. When sorting by key each line is parsed once.
+     * @param lines the lines to sort
+     */
+    private void sortLines(final String[] lines) {
+        if (lineKey != null) {
+            final KeyedLine[] keyed = new KeyedLine[lines.length];
+            for (int i = 0; i < lines.length; i++) {
+                keyed[i] = new KeyedLine(lines[i], lineKey.extract(lines[i], null));
+            }
+            Arrays.sort(keyed);
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = keyed[i].line;
+            }
+        } else if (comparator != null) {
+            Arrays.sort(lines, new Comparator<String>() {
+                public int compare(final String first, final String second) {
+                    final int result = comparator.compare(first, second);
+                    return result == 0 ? first.compareTo(second) : result;
+                }
+            });
+        } else {
+            Arrays.sort(lines);
+        }
+    }
+
+    /**
+     * Merge sorted files into one.
+     * @param inputs the sorted files
+     * @param output the file to write
+     * @param temporary if true, the output is a temporary file
+     * @throws IOException error reading or writing
+     */
+    private void merge(final List<File> inputs, final File output, final boolean temporary)
+            throws IOException {
+        final List<String> filenames = new ArrayList<String>(inputs.size());
+        for (final File input : inputs) {
+            filenames.add(input.getPath());
+        }
+        final PreSortedMergeTextFilesLineIterator merged =
+                new PreSortedMergeTextFilesLineIterator(filenames);
+        merged.setSkipDuplicates(unique);
+        merged.setSkipEmptyLines(skipEmptyLines);
+        merged.setComparator(comparator);
+        merged.setLineKey(lineKey);
+        merged.setMaxOpenFiles(fanIn);
+        merged.setTempDirectory(tempDirectory);
+        merged.setCompressTempFiles(compressTempFiles);
+        // Spread inflating the compressed runs over several threads
+        merged.setReadAhead(compressTempFiles);
+        try {
+            final Writer writer = createWriter(output, temporary);
+            try {
+                for (final String line : merged) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            merged.close();
+        }
+    }
+
+    /**
+     * Create a temporary file, deleted by the sort once it is over.
+     * @param tempFiles the temporary files of the sort
+     * @return the file
+     * @throws IOException error creating the file
+     */
+    private File createTempFile(final List<File> tempFiles) throws IOException {
+        final File file = File.createTempFile("sort-run", compressTempFiles ? ".gz" : ".txt",
+                tempDirectory);
+        tempFiles.add(file);
+        return file;
+    }
+
+    /**
+     * Open a file for writing. Temporary files are compressed if so configured, at the
+     * fastest level since they are read back once; other files are compressed if their
+     * names end in ".gz".
+     * @param file the file to write
+     * @param temporary if true, the file is a temporary file
+     * @return the writer
+     * @throws IOException error opening the file
+     */
+    private Writer createWriter(final File file, final boolean temporary) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (temporary ? compressTempFiles : CompressedStreams.isGzip(file)) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    if (temporary) {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                }
+            };
+        } else {
+            out = new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+    }
+
+    /**
+     * Wait for a task to finish.
+     * @param future the task
+     * @return the file written by the task
+     * @throws IOException the error of the task
+     */
+    private static File get(final Future<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Wait for tasks to finish.
+     * @param futures the tasks
+     * @return the files written by the tasks, in order
+     * @throws IOException the error of a task
+     */
+    private static List<File> getAll(final List<Future<File>> futures) throws IOException {
+        final List<File> files = new ArrayList<File>(futures.size());
+        for (final Future<File> future : futures) {
+            files.add(get(future));
+        }
+        return files;
+    }
+
+    /**
+     * Get the memory the lines being sorted may use.
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory the lines being sorted may use. It is shared by the run being read
+     * and the runs being sorted. Lines are estimated to use twice their length plus about
+     * a hundred bytes.
+     * @param memoryBudget the memory budget in bytes
+     */
+    public void setMemoryBudget(final long memoryBudget) {
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("memoryBudget must be at least 1");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get the maximum number of runs merged at once.
+     * @return the fan-in
+     */
+    public int getFanIn() {
+        return fanIn;
+    }
+
+    /**
+     * Set the maximum number of runs merged at once, which is the maximum number of
+     * temporary files open at once by one merge.
+     * @param fanIn the fan-in
+     */
+    public void setFanIn(final int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fanIn must be at least 2");
+        }
+        this.fanIn = fanIn;
+    }
+
+    /**
+     * Get the number of threads sorting and merging runs.
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads sorting and merging runs.
+     * @param threads the number of threads
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Get the order of the lines.
+     * @return the comparator, null for String order
+     */
+    public Comparator<String> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * Set the order of the lines.
+     * @param comparator the order of the lines, null for String order
+     */
+    public void setComparator(final Comparator<String> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Get the key the lines are ordered by.
+     * @return the key, null if the lines are ordered by the comparator
+     */
+    public LineKey getLineKey() {
+        return lineKey;
+    }
+
+    /**
+     * Set the key the lines are ordered by, which takes precedence over the comparator.
+     * Every line must have the key columns, so empty lines should usually be skipped.
+     * @param lineKey the key of the lines, null to use the comparator
+     */
+    public void setLineKey(final LineKey lineKey) {
+        this.lineKey = lineKey;
+    }
+
+    /**
+     * Get if the temporary files are gzip compressed.
+     * @return if the temporary files are compressed
+     */
+    public boolean isCompressTempFiles() {
+        return compressTempFiles;
+    }
+
+    /**
+     * Set if the temporary files are gzip compressed, which saves disk space and I/O
+     * at the cost of CPU time.
+     * @param compressTempFiles if the temporary files are compressed
+     */
+    public void setCompressTempFiles(final boolean compressTempFiles) {
+        this.compressTempFiles = compressTempFiles;
+    }
+
+    /**
+     * Get where the temporary files are created.
+     * @return the directory, null for the default temporary directory
+     */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * Set where the temporary files are created.
+     * @param tempDirectory the directory, null for the default temporary directory
+     */
+    public void setTempDirectory(final File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Get if only one of each set of identical lines is written.
+     * @return if duplicates are dropped
+     */
+    public boolean isUnique() {
+        return unique;
+    }
+
+    /**
+     * Set if only one of each set of identical lines is written, like "sort -u" but
+     * comparing whole lines.
+     * @param unique if duplicates are dropped
+     */
+    public void setUnique(final boolean unique) {
+        this.unique = unique;
+    }
+
+    /**
+     * Get if empty lines are dropped.
+     * @return if empty lines are dropped
+     */
+    public boolean isSkipEmptyLines() {
+        return skipEmptyLines;
+    }
+
+    /**
+     * Set if empty lines are dropped.
+     * @param skipEmptyLines if empty lines are dropped
+     */
+    public void setSkipEmptyLines(final boolean skipEmptyLines) {
+        this.skipEmptyLines = skipEmptyLines;
+    }
+
+    /**
+     * A line and its parsed key.
+     */
+    private static final class KeyedLine implements Comparable<KeyedLine> {
+        /** The line. */
+        private final String line;
+
+        /** The key of the line. */
+        private final LineKey.Key key;
+
+        /**
+         * Create a keyed line.
+         * @param line the line
+         * @param key the key of the line
+         */
+        private KeyedLine(final String line, final LineKey.Key key) {
+            super();
+            this.line = line;
+            this.key = key;
+        }
+
+        /**
+         * Compare by key, then as Strings.
+         * @param other the other line
+         * @return the comparison result
+         */
+        public int compareTo(final KeyedLine other) {
+            final int result = key.compareTo(other.key);
+            return result == 0 ? line.compareTo(other.line) : result;
+        }
+    }
+}
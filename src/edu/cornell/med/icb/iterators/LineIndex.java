@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.CompressedStreams;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The byte offset of every Nth line of a text file, so reading can start at any line or
+ * byte range without streaming the file from the top. Lines end with '\n', '\r' or "\r\n",
+ * the way {@link TextFileLineIterator} splits them.
+ * <p>
+ * An index is built with {@link #build(File, int)} and kept next to the text file in a
+ * side file (see {@link #getIndexFile(File)}) holding the offsets as delta-encoded variable
+ * length longs; {@link #open(File, int)} reuses the side file while it matches the text
+ * file and rebuilds it otherwise. Starting at line K reads at most N - 1 lines past the
+ * closest indexed line. Splitting a file between workers is a matter of handing each
+ * one a line range, or a byte range, see {@link #openByteRange(long, long)}.
+ * <p>
+ * Only uncompressed files can be indexed.
+ */
+public final class LineIndex {
+    /** The default number of lines between indexed offsets. */
+    public static final int INTERVAL_DEFAULT = 1024;
+
+    /** The extension of the index side file. */
+    public static final String INDEX_EXTENSION = ".lidx";
+
+    /** Identifies index side files. */
+    private static final int MAGIC = 0x4C494458;
+
+    /** The size of the buffers used to scan the file. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The indexed file. */
+    private final File file;
+
+    /** The number of lines between indexed offsets. */
+    private final int interval;
+
+    /** The number of lines of the file. */
+    private final long numLines;
+
+    /** The length of the file when it was indexed. */
+    private final long fileLength;
+
+    /** The modification time of the file when it was indexed. */
+    private final long lastModified;
+
+    /** The byte offset of lines 0, interval, 2 * interval and so on. */
+    private final long[] offsets;
+
+    /**
+     * Create an index.
+     * @param file the indexed file
+     * @param interval the number of lines between indexed offsets
+     * @param numLines the number of lines of the file
+     * @param fileLength the length of the file when it was indexed
+     * @param lastModified the modification time of the file when it was indexed
+     * @param offsets the byte offset of every interval-th line
+     */
+    private LineIndex(final File file, final int interval, final long numLines,
+                      final long fileLength, final long lastModified, final long[] offsets) {
+        super();
+        this.file = file;
+        this.interval = interval;
+        this.numLines = numLines;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Get the side file the index of a text file is saved to.
+     * @param file the text file
+     * @return the index file
+     */
+    public static File getIndexFile(final File file) {
+        return new File(file.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Get the index of a text file, loading it from the side file if it is up to date and
+     * was built with the same interval, building and saving it otherwise.
+     * @param file the text file
+     * @param interval the number of lines between indexed offsets
+     * @return the index
+     * @throws IOException error reading the file or writing the index
+     */
+    public static LineIndex open(final File file, final int interval) throws IOException {
+        final File indexFile = getIndexFile(file);
+        if (indexFile.exists()) {
+            final LineIndex index = load(file, indexFile);
+            if (index != null && index.interval == interval && index.isUpToDate()) {
+                return index;
+            }
+        }
+        final LineIndex index = build(file, interval);
+        index.save(indexFile);
+        return index;
+    }
+
+    /**
+     * Build the index of a text file by reading it once.
+     * @param file the text file
+     * @param interval the number of lines between indexed offsets
+     * @return the index
+     * @throws IOException error reading the file
+     */
+    public static LineIndex build(final File file, final int interval) throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be at least 1");
+        }
+        if (CompressedStreams.isGzip(file)) {
+            throw new IllegalArgumentException("Compressed files cannot be indexed: " + file);
+        }
+        final long lastModified = file.lastModified();
+        final LongArrayList offsets = new LongArrayList();
+        final InputStream in = new FileInputStream(file);
+        long line = 0;
+        long position = 0;
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            boolean lineStart = true;
+            int previous = -1;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++, position++) {
+                    final byte b = buffer[i];
+                    if (lineStart && !(previous == '\r' && b == '\n')) {
+                        if (line % interval == 0) {
+                            offsets.add(position);
+                        }
+                        line++;
+                        lineStart = false;
+                    }
+                    if (b == '\n' || b == '\r') {
+                        lineStart = true;
+                    }
+                    previous = b;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new LineIndex(file, interval, line, position, lastModified,
+                offsets.toLongArray());
+    }
+
+    /**
+     * Load an index from its side file.
+     * @param file the indexed file
+     * @param indexFile the side file
+     * @return the index, or null if indexFile is not an index or is truncated
+     * @throws IOException error reading the index
+     */
+    private static LineIndex load(final File file, final File indexFile) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            final int interval = in.readInt();
+            final long numLines = in.readLong();
+            final long fileLength = in.readLong();
+            final long lastModified = in.readLong();
+            final int numOffsets = in.readInt();
+            if (interval < 1 || numLines < 0 || fileLength < 0
+                    || numOffsets != (numLines + interval - 1) / interval) {
+                return null;
+            }
+            final long[] offsets = new long[numOffsets];
+            long offset = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                offset += readVarLong(in);
+                offsets[i] = offset;
+            }
+            return new LineIndex(file, interval, numLines, fileLength, lastModified, offsets);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the index. It is written to a temporary file next to indexFile which then
+     * replaces indexFile, so that a failed save never leaves a partial index behind.
+     * @param indexFile the file to write the index to
+     * @throws IOException error writing the index
+     */
+    public void save(final File indexFile) throws IOException {
+        final File tempFile = File.createTempFile(indexFile.getName(), ".tmp",
+                indexFile.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        try {
+            write(tempFile);
+            written = true;
+        } finally {
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(indexFile)
+                && !(indexFile.delete() && tempFile.renameTo(indexFile))) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Write the index to a file.
+     * @param indexFile the file to write the index to
+     * @throws IOException error writing the index
+     */
+    private void write(final File indexFile) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(interval);
+            out.writeLong(numLines);
+            out.writeLong(fileLength);
+            out.writeLong(lastModified);
+            out.writeInt(offsets.length);
+            long previous = 0;
+            for (final long offset : offsets) {
+                writeVarLong(out, offset - previous);
+                previous = offset;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a non negative long in 7 bit groups, low bits first.
+     * @param out where to write
+     * @param value the value
+     * @throws IOException error writing
+     */
+    private static void writeVarLong(final DataOutputStream out, final long value)
+            throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    /**
+     * Read a long written by {@link #writeVarLong(DataOutputStream, long)}.
+     * @param in where to read
+     * @return the value
+     * @throws IOException error reading
+     */
+    private static long readVarLong(final DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Get if the file has the length and modification time it had when it was indexed.
+     * @return true if the index matches the file
+     */
+    public boolean isUpToDate() {
+        return file.length() == fileLength && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Get the number of lines between indexed offsets.
+     * @return the interval
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Get the number of lines of the file.
+     * @return the number of lines
+     */
+    public long getNumLines() {
+        return numLines;
+    }
+
+    /**
+     * Get the byte offset of a line.
+     * @param line the line number, from 0; numLines gives the length of the file
+     * @return the offset of the first byte of the line
+     * @throws IOException error reading the file
+     */
+    public long getLineOffset(final long line) throws IOException {
+        if (line < 0 || line > numLines) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + numLines);
+        }
+        if (line == numLines) {
+            return fileLength;
+        }
+        final long offset = offsets[(int) (line / interval)];
+        final int skip = (int) (line % interval);
+        if (skip == 0) {
+            return offset;
+        }
+        final InputStream in = openAt(file, offset);
+        try {
+            return Math.min(skipLines(in, offset, skip), fileLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the offset of the first line that starts at or after a byte offset.
+     * @param position the byte offset
+     * @return the offset of the line, or the length of the file if no line starts there
+     * @throws IOException error reading the file
+     */
+    public long getNextLineStart(final long position) throws IOException {
+        return nextLineStart(file, fileLength, position);
+    }
+
+    /**
+     * Get the offset of the first line of a file that starts at or after a byte offset.
+     * @param file the file
+     * @param fileLength the length of the file
+     * @param position the byte offset
+     * @return the offset of the line, or fileLength if no line starts there
+     * @throws IOException error reading the file
+     */
+    static long nextLineStart(final File file, final long fileLength, final long position)
+            throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        if (position >= fileLength) {
+            return fileLength;
+        }
+        final InputStream in = openAt(file, position - 1);
+        try {
+            final int previous = in.read();
+            if (previous == '\n') {
+                return position;
+            }
+            if (previous == '\r') {
+                // Unless position is inside a "\r\n" terminator, a line starts here
+                return in.read() == '\n' ? position + 1 : position;
+            }
+            return Math.min(skipLines(in, position, 1), fileLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Open a file positioned at a byte offset.
+     * @param file the file
+     * @param offset the offset
+     * @return the stream
+     * @throws IOException error opening the file
+     */
+    static InputStream openAt(final File file, final long offset) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+        return new BufferedInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Read past a number of line terminators.
+     * @param in the file, positioned at position
+     * @param position the current offset
+     * @param lines the number of lines to skip
+     * @return the offset after the last skipped line, or of the end of the file
+     * @throws IOException error reading the file
+     */
+    private static long skipLines(final InputStream in, final long position, final int lines)
+            throws IOException {
+        long offset = position;
+        int remaining = lines;
+        int b;
+        while (remaining > 0 && (b = in.read()) != -1) {
+            offset++;
+            if (b == '\n') {
+                remaining--;
+            } else if (b == '\r') {
+                remaining--;
+                in.mark(1);
+                if (in.read() == '\n') {
+                    offset++;
+                } else {
+                    in.reset();
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Open the lines of the file that start in a byte range, as with input splits: the
+     * line that contains start is skipped unless it starts there, and the line that
+     * contains end - 1 is read to its end. Splitting a file into adjacent byte ranges
+     * reads every line exactly once.
+     * @param start the first byte offset
+     * @param end the byte offset after the range
+     * @return the bytes of the lines
+     * @throws IOException error reading the file
+     */
+    public InputStream openByteRange(final long start, final long end) throws IOException {
+        final long from = getNextLineStart(start);
+        final long to = Math.max(from, getNextLineStart(end));
+        return new BoundedInputStream(openAt(file, from), to - from);
+    }
+
+    /**
+     * Open a range of lines of the file.
+     * @param firstLine the first line to read, from 0
+     * @param count the maximum number of lines to read
+     * @return the bytes of the lines
+     * @throws IOException error reading the file
+     */
+    public InputStream openLines(final long firstLine, final long count) throws IOException {
+        final long from = getLineOffset(firstLine);
+        final long to = getLineOffset(Math.min(numLines, firstLine + count));
+        return new BoundedInputStream(openAt(file, from), to - from);
+    }
+
+    /**
+     * Iterate the lines of the file from a given line to the end.
+     * @param firstLine the first line to read, from 0
+     * @return the lines
+     * @throws IOException error reading the file
+     */
+    public TextFileLineIterator lines(final long firstLine) throws IOException {
+        return new TextFileLineIterator(openAt(file, getLineOffset(firstLine)));
+    }
+
+    /**
+     * Iterate a range of lines of the file.
+     * @param firstLine the first line to read, from 0
+     * @param count the maximum number of lines to read
+     * @return the lines
+     * @throws IOException error reading the file
+     */
+    public TextFileLineIterator lines(final long firstLine, final long count)
+            throws IOException {
+        return new TextFileLineIterator(openLines(firstLine, count));
+    }
+}
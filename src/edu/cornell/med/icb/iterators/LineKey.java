@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.NumberParser;
+import edu.cornell.med.icb.util.ICBStringUtils;
+
+import java.util.Arrays;
+
+/**
+ * A sort key made of columns of a delimited line, such as "column 2 as a long, then
+ * column 0 as a String". Columns are numbered from 0, as in
+ * {@link edu.cornell.med.icb.io.TSVReader#setProjection(int...)}. The columns are
+ * located by scanning the line once, skipping delimiters preceded by the escape
+ * character the way {@link edu.cornell.med.icb.io.TSVReader} does, and escaped columns
+ * are unescaped before they are used. Numeric columns are parsed with
+ * {@link NumberParser}, so a line is parsed once into a {@link Key} which can then be
+ * compared any number of times. Keys are compared column by column in the order the
+ * columns were added, numbers numerically and Strings by {@link String#compareTo}.
+ * All the columns must be added before the first key is extracted.
+ * <pre>
+ * final LineKey key = new LineKey().addLongColumn(2).addStringColumn(0);
+ * </pre>
+ */
+public final class LineKey {
+    /** A column compared as a String. */
+    private static final int STRING = 0;
+
+    /** A column compared as a long. */
+    private static final int LONG = 1;
+
+    /** A column compared as a double. */
+    private static final int DOUBLE = 2;
+
+    /** The default escape character, the same as TSVReader's. */
+    private static final char ESCAPE_CHAR_DEFAULT = '\\';
+
+    /** The column delimiter. */
+    private final char delimiter;
+
+    /** The escape character, null if the lines are not escaped. */
+    private Character escapeChar = ESCAPE_CHAR_DEFAULT;
+
+    /** The column numbers of the key, in comparison order. */
+    private int[] columns = new int[0];
+
+    /** The type of each key column. */
+    private int[] types = new int[0];
+
+    /**
+     * Create an empty key for tab delimited lines.
+     */
+    public LineKey() {
+        this('\t');
+    }
+
+    /**
+     * Create an empty key.
+     * @param delimiterVal the column delimiter
+     */
+    public LineKey(final char delimiterVal) {
+        super();
+        this.delimiter = delimiterVal;
+    }
+
+    /**
+     * Set the escape character of the lines. It must be set before the first key is
+     * extracted.
+     * @param escapeCharVal the escape character, null if the lines are not escaped
+     * @return this LineKey for command chaining
+     */
+    public LineKey setEscapeChar(final Character escapeCharVal) {
+        this.escapeChar = escapeCharVal;
+        return this;
+    }
+
+    /**
+     * Get the escape character of the lines.
+     * @return the escape character, null if the lines are not escaped
+     */
+    public Character getEscapeChar() {
+        return escapeChar;
+    }
+
+    /**
+     * Add a column compared as a String.
+     * @param column the column number, starting at 0
+     * @return this LineKey for command chaining
+     */
+    public LineKey addStringColumn(final int column) {
+        return addColumn(column, STRING);
+    }
+
+    /**
+     * Add a column compared as a long.
+     * @param column the column number, starting at 0
+     * @return this LineKey for command chaining
+     */
+    public LineKey addLongColumn(final int column) {
+        return addColumn(column, LONG);
+    }
+
+    /**
+     * Add a column compared as a double.
+     * @param column the column number, starting at 0
+     * @return this LineKey for command chaining
+     */
+    public LineKey addDoubleColumn(final int column) {
+        return addColumn(column, DOUBLE);
+    }
+
+    /**
+     * Add a column.
+     * @param column the column number
+     * @param type the type of the column
+     * @return this LineKey for command chaining
+     */
+    private LineKey addColumn(final int column, final int type) {
+        if (column < 0) {
+            throw new IllegalArgumentException("Invalid column number " + column);
+        }
+        columns = Arrays.copyOf(columns, columns.length + 1);
+        columns[columns.length - 1] = column;
+        types = Arrays.copyOf(types, types.length + 1);
+        types[types.length - 1] = type;
+        return this;
+    }
+
+    /**
+     * Get the number of columns in the key.
+     * @return the number of columns
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * Parse the key of a line.
+     * @param line the line
+     * @param reuse a key previously returned by this method to overwrite, or null
+     * @return the key of the line, reuse if it was given
+     * @throws IllegalArgumentException if the line lacks a key column
+     * @throws NumberFormatException if a numeric key column is not a valid number
+     */
+    public Key extract(final CharSequence line, final Key reuse) {
+        final Key key = reuse == null ? new Key(columns.length) : reuse;
+        for (int i = 0; i < columns.length; i++) {
+            final int column = columns[i];
+            int start = 0;
+            for (int skipped = 0; skipped < column; skipped++) {
+                start = indexOfDelimiter(line, start);
+                if (start == line.length()) {
+                    throw new IllegalArgumentException(
+                            "Line has no column " + column + ": " + line);
+                }
+                start++;
+            }
+            final int end = indexOfDelimiter(line, start);
+            CharSequence value = line;
+            int valueStart = start;
+            int valueEnd = end;
+            if (isEscaped(line, start, end)) {
+                value = ICBStringUtils.unescape(line.subSequence(start, end).toString(),
+                        escapeChar);
+                valueStart = 0;
+                valueEnd = value.length();
+            }
+            switch (types[i]) {
+                case LONG:
+                    key.longs[i] = NumberParser.parseLong(value, valueStart, valueEnd);
+                    break;
+                case DOUBLE:
+                    key.doubles[i] = NumberParser.parseDouble(value, valueStart, valueEnd);
+                    break;
+                default:
+                    key.strings[i] = value.subSequence(valueStart, valueEnd).toString();
+                    break;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Find the next delimiter of a line that is not escaped.
+     * @param line the line
+     * @param from where to start looking, at the start of a column
+     * @return the index of the delimiter, or the length of the line if there is none
+     */
+    private int indexOfDelimiter(final CharSequence line, final int from) {
+        final int length = line.length();
+        final boolean useEscape = escapeChar != null && escapeChar != delimiter;
+        final char escape = useEscape ? escapeChar : 0;
+        boolean inEscape = false;
+        for (int pos = from; pos < length; pos++) {
+            final char curChar = line.charAt(pos);
+            if (!inEscape && curChar == delimiter) {
+                return pos;
+            }
+            inEscape = useEscape && !inEscape && curChar == escape;
+        }
+        return length;
+    }
+
+    /**
+     * Check if a column contains the escape character, so it must be unescaped.
+     * @param line the line
+     * @param start the index of the first character of the column
+     * @param end the index just past the last character of the column
+     * @return true if the column contains the escape character
+     */
+    private boolean isEscaped(final CharSequence line, final int start, final int end) {
+        if (escapeChar == null || escapeChar == delimiter) {
+            return false;
+        }
+        for (int pos = start; pos < end; pos++) {
+            if (line.charAt(pos) == escapeChar) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The parsed key of a line.
+     */
+    public final class Key implements Comparable<Key> {
+        /** The values of the long columns, by key column. */
+        private final long[] longs;
+
+        /** The values of the double columns, by key column. */
+        private final double[] doubles;
+
+        /** The values of the String columns, by key column. */
+        private final String[] strings;
+
+        /**
+         * Create a key.
+         * @param size the number of key columns
+         */
+        private Key(final int size) {
+            super();
+            longs = new long[size];
+            doubles = new double[size];
+            strings = new String[size];
+        }
+
+        /**
+         * Compare with another key of the same LineKey, column by column.
+         * @param other the other key
+         * @return a negative number, zero, or a positive number as this key is less than,
+         * equal to, or greater than the other
+         */
+        public int compareTo(final Key other) {
+            for (int i = 0; i < types.length; i++) {
+                final int result;
+                switch (types[i]) {
+                    case LONG:
+                        result = Long.compare(longs[i], other.longs[i]);
+                        break;
+                    case DOUBLE:
+                        result = Double.compare(doubles[i], other.doubles[i]);
+                        break;
+                    default:
+                        result = strings[i].compareTo(other.strings[i]);
+                        break;
+                }
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+    }
+}
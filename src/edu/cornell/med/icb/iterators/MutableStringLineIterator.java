@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.CompressedStreams;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Line-by-line iteration through a text file without creating a String per line.
+ * Each line is decoded into the same {@link MutableString}, which is overwritten by
+ * the next call to the iterator's hasNext(); copy it if it must be kept.
+ * <p>
+ * Lines are split on the raw bytes, so the charset must encode ASCII as single bytes
+ * (UTF-8, ISO-8859-1, US-ASCII, windows-1252 and the like). ISO-8859-1 lines and lines
+ * that are pure ASCII are copied straight into the MutableString without going through
+ * the charset decoder. Lines end with '\n', '\r' or "\r\n", like
+ * {@link java.io.BufferedReader#readLine()}, and invalid input is replaced the way
+ * {@link java.io.InputStreamReader} replaces it.
+ * <p>
+ * If during the reading of the file there is an IOException, the iterator will wrap it
+ * in an IllegalArgumentException, like {@link TextFileLineIterator}.
+ */
+public class MutableStringLineIterator implements Iterable<MutableString>, Closeable {
+    /** The default size of the byte buffer. */
+    public static final int BUFFER_SIZE_DEFAULT = 65536;
+
+    /** The stream being read. */
+    private final InputStream in;
+
+    /** The decoder for lines that are not plain ASCII. */
+    private final CharsetDecoder decoder;
+
+    /** True if the charset is ISO-8859-1, where every byte is the char of the same value. */
+    private final boolean latin1;
+
+    /** The line being returned. */
+    private final MutableString line = new MutableString();
+
+    /** The bytes read but not yet returned are buffer[start, end). */
+    private byte[] buffer;
+
+    /** The position of the first unread byte in buffer. */
+    private int start;
+
+    /** The position after the last byte read into buffer. */
+    private int end;
+
+    /** True if the last line ended with '\r', so a following '\n' must be skipped. */
+    private boolean skipLineFeed;
+
+    /** True once the end of the stream has been read. */
+    private boolean endOfStream;
+
+    /**
+     * Set to true once the input closes, either manually or automatically it won't close "in"
+     * more than once.
+     */
+    private boolean closed;
+
+    /**
+     * Create the object using a file, decoding it with the platform default charset.
+     * Files with names ending in ".gz" are decompressed.
+     * @param fileToRead the file to read
+     * @throws IOException error opening the file to read
+     */
+    public MutableStringLineIterator(final File fileToRead) throws IOException {
+        this(fileToRead, Charset.defaultCharset());
+    }
+
+    /**
+     * Create the object using a file. Files with names ending in ".gz" are decompressed.
+     * @param fileToRead the file to read
+     * @param charset the charset of the file
+     * @throws IOException error opening the file to read
+     */
+    public MutableStringLineIterator(final File fileToRead, final Charset charset)
+            throws IOException {
+        this(CompressedStreams.open(fileToRead), charset, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create the object using an InputStream.
+     * @param stream the stream to read
+     * @param charset the charset of the stream
+     */
+    public MutableStringLineIterator(final InputStream stream, final Charset charset) {
+        this(stream, charset, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create the object using an InputStream.
+     * @param stream the stream to read
+     * @param charset the charset of the stream
+     * @param bufferSize the initial size of the byte buffer, it grows to hold the longest line
+     */
+    public MutableStringLineIterator(final InputStream stream, final Charset charset,
+                                     final int bufferSize) {
+        super();
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        if (!isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException(
+                    "Charset " + charset.name() + " does not encode ASCII as single bytes");
+        }
+        this.in = stream;
+        this.buffer = new byte[bufferSize];
+        this.latin1 = "ISO-8859-1".equals(charset.name());
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Get if a charset encodes every ASCII character as the single byte of the same value.
+     * @param charset the charset
+     * @return true if ASCII text reads the same in this charset
+     */
+    static boolean isAsciiCompatible(final Charset charset) {
+        final byte[] ascii = new byte[128];
+        final char[] chars = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+            chars[i] = (char) i;
+        }
+        return charset.canEncode()
+                && Arrays.equals(ascii, new String(chars).getBytes(charset))
+                && new String(ascii, charset).equals(new String(chars));
+    }
+
+    /**
+     * This is the one method of the Iterable interface. All the iterators share the stream
+     * and the returned MutableString.
+     * @return the iterator
+     */
+    public Iterator<MutableString> iterator() {
+        return new MutableStringIterator();
+    }
+
+    /**
+     * Read the next line into a MutableString.
+     * @param result where to store the line, its previous contents are replaced
+     * @return false at the end of the stream, in which case result is unchanged
+     * @throws IOException error reading the stream
+     */
+    public boolean readLine(final MutableString result) throws IOException {
+        if (closed) {
+            return false;
+        }
+        int scan = start;
+        while (true) {
+            if (scan == end) {
+                if (endOfStream) {
+                    if (start == end) {
+                        return false;
+                    }
+                    decode(start, end, result);
+                    start = end;
+                    return true;
+                }
+                scan -= start;
+                fill();
+                scan += start;
+                continue;
+            }
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (buffer[scan] == '\n') {
+                    start = ++scan;
+                    continue;
+                }
+            }
+            final byte b = buffer[scan];
+            if (b == '\n' || b == '\r') {
+                decode(start, scan, result);
+                skipLineFeed = b == '\r';
+                start = scan + 1;
+                return true;
+            }
+            scan++;
+        }
+    }
+
+    /**
+     * Read more bytes into the buffer, first moving the unread bytes to its start and
+     * growing it if they fill it.
+     * @throws IOException error reading the stream
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        final int count = in.read(buffer, end, buffer.length - end);
+        if (count == -1) {
+            endOfStream = true;
+        } else {
+            end += count;
+        }
+    }
+
+    /**
+     * Decode bytes into a MutableString.
+     * @param from the position of the first byte in buffer
+     * @param to the position after the last byte
+     * @param result where to store the chars
+     */
+    private void decode(final int from, final int to, final MutableString result) {
+        final int length = to - from;
+        result.length(length);
+        final char[] chars = result.array();
+        final byte[] bytes = buffer;
+        if (latin1) {
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (bytes[from + i] & 0xFF);
+            }
+            return;
+        }
+        int ascii = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = bytes[from + i];
+            ascii |= b;
+            chars[i] = (char) b;
+        }
+        if (ascii >= 0) {
+            return;
+        }
+        // Not plain ASCII, go through the decoder
+        final int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        result.length(maxChars);
+        final CharBuffer out = CharBuffer.wrap(result.array(), 0, maxChars);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, from, length), out, true);
+        decoder.flush(out);
+        result.length(out.position());
+    }
+
+    /**
+     * For either manual or automatic closing.
+     * @throws IOException won't get thrown but included for the interface
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            IOUtils.closeQuietly(in);
+            closed = true;
+        }
+    }
+
+    /**
+     * This non-static member class is the iterator implementation.
+     */
+    class MutableStringIterator implements Iterator<MutableString> {
+        /** True if {@link #line} holds a line that next() has not returned yet. */
+        private boolean fetched;
+
+        /** True once the end of the stream has been reached. */
+        private boolean done;
+
+        /**
+         * Read the next line into the shared MutableString if it has not been read yet.
+         * @return if we have a next line
+         */
+        public boolean hasNext() {
+            if (!fetched && !done) {
+                try {
+                    fetched = readLine(line);
+                    if (!fetched) {
+                        done = true;
+                        close();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            return fetched;
+        }
+
+        /**
+         * Return the next line. The MutableString is reused for every line.
+         * @return the next line
+         */
+        public MutableString next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            fetched = false;
+            return line;
+        }
+
+        /**
+         * Remove not supported.
+         * The file is read-only; we don't allow lines to be removed.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -18,24 +18,91 @@
 
 package edu.cornell.med.icb.iterators;
 
+import edu.cornell.med.icb.io.CompressedStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.zip.GZIPInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Take a list of pre-sorted input files and return their lines in sorted order.
  * By default, duplicates and blank lines are skipped - which can be adjusted.
+ * Lines are merged in String order unless a {@link #setComparator(Comparator) comparator}
+ * or a {@link #setLineKey(LineKey) key} matching the order of the files is set. A key is
+ * parsed once per line and kept with the file's next line, so the merge never parses a
+ * line again to compare it. Lines of different files that compare equal are taken in
+ * String order, so duplicates are next to each other, and skipped, as long as each file
+ * also orders such lines as Strings.
+ * <p>
+ * Files given by name are opened when the first line is read. At most
+ * {@link #setMaxOpenFiles(int) max open files} are open at once: above that, groups of
+ * files are first merged into temporary files, in as many passes as needed, so the
+ * number of file descriptors, inflaters and buffers stays bounded. Temporary files are
+ * created in the {@link #setTempDirectory(File) temporary directory}, gzip compressed if
+ * {@link #setCompressTempFiles(boolean) so configured}, and deleted once they have been
+ * read or the merge is closed. Streams are already open, so they are not limited. Each
+ * file is decompressed on the thread reading it, since many files are read at once.
+ * <p>
+ * With {@link #setReadAhead(boolean) read ahead} each input is read, decompressed and
+ * split into lines by a {@link PrefetchingIterator} on its own thread, so the merging
+ * thread only compares lines. {@link #close()} stops those threads and closes the
+ * inputs when the merge is abandoned before its end.
  * @author Kevin Dorff
  */
-public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, Iterator<String> {
+public class PreSortedMergeTextFilesLineIterator
+        implements Iterable<String>, Iterator<String>, Closeable {
+
+    /** The default maximum number of files open at once. */
+    public static final int MAX_OPEN_FILES_DEFAULT = 256;
+
+    /** The buffer size of the temporary files. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The number of lines per batch read ahead from each input. */
+    private static final int READ_AHEAD_BATCH_SIZE = 1024;
+
+    /** The number of batches read ahead from each input. */
+    private static final int READ_AHEAD_BATCHES = 2;
+
+    /** The readers of the inputs. */
+    private TextFileLineIterator[] readers;
+
+    /** If true, each input is read on its own thread. */
+    private boolean readAhead;
+
+    /** The files to merge, null if merging streams. */
+    private File[] inputFiles;
+
+    /** The file each line iterator reads, null if merging streams. */
+    private File[] openFiles;
+
+    /** The temporary files of the merge passes that have not been deleted yet. */
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    /** The maximum number of files open at once. */
+    private int maxOpenFiles = MAX_OPEN_FILES_DEFAULT;
+
+    /** Where the temporary files are created, null for the default temporary directory. */
+    private File tempDirectory;
+
+    /** If true, the temporary files are gzip compressed. */
+    private boolean compressTempFiles;
 
     /** The line TextFileLineIterator iterators for the open files. */
     private Iterator<String>[] lineIterators;
@@ -44,10 +111,22 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
     private String[] nextLines;
 
     /**
-     * The sorted list of nextLines so we know which to select from next. The size of
-     * this will generally be the size of lineIterators.
+     * A binary heap of the indexes of the files that have a next line, ordered by their
+     * next line, so the smallest line is found in O(log k) for k files.
+     */
+    private int[] heap;
+
+    /** The number of files in the heap. */
+    private int heapSize;
+
+    /** True once the first line of each file has been read into the heap. */
+    private boolean started;
+
+    /**
+     * True if the line at the top of the heap has been returned by next(), so its file
+     * must move to its next line.
      */
-    private List<String> sortedList;
+    private boolean topConsumed;
 
     /**
      * The last line that was returned with next(). This is kept so we don't
@@ -61,6 +140,15 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
     /** If true, empty lines will be skipped. */
     private boolean skipEmptyLines;
 
+    /** The order of the lines, null for String order. */
+    private Comparator<String> comparator;
+
+    /** The key the lines are ordered by, null to use the comparator. */
+    private LineKey lineKey;
+
+    /** The key of the next line of each of the open files, when merging by key. */
+    private LineKey.Key[] nextKeys;
+
     /**
      * Constructor with a String array of filenames.
      * @param inputFiles the filenames
@@ -106,27 +194,25 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
     }
 
     /**
-     * Initialize with a String array of filenames.
+     * Initialize with a String array of filenames. The files are opened by
+     * {@link #openFiles()} when the first line is read.
      * @param inputFiles the filenames
      * @throws IOException error reading
      */
     private void initialize(final String[] inputFiles) throws IOException {
-        final InputStream[] inputStreams = new InputStream[inputFiles.length];
+        if (inputFiles.length == 0) {
+            throw new FileNotFoundException("No specified files");
+        }
+        this.inputFiles = new File[inputFiles.length];
         for (int pos = 0; pos < inputFiles.length; pos++) {
             final String inputFile = inputFiles[pos];
             final File inputFileFile = new File(inputFile);
             if (!(inputFileFile.exists() && inputFileFile.isFile())) {
                 throw new FileNotFoundException("Input file " + inputFile + " does not exist.");
             }
-            final InputStream is;
-            if (inputFile.endsWith(".gz")) {
-                is = new GZIPInputStream(new FileInputStream(inputFile));
-            } else {
-                is = new FileInputStream(inputFile);
-            }
-            inputStreams[pos] = is;
+            this.inputFiles[pos] = inputFileFile;
         }
-        initialize(inputStreams);
+        initializeDefaults();
     }
 
     /**
@@ -134,31 +220,195 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
      * @param inputStreams the input streams to read from
      * @throws IOException error reading (opening the TextFileLineIterators)
      */
-    @SuppressWarnings("unchecked")
     private void initialize(final InputStream[] inputStreams) throws IOException {
         if (inputStreams.length == 0) {
             throw new FileNotFoundException("No specified files");
         }
-        lineIterators = new Iterator[inputStreams.length];
-        nextLines = new String[inputStreams.length];
-        sortedList = new ArrayList<String>(inputStreams.length);
-        int pos = 0;
-        for (final InputStream inputStream : inputStreams) {
-            lineIterators[pos++] = new TextFileLineIterator(inputStream).iterator();
-        }
+        initializeIterators(inputStreams);
+        initializeDefaults();
+    }
+
+    /**
+     * Set the options to their defaults.
+     */
+    private void initializeDefaults() {
         lastLine = "";
         skipDuplicates = true;
         skipEmptyLines = true;
     }
 
+    /**
+     * Create the line iterators.
+     * @param inputStreams the input streams to read from
+     */
+    @SuppressWarnings("unchecked")
+    private void initializeIterators(final InputStream[] inputStreams) {
+        lineIterators = new Iterator[inputStreams.length];
+        readers = new TextFileLineIterator[inputStreams.length];
+        nextLines = new String[inputStreams.length];
+        heap = new int[inputStreams.length];
+        for (int pos = 0; pos < inputStreams.length; pos++) {
+            readers[pos] = new TextFileLineIterator(inputStreams[pos]);
+            lineIterators[pos] = readers[pos].iterator();
+        }
+    }
+
+    /**
+     * Open the files, first merging them into temporary files while there are more than
+     * the maximum number of open files.
+     * @throws IOException error reading or writing
+     */
+    private void openFiles() throws IOException {
+        List<File> files = Arrays.asList(inputFiles);
+        while (files.size() > maxOpenFiles) {
+            files = mergePass(files);
+        }
+        final InputStream[] inputStreams = new InputStream[files.size()];
+        try {
+            for (int pos = 0; pos < inputStreams.length; pos++) {
+                inputStreams[pos] = CompressedStreams.open(files.get(pos),
+                        CompressedStreams.BUFFER_SIZE_DEFAULT, false, 1);
+            }
+        } catch (IOException e) {
+            for (final InputStream inputStream : inputStreams) {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            }
+            throw e;
+        }
+        openFiles = files.toArray(new File[files.size()]);
+        initializeIterators(inputStreams);
+    }
+
+    /**
+     * Merge groups of at most the maximum number of open files into temporary files,
+     * with the same options as this merge, including its temporary file settings.
+     * @param files the files to merge
+     * @return the temporary files, one per group
+     * @throws IOException error reading or writing
+     */
+    private List<File> mergePass(final List<File> files) throws IOException {
+        final List<File> merged = new ArrayList<File>();
+        for (int from = 0; from < files.size(); from += maxOpenFiles) {
+            final List<File> group = files.subList(from, Math.min(from + maxOpenFiles,
+                    files.size()));
+            final List<String> filenames = new ArrayList<String>(group.size());
+            for (final File file : group) {
+                filenames.add(file.getPath());
+            }
+            final PreSortedMergeTextFilesLineIterator groupLines =
+                    new PreSortedMergeTextFilesLineIterator(filenames);
+            groupLines.setSkipDuplicates(skipDuplicates);
+            groupLines.setSkipEmptyLines(skipEmptyLines);
+            groupLines.setComparator(comparator);
+            groupLines.setLineKey(lineKey);
+            groupLines.setReadAhead(readAhead);
+            groupLines.setMaxOpenFiles(maxOpenFiles);
+            groupLines.setTempDirectory(tempDirectory);
+            groupLines.setCompressTempFiles(compressTempFiles);
+            final File tempFile = File.createTempFile("merge", compressTempFiles ? ".gz" : ".txt",
+                    tempDirectory);
+            tempFiles.add(tempFile);
+            try {
+                final Writer writer = createTempWriter(tempFile);
+                try {
+                    for (final String line : groupLines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                groupLines.close();
+            }
+            for (final File file : group) {
+                deleteTempFile(file);
+            }
+            merged.add(tempFile);
+        }
+        return merged;
+    }
+
+    /**
+     * Open a temporary file for writing, compressed at the fastest level if so configured
+     * since it is read back once.
+     * @param file the file to write
+     * @return the writer
+     * @throws IOException error opening the file
+     */
+    private Writer createTempWriter(final File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (compressTempFiles) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        } else {
+            out = new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+    }
+
+    /**
+     * Delete a file if it is one of the temporary files of the merge passes.
+     * @param file the file
+     */
+    private void deleteTempFile(final File file) {
+        if (tempFiles.remove(file)) {
+            file.delete();
+        }
+    }
+
     /**
      * If there is another line to be read.
      * @return true if there is another line to be read
      */
     public boolean hasNext() {
-        fetchNexts();
-        return someReadData();
-        // No unread data. See if there os more data to read
+        if (!started) {
+            started = true;
+            if (inputFiles != null) {
+                try {
+                    openFiles();
+                } catch (IOException e) {
+                    close();
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            if (readAhead) {
+                for (int i = 0; i < lineIterators.length; i++) {
+                    lineIterators[i] = new PrefetchingIterator<String>(lineIterators[i],
+                            READ_AHEAD_BATCH_SIZE, READ_AHEAD_BATCHES);
+                }
+            }
+            if (lineKey != null) {
+                nextKeys = new LineKey.Key[lineIterators.length];
+            }
+            for (int i = 0; i < lineIterators.length; i++) {
+                nextLines[i] = fetchNext(i);
+                if (nextLines[i] != null) {
+                    heap[heapSize++] = i;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+        // Move the file whose line was returned, and when skipping duplicates every
+        // file whose next line equals it, to their next lines
+        while (heapSize > 0 && (topConsumed
+                || (skipDuplicates && nextLines[heap[0]].equals(lastLine)))) {
+            topConsumed = false;
+            final int top = heap[0];
+            nextLines[top] = fetchNext(top);
+            if (nextLines[top] == null) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+        }
+        return heapSize > 0;
     }
 
     /**
@@ -170,71 +420,128 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
         if (!hasNext()) {
             throw new NoSuchElementException("No more elements in iterator, use hasNext()");
         }
-        lastLine = sortedList.remove(0);
-        if (skipDuplicates) {
-            while (sortedList.contains(lastLine)) {
-                // Remove dupliate lines
-                sortedList.remove(lastLine);
-            }
+        lastLine = nextLines[heap[0]];
+        topConsumed = true;
+        return lastLine;
+    }
+
+    /**
+     * Retrieve the next non-blank, non-duplicate (from the last line returned)
+     * line from a file. Files will be closed when they have no more lines.
+     * @param file the index of the file
+     * @return the next line, or null if the file has no more lines
+     */
+    private String fetchNext(final int file) {
+        final Iterator<String> lineIterator = lineIterators[file];
+        if (lineIterator == null) {
+            return null;
         }
-        for (int i = 0; i < nextLines.length; i++) {
-            if (nextLines[i] != null && nextLines[i].equals(lastLine)) {
-                // Remove dupliate lines
-                nextLines[i] = null;
+        while (lineIterator.hasNext()) {
+            final String nextLine = lineIterator.next();
+            if (skipEmptyLines && nextLine.length() == 0) {
+                // Ignore empty lines
+                continue;
+            }
+            if (skipDuplicates && nextLine.equals(lastLine)) {
+                // Ignore duplicate lines
+                continue;
+            }
+            if (lineKey != null) {
+                nextKeys[file] = lineKey.extract(nextLine, nextKeys[file]);
             }
+            return nextLine;
         }
-        return lastLine;
+        closeInput(file);
+        return null;
     }
 
     /**
-     * Retrieve the next non-blank, non-duplicate (from the last line returned)
-     * line from each of the files that are still open. Files will be closed when
-     * they have no more lines.
-     */
-    private void fetchNexts() {
-        for (int i = 0; i < lineIterators.length; i++) {
-            if ((nextLines[i] == null) && (lineIterators[i] != null)) {
-                while (true) {
-                    if (lineIterators[i].hasNext()) {
-                        final String nextLine = lineIterators[i].next();
-                        if (skipEmptyLines) {
-                            if (nextLine.length() == 0) {
-                                // Ignore empty lines
-                                continue;
-                            }
-                        }
-                        if (skipDuplicates) {
-                            if (nextLine.equals(lastLine)) {
-                                // Ignore duplicate lines
-                                continue;
-                            }
-                        }
-                        nextLines[i] = nextLine;
-                        sortedList.add(nextLines[i]);
-                        break;
-                    } else {
-                        lineIterators[i] = null;
-                        break;
-                    }
+     * Close an input, stopping its read ahead thread, and delete it if it is a
+     * temporary file.
+     * @param file the index of the input
+     */
+    private void closeInput(final int file) {
+        final Iterator<String> lineIterator = lineIterators[file];
+        lineIterators[file] = null;
+        if (lineIterator instanceof PrefetchingIterator) {
+            ((PrefetchingIterator<String>) lineIterator).close();
+        }
+        try {
+            readers[file].close();
+        } catch (IOException e) {
+            // The input is read-only, nothing is lost
+        }
+        if (openFiles != null) {
+            deleteTempFile(openFiles[file]);
+        }
+    }
+
+    /**
+     * Close the inputs that have not been read to their end and delete the temporary
+     * files left. Once closed the iterator has no more lines.
+     */
+    public void close() {
+        started = true;
+        heapSize = 0;
+        if (lineIterators != null) {
+            for (int i = 0; i < lineIterators.length; i++) {
+                if (lineIterators[i] != null) {
+                    closeInput(i);
                 }
             }
         }
-        Collections.sort(sortedList);
+        for (final File tempFile : tempFiles) {
+            tempFile.delete();
+        }
+        tempFiles.clear();
     }
 
     /**
-     * Returns true if these is some data that has been read (one of nextLines[]
-     * is non-null).
-     * @return if there is some data that has been read
+     * Compare the next lines of two files by key or comparator, then as Strings, then by
+     * file index, so that no two files compare equal.
+     * @param first the index of the first file
+     * @param second the index of the second file
+     * @return a negative number if the next line of the first file comes first, else a
+     * positive number
      */
-    private boolean someReadData() {
-        for (int i = 0; i < lineIterators.length; i++) {
-            if (nextLines[i] != null) {
-                // We at least have data we have already read
-                return true;
+    private int compare(final int first, final int second) {
+        int result;
+        if (lineKey != null) {
+            result = nextKeys[first].compareTo(nextKeys[second]);
+        } else if (comparator != null) {
+            result = comparator.compare(nextLines[first], nextLines[second]);
+        } else {
+            result = 0;
+        }
+        if (result == 0) {
+            result = nextLines[first].compareTo(nextLines[second]);
+        }
+        return result == 0 ? first - second : result;
+    }
+
+    /**
+     * Move a heap entry down until its line is no larger than the lines below it.
+     * @param index the heap index of the entry
+     */
+    private void siftDown(final int index) {
+        final int file = heap[index];
+        int parent = index;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize
+                    && compare(heap[child + 1], heap[child]) < 0) {
+                child++;
+            }
+            if (compare(heap[child], file) > 0) {
+                break;
             }
+            heap[parent] = heap[child];
+            parent = child;
         }
-        return false;
+        heap[parent] = file;
     }
 
     /**
@@ -284,4 +591,124 @@ public class PreSortedMergeTextFilesLineIterator implements Iterable<String>, It
     public void setSkipDuplicates(final boolean skipDuplicates) {
         this.skipDuplicates = skipDuplicates;
     }
+
+    /**
+     * Get the order of the lines.
+     * @return the comparator, null for String order
+     */
+    public Comparator<String> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * Set the order the files are sorted in. This must be set before the first line is read.
+     * @param comparator the order of the lines, null for String order
+     */
+    public void setComparator(final Comparator<String> comparator) {
+        checkNotStarted();
+        this.comparator = comparator;
+    }
+
+    /**
+     * Get the key the lines are ordered by.
+     * @return the key, null if the lines are ordered by the comparator
+     */
+    public LineKey getLineKey() {
+        return lineKey;
+    }
+
+    /**
+     * Set the key the files are sorted by, which takes precedence over the comparator.
+     * This must be set before the first line is read. When skipping empty lines is turned
+     * off, empty lines must have the key columns as well.
+     * @param lineKey the key of the lines, null to use the comparator
+     */
+    public void setLineKey(final LineKey lineKey) {
+        checkNotStarted();
+        this.lineKey = lineKey;
+    }
+
+    /**
+     * Make sure the merge has not started yet.
+     */
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Options cannot change once reading has started");
+        }
+    }
+
+    /**
+     * Get the maximum number of files open at once.
+     * @return the maximum number of open files
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Set the maximum number of files open at once. This must be set before the first
+     * line is read.
+     * @param maxOpenFiles the maximum number of open files, at least 2
+     */
+    public void setMaxOpenFiles(final int maxOpenFiles) {
+        checkNotStarted();
+        if (maxOpenFiles < 2) {
+            throw new IllegalArgumentException("maxOpenFiles must be at least 2");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Get where the temporary files of the merge passes are created.
+     * @return the directory, null for the default temporary directory
+     */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * Set where the temporary files of the merge passes are created. This must be set
+     * before the first line is read.
+     * @param tempDirectory the directory, null for the default temporary directory
+     */
+    public void setTempDirectory(final File tempDirectory) {
+        checkNotStarted();
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Get if the temporary files of the merge passes are gzip compressed.
+     * @return if the temporary files are compressed
+     */
+    public boolean isCompressTempFiles() {
+        return compressTempFiles;
+    }
+
+    /**
+     * Set if the temporary files of the merge passes are gzip compressed, which trades
+     * CPU for disk space and I/O. This must be set before the first line is read.
+     * @param compressTempFiles if the temporary files are compressed
+     */
+    public void setCompressTempFiles(final boolean compressTempFiles) {
+        checkNotStarted();
+        this.compressTempFiles = compressTempFiles;
+    }
+
+    /**
+     * Get if each input is read on its own thread.
+     * @return if the inputs are read ahead
+     */
+    public boolean isReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Set if each input is read on its own thread, which spreads decompressing gzip
+     * inputs over several cores. This must be set before the first line is read.
+     * @param readAhead if the inputs are read ahead
+     */
+    public void setReadAhead(final boolean readAhead) {
+        checkNotStarted();
+        this.readAhead = readAhead;
+    }
 }
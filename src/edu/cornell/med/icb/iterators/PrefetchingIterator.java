@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An iterator that drains another iterator on a producer thread, so that producing the
+ * elements (reading and splitting lines, for instance) overlaps with consuming them.
+ * Elements are handed over in batches through a bounded queue, which limits how far the
+ * producer can run ahead. A RuntimeException or Error thrown by the source is thrown by the
+ * consuming hasNext() or next() once the elements produced before it have been returned.
+ * <p>
+ * The source must not be used by any other thread once it has been wrapped, and this
+ * iterator is not meant to be used from several threads.
+ * @param <T> the type of the elements
+ */
+public class PrefetchingIterator<T> implements Iterator<T>, Closeable {
+    /** The default number of elements per batch. */
+    public static final int BATCH_SIZE_DEFAULT = 4096;
+
+    /** The default number of batches that can wait to be consumed. */
+    public static final int MAX_BATCHES_DEFAULT = 4;
+
+    /** How long close waits for the producer thread to stop. */
+    private static final long CLOSE_WAIT_MILLIS = 1000;
+
+    /** The iterator being drained. */
+    private final Iterator<T> source;
+
+    /** The number of elements per batch. */
+    private final int batchSize;
+
+    /** Batches waiting to be consumed. */
+    private final BlockingQueue<List<T>> batches;
+
+    /** Marks the end of the source in the queue. */
+    private final List<T> endOfSource = new ArrayList<T>(0);
+
+    /** The thread draining the source. */
+    private final Thread producer;
+
+    /** The error that stopped the producer, if any. */
+    private volatile Throwable error;
+
+    /** True once close() has been called. */
+    private volatile boolean closed;
+
+    /** The batch being consumed. */
+    private List<T> current;
+
+    /** The position of the next element in current. */
+    private int position;
+
+    /** True once the end of the source has been reached. */
+    private boolean finished;
+
+    /**
+     * Create the iterator with the default batch size and number of batches.
+     * @param source the iterator to drain
+     */
+    public PrefetchingIterator(final Iterator<T> source) {
+        this(source, BATCH_SIZE_DEFAULT, MAX_BATCHES_DEFAULT);
+    }
+
+    /**
+     * Create the iterator.
+     * @param source the iterator to drain
+     * @param batchSize the number of elements per batch
+     * @param maxBatches the number of batches that can wait to be consumed
+     */
+    public PrefetchingIterator(final Iterator<T> source, final int batchSize,
+                               final int maxBatches) {
+        super();
+        if (batchSize < 1 || maxBatches < 1) {
+            throw new IllegalArgumentException("batchSize and maxBatches must be at least 1");
+        }
+        this.source = source;
+        this.batchSize = batchSize;
+        this.batches = new ArrayBlockingQueue<List<T>>(maxBatches);
+        producer = new Thread(new Runnable() {
+            public void run() {
+                produce();
+            }
+        }, "PrefetchingIterator");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Drain the source into batches until it ends, fails, or the iterator is closed.
+     */
+    private void produce() {
+        List<T> batch = new ArrayList<T>(batchSize);
+        try {
+            while (!closed && source.hasNext()) {
+                batch.add(source.next());
+                if (batch.size() == batchSize) {
+                    batches.put(batch);
+                    batch = new ArrayList<T>(batchSize);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            try {
+                if (!closed && !batch.isEmpty()) {
+                    batches.put(batch);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                putEndOfSource();
+            }
+        }
+    }
+
+    /**
+     * Queue the end of the source. Once the iterator is closed nothing may be consuming the
+     * queue, so the end is queued only if there is room for it.
+     */
+    private void putEndOfSource() {
+        while (!closed) {
+            try {
+                batches.put(endOfSource);
+                return;
+            } catch (InterruptedException e) {
+                // closed, checked by the loop
+            }
+        }
+        batches.offer(endOfSource);
+    }
+
+    /**
+     * Wait for the next batch if the current one has been consumed.
+     * @return if we have a next element
+     * @throws IllegalStateException if the thread is interrupted while waiting
+     */
+    public boolean hasNext() {
+        while (current == null || position == current.size()) {
+            if (finished || closed) {
+                return false;
+            }
+            current = null;
+            final List<T> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for elements", e);
+            }
+            if (batch == endOfSource) {
+                finished = true;
+                if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                }
+                if (error instanceof Error) {
+                    throw (Error) error;
+                }
+                if (error != null) {
+                    throw new IllegalArgumentException(error);
+                }
+                return false;
+            }
+            current = batch;
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Return the next element.
+     * @return the next element
+     */
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.get(position++);
+    }
+
+    /**
+     * Remove not supported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop the producer thread; hasNext() returns false from then on. The source itself is
+     * not closed.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (Thread.currentThread() == producer) {
+            return;
+        }
+        producer.interrupt();
+        try {
+            producer.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
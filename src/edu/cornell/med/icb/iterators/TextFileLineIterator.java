@@ -18,16 +18,27 @@
 
 package edu.cornell.med.icb.iterators;
 
+import edu.cornell.med.icb.io.CompressedStreams;
+import edu.cornell.med.icb.io.FollowingInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class allows line-by-line iteration through a text file.
@@ -37,6 +48,8 @@ import java.util.zip.GZIPInputStream;
  * will wrap it in an IllegalArgumentExceptions. This is necessary because
  * the iterator() method is defined in the interface and cannot throw an
  * exception.
+ * For files with billions of short lines, {@link MutableStringLineIterator} avoids
+ * creating a String per line.
  * --
  * This class is based off of the code found at
  * http://www.java2s.com/Code/Java/Language-Basics/
@@ -60,16 +73,42 @@ import java.util.zip.GZIPInputStream;
  * damages arising in any way out of the use of this software.
  */
 public class TextFileLineIterator implements Iterable<String>, Closeable {
+    /** The default size of the reader buffer. */
+    public static final int BUFFER_SIZE_DEFAULT = 65536;
+
+    /** The smallest byte range {@link #lines()} splits further for parallel streams. */
+    private static final long MIN_SPLIT_SIZE = 1 << 16;
 
     /** The file being read. */
     private final BufferedReader in;
 
+    /** The file being read, null when reading a stream. */
+    private final File file;
+
+    /** The charset of the file. */
+    private final Charset charset;
+
+    /** The size of the reader buffer. */
+    private final int bufferSize;
+
+    /** True once iterator() has been called. */
+    private boolean iterated;
+
+    /** The stream following a growing file, see {@link #follow(File, long)}. */
+    private final FollowingInputStream following;
+
     /**
      * Set to true once the input closes, either manually or automatically it won't close "in"
      * more than once.
      */
     private boolean closed = false;
 
+    /** If true, lines are read on a producer thread, see {@link #setPrefetch(boolean)}. */
+    private boolean prefetch;
+
+    /** The prefetching iterator returned by iterator(), if any. */
+    private PrefetchingIterator<String> prefetcher;
+
     /**
      * Create the object using a filename.
      * @param filenameToRead the filename to read
@@ -85,18 +124,126 @@ public class TextFileLineIterator implements Iterable<String>, Closeable {
      * @throws IOException error opening the file to read
      */
     public TextFileLineIterator(final File fileToRead) throws IOException {
-        this(fileToRead.toString().toLowerCase().endsWith(".gz")
-                ? new GZIPInputStream(new FileInputStream(fileToRead))
-                : new FileInputStream(fileToRead));
+        this(fileToRead, BUFFER_SIZE_DEFAULT, false);
+    }
+
+    /**
+     * Create the object using a file, decoding it with the given charset rather than the
+     * platform default. Files with names ending in ".gz" are decompressed.
+     * @param fileToRead the filename to read
+     * @param charset the charset of the file
+     * @throws IOException error opening the file to read
+     */
+    public TextFileLineIterator(final File fileToRead, final Charset charset)
+            throws IOException {
+        this(fileToRead, CompressedStreams.open(fileToRead), charset, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create the object using a file. Files with names ending in ".gz" are decompressed.
+     * @param fileToRead the filename to read
+     * @param bufferSize the size of the reader buffer and of the compressed input buffer
+     * @param readAhead if true, the file is read and decompressed on a background thread
+     * while the lines are being consumed
+     * @throws IOException error opening the file to read
+     */
+    public TextFileLineIterator(final File fileToRead, final int bufferSize,
+                                final boolean readAhead) throws IOException {
+        this(fileToRead, bufferSize, readAhead, CompressedStreams.INFLATE_THREADS_DEFAULT);
+    }
+
+    /**
+     * Create the object using a file. Files with names ending in ".gz" are decompressed,
+     * on up to inflateThreads threads if they are block gzip (BGZF) files.
+     * @param fileToRead the filename to read
+     * @param bufferSize the size of the reader buffer and of the compressed input buffer
+     * @param readAhead if true, the file is read and decompressed on a background thread
+     * while the lines are being consumed
+     * @param inflateThreads the maximum number of threads decompressing a BGZF file,
+     * 1 to decompress on the reading thread
+     * @throws IOException error opening the file to read
+     */
+    public TextFileLineIterator(final File fileToRead, final int bufferSize,
+                                final boolean readAhead, final int inflateThreads)
+            throws IOException {
+        this(fileToRead,
+                CompressedStreams.open(fileToRead, bufferSize, readAhead, inflateThreads),
+                Charset.defaultCharset(), bufferSize);
     }
 
     /**
      * Create the object using an InputStream.
      * @param stream the stream for the file to read
-     * @throws java.io.IOException error opening the file to read
      */
     public TextFileLineIterator(final InputStream stream) {
-        in = new BufferedReader(new InputStreamReader(stream));
+        this(stream, BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create the object using an InputStream.
+     * @param stream the stream for the file to read
+     * @param bufferSize the size of the reader buffer
+     */
+    public TextFileLineIterator(final InputStream stream, final int bufferSize) {
+        this(stream, Charset.defaultCharset(), bufferSize);
+    }
+
+    /**
+     * Create the object using an InputStream.
+     * @param stream the stream for the file to read
+     * @param charset the charset of the stream
+     * @param bufferSize the size of the reader buffer
+     */
+    public TextFileLineIterator(final InputStream stream, final Charset charset,
+                                final int bufferSize) {
+        this(null, stream, charset, bufferSize);
+    }
+
+    /**
+     * Create the object.
+     * @param file the file being read, null if it is not known
+     * @param stream the stream for the file to read
+     * @param charset the charset of the stream
+     * @param bufferSize the size of the reader buffer
+     */
+    private TextFileLineIterator(final File file, final InputStream stream,
+                                 final Charset charset, final int bufferSize) {
+        this.file = file;
+        this.charset = charset;
+        this.bufferSize = bufferSize;
+        this.following = stream instanceof FollowingInputStream
+                ? (FollowingInputStream) stream : null;
+        in = new BufferedReader(new InputStreamReader(stream, charset), bufferSize);
+    }
+
+    /**
+     * Iterate the lines of a file as it grows, like "tail -f". At the end of the file the
+     * iterator waits for more lines; a partial last line is returned once its line
+     * terminator has been written. Truncation and rotation of the file are followed, see
+     * {@link FollowingInputStream}. The iteration ends when the file has been idle for
+     * idleTimeoutMillis, after {@link #stopFollowing()} or when this object is closed.
+     * The file is read in the platform default charset.
+     * @param fileToRead the file to follow
+     * @param idleTimeoutMillis how long the file may stay idle before the iteration
+     * ends, 0 to wait until stopped or closed
+     * @return the lines of the file
+     * @throws IOException error opening the file to read
+     */
+    public static TextFileLineIterator follow(final File fileToRead,
+                                              final long idleTimeoutMillis)
+            throws IOException {
+        return new TextFileLineIterator(null, new FollowingInputStream(fileToRead,
+                idleTimeoutMillis), Charset.defaultCharset(), BUFFER_SIZE_DEFAULT);
+    }
+
+    /**
+     * When following a file, end the iteration once the lines written so far have been
+     * read. Does nothing for other files.
+     */
+    public void stopFollowing() {
+        if (following != null) {
+            following.stop();
+        }
     }
 
     /**
@@ -104,20 +251,225 @@ public class TextFileLineIterator implements Iterable<String>, Closeable {
      * @return the iterator
      */
     public Iterator<String> iterator() {
+        iterated = true;
+        if (prefetch) {
+            prefetcher = new PrefetchingIterator<String>(new TextFileIterator());
+            return prefetcher;
+        }
         return new TextFileIterator();
     }
 
+    /**
+     * Get the lines as a Stream, which closes this object when it is closed. For
+     * uncompressed files in an ASCII compatible charset (UTF-8, ISO-8859-1 and the like),
+     * the stream reads the file from the start and splits it into byte ranges at line
+     * boundaries, so a parallel stream reads and processes its parts on several threads.
+     * Otherwise, or once iterator() has been called, the stream returns the remaining
+     * lines of an iterator. If during the reading of the file there is an IOException,
+     * the stream will wrap it in an IllegalArgumentException.
+     * @return the lines
+     */
+    public Stream<String> lines() {
+        if (file != null && !iterated && !CompressedStreams.isGzip(file)
+                && MutableStringLineIterator.isAsciiCompatible(charset)) {
+            final List<Closeable> readers =
+                    Collections.synchronizedList(new ArrayList<Closeable>());
+            final long length = file.length();
+            return StreamSupport.stream(new LineSpliterator(file, length, charset, bufferSize,
+                    0, length, readers), false).onClose(new Runnable() {
+                        public void run() {
+                            synchronized (readers) {
+                                for (final Closeable reader : readers) {
+                                    IOUtils.closeQuietly(reader);
+                                }
+                            }
+                            closeQuietly();
+                        }
+                    });
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+                    public void run() {
+                        closeQuietly();
+                    }
+                });
+    }
+
+    /**
+     * Close, ignoring errors.
+     */
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // close() does not throw
+        }
+    }
+
+    /**
+     * Get if lines are read on a producer thread.
+     * @return true if lines are prefetched
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Set if lines should be read on a producer thread, in batches of
+     * {@link PrefetchingIterator#BATCH_SIZE_DEFAULT} lines, while the caller processes the
+     * previous ones. This helps when reading and processing take similar time. It applies
+     * to the iterators created after it is set.
+     * @param prefetch true to prefetch lines
+     */
+    public void setPrefetch(final boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
     /**
      * For either manual or automatic closing.
      * @throws IOException won't get thrown but included for the interface
      */
     public void close() throws IOException {
+        if (following != null) {
+            // Ends a read waiting for the file to grow, which holds the reader's lock
+            IOUtils.closeQuietly(following);
+        }
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
+        closeReader();
+    }
+
+    /**
+     * Close the reader, once.
+     */
+    private void closeReader() {
         if (!closed) {
             IOUtils.closeQuietly(in);
             closed = true;
         }
     }
 
+    /**
+     * Splits the lines of a byte range of a file, see {@link TextFileLineIterator#lines()}.
+     * A range holds the lines that start in it, so a range can be split anywhere.
+     */
+    private static final class LineSpliterator implements Spliterator<String> {
+        /** The file being read. */
+        private final File file;
+
+        /** The length of the file. */
+        private final long fileLength;
+
+        /** The charset of the file. */
+        private final Charset charset;
+
+        /** The size of the reader buffer. */
+        private final int bufferSize;
+
+        /** The readers opened by all the parts of the stream, closed with the stream. */
+        private final List<Closeable> readers;
+
+        /** The byte offset of the range. */
+        private long start;
+
+        /** The byte offset after the range. */
+        private final long end;
+
+        /** The reader of the range, opened by the first tryAdvance(). */
+        private BufferedReader reader;
+
+        /** True once the last line of the range has been returned. */
+        private boolean done;
+
+        /**
+         * Create a spliterator for a byte range.
+         * @param file the file being read
+         * @param fileLength the length of the file
+         * @param charset the charset of the file
+         * @param bufferSize the size of the reader buffer
+         * @param start the byte offset of the range
+         * @param end the byte offset after the range
+         * @param readers where to register the readers that are opened
+         */
+        private LineSpliterator(final File file, final long fileLength, final Charset charset,
+                                final int bufferSize, final long start, final long end,
+                                final List<Closeable> readers) {
+            super();
+            this.file = file;
+            this.fileLength = fileLength;
+            this.charset = charset;
+            this.bufferSize = bufferSize;
+            this.start = start;
+            this.end = end;
+            this.readers = readers;
+        }
+
+        /**
+         * Return the next line of the range.
+         * @param action what to do with the line
+         * @return false once all the lines have been returned
+         */
+        public boolean tryAdvance(final Consumer<? super String> action) {
+            if (done) {
+                return false;
+            }
+            try {
+                if (reader == null) {
+                    final long from = LineIndex.nextLineStart(file, fileLength, start);
+                    final long to = Math.max(from,
+                            LineIndex.nextLineStart(file, fileLength, end));
+                    reader = new BufferedReader(new InputStreamReader(new BoundedInputStream(
+                            LineIndex.openAt(file, from), to - from), charset), bufferSize);
+                    readers.add(reader);
+                }
+                final String line = reader.readLine();
+                if (line == null) {
+                    done = true;
+                    IOUtils.closeQuietly(reader);
+                    return false;
+                }
+                action.accept(line);
+                return true;
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Split off the first half of the range, unless reading has started or the range
+         * is small.
+         * @return the first half of the range, or null
+         */
+        public Spliterator<String> trySplit() {
+            if (reader != null || done || end - start < MIN_SPLIT_SIZE) {
+                return null;
+            }
+            final long middle = start + (end - start) / 2;
+            final LineSpliterator prefix = new LineSpliterator(file, fileLength, charset,
+                    bufferSize, start, middle, readers);
+            start = middle;
+            return prefix;
+        }
+
+        /**
+         * The number of bytes of the range, as an estimate of the number of lines.
+         * @return the size estimate
+         */
+        public long estimateSize() {
+            return end - start;
+        }
+
+        /**
+         * The lines are ordered and never null.
+         * @return the characteristics
+         */
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
     /**
      * This non-static member class is the iterator implementation.
      */
@@ -161,7 +513,7 @@ public class TextFileLineIterator implements Iterable<String>, Closeable {
                 if (nextline != null) {
                     nextline = in.readLine(); // Read another line
                     if (nextline == null) {
-                        close();
+                        closeReader();
                     }
                 }
 
@@ -18,19 +18,32 @@
 
 package edu.cornell.med.icb.iterators;
 
+import edu.cornell.med.icb.io.TsvRow;
 import edu.cornell.med.icb.io.TsvToFromMap;
 import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+import org.apache.commons.io.IOUtils;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Iterate a tsv file using a specified TsvToFromMap. This will completely ignore the first
  * non-comment line, assuming it to be a header line. This will also ignore all comment lines
  * (lines that start with '#').
+ * <p>
+ * Without a TsvToFromMap the columns are read from that header line, on the same stream
+ * as the data lines, so a compressed file is only opened and decompressed once and
+ * streams such as pipes or System.in can be read. The columns are then available from
+ * {@link #getTsvReader()}.
+ * <p>
+ * Iterating the object itself returns a new map per line. {@link #rows()} instead
+ * returns the same {@link TsvRow} for every line, which only records where the values
+ * are and shares the column index of the TsvToFromMap, so wide files can be read
+ * without creating objects per column.
  */
 public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String>>, Closeable {
 
@@ -45,6 +58,15 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
     /** The file being read. */
     private final TsvToFromMap tsvReader;
 
+    /** If true, lines are read and parsed on a producer thread. */
+    private boolean prefetch;
+
+    /** True once the header line has been read from the stream. */
+    private boolean headerSkipped;
+
+    /** The prefetching iterator returned by iterator() or rows(), if any. */
+    private PrefetchingIterator<?> prefetcher;
+
     /**
      * Create the object using a filename. This will read the header line to determine the
      * column headers from the file.
@@ -56,14 +78,15 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
     }
 
     /**
-     * Create the object using a file.
+     * Create the object using a file. This will read the header line to determine the
+     * column headers from the file.
      * @param fileToRead the filename to read
      * @throws java.io.IOException error opening the file to read
      */
     public TsvLineIterator(final File fileToRead) throws IOException {
-        this.tsvReader = TsvToFromMap.createFromTsvFile(fileToRead);
         this.textFileLineIterator = new TextFileLineIterator(fileToRead);
-        this.iterator = textFileLineIterator.iterator();
+        this.iterator = openLines(textFileLineIterator);
+        this.tsvReader = readHeader();
     }
 
     /**
@@ -84,10 +107,22 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
      */
     public TsvLineIterator(final File fileToRead, final TsvToFromMap tsvReader) throws IOException {
         this.textFileLineIterator = new TextFileLineIterator(fileToRead);
-        this.iterator = textFileLineIterator.iterator();
+        this.iterator = openLines(textFileLineIterator);
         this.tsvReader = tsvReader;
     }
 
+    /**
+     * Create the object using an InputStream. This will read the header line to determine
+     * the column headers from the stream.
+     * @param stream the stream for the file to read
+     * @throws java.io.IOException error reading the header line
+     */
+    public TsvLineIterator(final InputStream stream) throws IOException {
+        this.textFileLineIterator = new TextFileLineIterator(stream);
+        this.iterator = openLines(textFileLineIterator);
+        this.tsvReader = readHeader();
+    }
+
     /**
      * Create the object using an InputStream.
      * @param stream the stream for the file to read
@@ -96,23 +131,135 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
      */
     public TsvLineIterator(final InputStream stream, final TsvToFromMap tsvReader) throws IOException {
         this.textFileLineIterator = new TextFileLineIterator(stream);
-        this.iterator = textFileLineIterator.iterator();
+        this.iterator = openLines(textFileLineIterator);
         this.tsvReader = tsvReader;
     }
 
+    /**
+     * Read the header line, skipping the comment lines before it. The file is closed if
+     * the header cannot be read.
+     * @return the TsvToFromMap for the columns of the header line, null if there is
+     * no header line
+     * @throws IOException error reading the header line
+     */
+    private TsvToFromMap readHeader() throws IOException {
+        headerSkipped = true;
+        try {
+            while (iterator.hasNext()) {
+                final String readLine = iterator.next();
+                if (!readLine.startsWith(COMMENT_CHAR)) {
+                    return TsvToFromMap.createFromHeaderLine(readLine);
+                }
+            }
+            return null;
+        } catch (RuntimeException e) {
+            throw closeOnError(textFileLineIterator, e);
+        }
+    }
+
+    /**
+     * Start reading the lines of a file, which reads the first line. The file is closed
+     * if it cannot be read.
+     * @param lines the file
+     * @return the iterator of the lines
+     * @throws IOException error reading the first line
+     */
+    private static Iterator<String> openLines(final TextFileLineIterator lines)
+            throws IOException {
+        try {
+            return lines.iterator();
+        } catch (RuntimeException e) {
+            throw closeOnError(lines, e);
+        }
+    }
+
+    /**
+     * Close a file that could not be read and get the error to throw. TextFileLineIterator
+     * wraps read errors in an IllegalArgumentException, which is unwrapped.
+     * @param lines the file
+     * @param e the error reading the file
+     * @return the IOException that caused the error
+     * @throws RuntimeException the error itself, if an IOException did not cause it
+     */
+    private static IOException closeOnError(final TextFileLineIterator lines,
+                                            final RuntimeException e) {
+        IOUtils.closeQuietly(lines);
+        if (e instanceof IllegalArgumentException && e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        throw e;
+    }
+
+    /**
+     * Get the columns of the file.
+     * @return the TsvToFromMap given to the constructor or read from the header line,
+     * null if the columns were to be read from a file without a header line
+     */
+    public TsvToFromMap getTsvReader() {
+        return tsvReader;
+    }
+
     /**
      * This is the one method of the Iterable interface.
      * @return the iterator
      */
     public Iterator<LinkedHashToMultiTypeMap<String>> iterator() {
+        if (prefetch) {
+            final PrefetchingIterator<LinkedHashToMultiTypeMap<String>> mapPrefetcher =
+                    new PrefetchingIterator<LinkedHashToMultiTypeMap<String>>(
+                            new TsvFileIterator());
+            prefetcher = mapPrefetcher;
+            return mapPrefetcher;
+        }
         return new TsvFileIterator();
     }
 
+    /**
+     * Iterate the lines as rows. The rows share the stream with iterator(). Without
+     * prefetch the same row is returned for every line and is overwritten by the next
+     * call to hasNext(); with prefetch each line gets its own row.
+     * @return the rows of the file
+     */
+    public Iterable<TsvRow> rows() {
+        return new Iterable<TsvRow>() {
+            public Iterator<TsvRow> iterator() {
+                if (prefetch) {
+                    final PrefetchingIterator<TsvRow> rowPrefetcher =
+                            new PrefetchingIterator<TsvRow>(new TsvRowIterator(false));
+                    prefetcher = rowPrefetcher;
+                    return rowPrefetcher;
+                }
+                return new TsvRowIterator(true);
+            }
+        };
+    }
+
+    /**
+     * Get if lines are read and parsed on a producer thread.
+     * @return true if lines are prefetched
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Set if lines should be read and parsed on a producer thread, in batches, while the
+     * caller processes the previous ones. See {@link TextFileLineIterator#setPrefetch(boolean)}.
+     * @param prefetch true to prefetch lines
+     */
+    public void setPrefetch(final boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
     /**
      * In case we need to close early.
      * @throws IOException
      */
     public void close() throws IOException {
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
         textFileLineIterator.close();
     }
 
@@ -134,7 +281,7 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
             // Open the file and read and remember the first line.
             // We peek ahead like this for the benefit of hasNext().
             try {
-                nextline = getNextLine(true);
+                nextline = getNextLine(!headerSkipped);
             } catch (IOException e) {
                 throw new IllegalArgumentException(e);
             }
@@ -159,6 +306,7 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
                         break;
                     }
                 }
+                headerSkipped = true;
             }
             while (iterator.hasNext()) {
                 final String readLine = iterator.next();
@@ -205,4 +353,70 @@ public class TsvLineIterator implements Iterable<LinkedHashToMultiTypeMap<String
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * This non-static member class is the row iterator implementation.
+     */
+    class TsvRowIterator implements Iterator<TsvRow> {
+        /** True if the same row is returned for every line. */
+        private final boolean reuseRow;
+
+        /** The row being returned. */
+        private TsvRow row;
+
+        /** True if {@link #row} holds a line that next() has not returned yet. */
+        private boolean fetched;
+
+        /**
+         * The constructor for the iterator.
+         * @param reuseRow if true, the same row is returned for every line
+         */
+        public TsvRowIterator(final boolean reuseRow) {
+            this.reuseRow = reuseRow;
+        }
+
+        /**
+         * Read the next non comment line into the row if it has not been read yet.
+         * @return if we have a next line
+         */
+        public boolean hasNext() {
+            while (!fetched && iterator.hasNext()) {
+                final String readLine = iterator.next();
+                if (readLine.startsWith(COMMENT_CHAR)) {
+                    continue;
+                }
+                if (!headerSkipped) {
+                    headerSkipped = true;
+                    continue;
+                }
+                try {
+                    row = tsvReader.readDataToRow(readLine, reuseRow ? row : null);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                fetched = true;
+            }
+            return fetched;
+        }
+
+        /**
+         * Return the next row.
+         * @return the next row
+         */
+        public TsvRow next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            fetched = false;
+            return row;
+        }
+
+        /**
+         * Remove not supported.
+         * The file is read-only; we don't allow lines to be removed.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
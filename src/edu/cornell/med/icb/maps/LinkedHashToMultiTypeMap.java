@@ -18,14 +18,32 @@
 
 package edu.cornell.med.icb.maps;
 
+import edu.cornell.med.icb.io.NumberParser;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.math.NumberUtils;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * An extension of LinkedHashMap[T, String]. Internally, all values are stored as strings
  * but they can be retrieved directly as String, Integer, Double, in[], or double[].
+ * <p>
+ * The value parsed by the typed getters is kept until the String it was parsed from
+ * is replaced, so reading the same field again does not split and parse it again.
+ * Arrays stored with put(field, double[]) or put(field, int[]) are kept as they are
+ * and only rendered to text when the String value is needed: by get(), when the map is
+ * written out, or by any view or bulk operation of the map. The arrays returned by
+ * the getters are copies, so changing them does not change the map.
+ * <p>
+ * Since the getters update the parsed values, and get() may store a rendered array,
+ * reading this map changes it. Unlike a plain LinkedHashMap, it must not be read from
+ * several threads at once without synchronization, even if nothing is put into it.
  *
  * @author Kevin Dorff
  */
@@ -35,6 +53,320 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
      */
     private static final long serialVersionUID = -664788513228402228L;
 
+    /**
+     * The parsed value of each field, valid while the map still holds the String it
+     * was parsed from. Created when first needed, and updated by the getters.
+     */
+    private transient Map<Object, Parsed> parsed;
+
+    /**
+     * Returns the mapped value as a String, rendering an array stored by a typed put.
+     *
+     * @param field the field to get
+     * @return the String value for the field or null if the field doesn't exist
+     */
+    @Override
+    public String get(final Object field) {
+        final String value = super.get(field);
+        if (parsed == null || value == null || value.length() != 0) {
+            return value;
+        }
+        final Parsed cached = parsed.get(field);
+        if (cached != null && cached.source == value && cached.unrendered) {
+            return render(field, cached);
+        }
+        return value;
+    }
+
+    /**
+     * Put a String into the map, dropping the value parsed from the previous String.
+     *
+     * @param field the field to associate with the value
+     * @param val   the value
+     * @return the previous value for the field
+     */
+    @Override
+    public String put(final T field, final String val) {
+        if (parsed == null) {
+            return super.put(field, val);
+        }
+        final String previous = get(field);
+        parsed.remove(field);
+        super.put(field, val);
+        return previous;
+    }
+
+    /**
+     * Remove a field, dropping its parsed value.
+     *
+     * @param field the field to remove
+     * @return the previous value for the field
+     */
+    @Override
+    public String remove(final Object field) {
+        if (parsed == null) {
+            return super.remove(field);
+        }
+        final String previous = get(field);
+        parsed.remove(field);
+        super.remove(field);
+        return previous;
+    }
+
+    /**
+     * Remove all the fields and their parsed values.
+     */
+    @Override
+    public void clear() {
+        parsed = null;
+        super.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<T, String>> entrySet() {
+        renderAll();
+        return super.entrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> values() {
+        renderAll();
+        return super.values();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsValue(final Object value) {
+        renderAll();
+        return super.containsValue(value);
+    }
+
+    /**
+     * Returns the mapped value as a String, rendering an array stored by a typed put, or
+     * the default value if the field doesn't exist.
+     *
+     * @param field the field to get
+     * @param defaultValue the value to return if the field doesn't exist
+     * @return the String value for the field or defaultValue
+     */
+    @Override
+    public String getOrDefault(final Object field, final String defaultValue) {
+        final String value = get(field);
+        return value != null || containsKey(field) ? value : defaultValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forEach(final BiConsumer<? super T, ? super String> action) {
+        renderAll();
+        super.forEach(action);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replaceAll(final BiFunction<? super T, ? super String, ? extends String> function) {
+        renderAll();
+        super.replaceAll(function);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String compute(final T field,
+            final BiFunction<? super T, ? super String, ? extends String> function) {
+        renderAll();
+        return super.compute(field, function);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String computeIfPresent(final T field,
+            final BiFunction<? super T, ? super String, ? extends String> function) {
+        renderAll();
+        return super.computeIfPresent(field, function);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String computeIfAbsent(final T field,
+            final Function<? super T, ? extends String> function) {
+        renderAll();
+        return super.computeIfAbsent(field, function);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String merge(final T field, final String value,
+            final BiFunction<? super String, ? super String, ? extends String> function) {
+        renderAll();
+        return super.merge(field, value, function);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String replace(final T field, final String value) {
+        renderAll();
+        return super.replace(field, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean replace(final T field, final String oldValue, final String newValue) {
+        renderAll();
+        return super.replace(field, oldValue, newValue);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String putIfAbsent(final T field, final String value) {
+        renderAll();
+        return super.putIfAbsent(field, value);
+    }
+
+    /**
+     * Copy the map. The copy does not share the parsed values.
+     *
+     * @return the copy
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() {
+        renderAll();
+        final LinkedHashToMultiTypeMap<T> copy = (LinkedHashToMultiTypeMap<T>) super.clone();
+        copy.parsed = null;
+        return copy;
+    }
+
+    /**
+     * Render the stored arrays before the map is serialized.
+     *
+     * @return this map
+     */
+    protected Object writeReplace() {
+        renderAll();
+        return this;
+    }
+
+    /**
+     * Get the value parsed from the current String value of a field.
+     *
+     * @param field the field
+     * @param value the current String value of the field
+     * @return the parsed value, or null if it has not been parsed
+     */
+    private Object getParsed(final Object field, final String value) {
+        if (parsed == null) {
+            return null;
+        }
+        final Parsed cached = parsed.get(field);
+        return cached != null && cached.source == value ? cached.value : null;
+    }
+
+    /**
+     * Keep the value parsed from the current String value of a field.
+     *
+     * @param field the field
+     * @param value the current String value of the field
+     * @param parsedValue the parsed value
+     */
+    private void setParsed(final Object field, final String value, final Object parsedValue) {
+        if (parsed == null) {
+            parsed = new HashMap<Object, Parsed>();
+        }
+        parsed.put(field, new Parsed(value, parsedValue, false));
+    }
+
+    /**
+     * Store an array without rendering it to text.
+     *
+     * @param field the field
+     * @param array the double[] or int[] to store
+     */
+    private void putUnrendered(final T field, final Object array) {
+        // A new empty String marks the entry, its identity ties it to the array
+        final String marker = new String();
+        // Not put(), which would render the array this one replaces
+        super.put(field, marker);
+        if (parsed == null) {
+            parsed = new HashMap<Object, Parsed>();
+        }
+        parsed.put(field, new Parsed(marker, array, true));
+    }
+
+    /**
+     * Render a stored array to text and store the text in the map.
+     *
+     * @param field the field
+     * @param cached the parsed value holding the array
+     * @return the text
+     */
+    @SuppressWarnings("unchecked")
+    private String render(final Object field, final Parsed cached) {
+        final StringBuilder result = new StringBuilder();
+        if (cached.value instanceof double[]) {
+            final double[] array = (double[]) cached.value;
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    result.append(",");
+                }
+                result.append(Double.toString(array[i]));
+            }
+        } else {
+            final int[] array = (int[]) cached.value;
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    result.append(",");
+                }
+                result.append(Integer.toString(array[i]));
+            }
+        }
+        final String text = result.toString();
+        super.put((T) field, text);
+        cached.source = text;
+        cached.unrendered = false;
+        return text;
+    }
+
+    /**
+     * Render all the stored arrays to text.
+     */
+    private void renderAll() {
+        if (parsed == null) {
+            return;
+        }
+        for (final Map.Entry<Object, Parsed> entry : parsed.entrySet()) {
+            final Parsed cached = entry.getValue();
+            if (cached.unrendered && super.get(entry.getKey()) == cached.source) {
+                render(entry.getKey(), cached);
+            }
+        }
+    }
+
     /**
      * Synonym for just using get(field). Returns the mapped value as a String
      * or null if the field doesn't exist in the map.
@@ -60,7 +392,13 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
         if (value.length()==0) {
             return null;
         }
-        return NumberUtils.toDouble(value);
+        final Object cached = getParsed(field, value);
+        if (cached instanceof Double) {
+            return (Double) cached;
+        }
+        final Double result = NumberParser.toDouble(value, 0.0d);
+        setParsed(field, value, result);
+        return result;
     }
 
     /**
@@ -77,7 +415,13 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
         if (value.length()==0) {
             return null;
         }
-        return NumberUtils.toInt(value);
+        final Object cached = getParsed(field, value);
+        if (cached instanceof Integer) {
+            return (Integer) cached;
+        }
+        final Integer result = NumberParser.toInt(value, 0);
+        setParsed(field, value, result);
+        return result;
     }
 
     /**
@@ -99,6 +443,14 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
      * @return the double[] value for the field
      */
     public double[] getDoubleArray(final T field, final char splitChar) {
+        final String stored = super.get(field);
+        if (splitChar == ',') {
+            // Arrays of a typed put are found here without being rendered
+            final Object cached = getParsed(field, stored);
+            if (cached instanceof double[]) {
+                return ((double[]) cached).clone();
+            }
+        }
         final String value = get(field);
         if (value == null) {
             return null;
@@ -118,7 +470,10 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
             if (StringUtils.isBlank(split)) {
                 split = "0";
             }
-            result[i++] = NumberUtils.toDouble(split.trim());
+            result[i++] = NumberParser.toDouble(split.trim(), 0.0d);
+        }
+        if (splitChar == ',') {
+            setParsed(field, value, result.clone());
         }
         return result;
     }
@@ -142,6 +497,14 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
      * @return the int[] value for the field
      */
     public int[] getIntArray(final T field, final char splitChar) {
+        final String stored = super.get(field);
+        if (splitChar == ',') {
+            // Arrays of a typed put are found here without being rendered
+            final Object cached = getParsed(field, stored);
+            if (cached instanceof int[]) {
+                return ((int[]) cached).clone();
+            }
+        }
         final String value = get(field);
         if (value == null) {
             return null;
@@ -161,7 +524,10 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
             if (StringUtils.isBlank(split)) {
                 split = "0";
             }
-            result[i++] = NumberUtils.toInt(split.trim());
+            result[i++] = NumberParser.toInt(split.trim(), 0);
+        }
+        if (splitChar == ',') {
+            setParsed(field, value, result.clone());
         }
         return result;
     }
@@ -176,7 +542,9 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
         if (val == null) {
             put(field, (String) null);
         } else {
-            put(field, Double.toString(val));
+            final String value = Double.toString(val);
+            put(field, value);
+            setParsed(field, value, val);
         }
     }
 
@@ -189,15 +557,10 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
     public void put(final T field, final double[] val) {
         if (val == null) {
             put(field, (String) null);
+        } else if (val.length == 0) {
+            put(field, "");
         } else {
-            final StringBuilder result = new StringBuilder();
-            for (int i = 0; i < val.length; i++) {
-                if (i > 0) {
-                    result.append(",");
-                }
-                result.append(Double.toString(val[i]));
-            }
-            put(field, result.toString());
+            putUnrendered(field, val.clone());
         }
     }
 
@@ -211,7 +574,9 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
         if (val == null) {
             put(field, (String) null);
         } else {
-            put(field, Integer.toString(val));
+            final String value = Integer.toString(val);
+            put(field, value);
+            setParsed(field, value, val);
         }
     }
 
@@ -224,16 +589,38 @@ public class LinkedHashToMultiTypeMap<T> extends LinkedHashMap<T, String> {
     public void put(final T field, final int[] val) {
         if (val == null) {
             put(field, (String) null);
+        } else if (val.length == 0) {
+            put(field, "");
         } else {
-            final StringBuilder result = new StringBuilder();
-            for (int i = 0; i < val.length; i++) {
-                if (i > 0) {
-                    result.append(",");
-                }
-                result.append(Integer.toString(val[i]));
-            }
-            put(field, result.toString());
+            putUnrendered(field, val.clone());
         }
     }
 
+    /**
+     * A value parsed from, or stored instead of, the String value of a field.
+     */
+    private static final class Parsed {
+        /** The String value the value belongs to, compared by identity. */
+        private String source;
+
+        /** The parsed value. */
+        private final Object value;
+
+        /** True if the value is an array that has not been rendered to text yet. */
+        private boolean unrendered;
+
+        /**
+         * Create a parsed value.
+         *
+         * @param source the String value the value belongs to
+         * @param value the parsed value
+         * @param unrendered true if the value has not been rendered to text yet
+         */
+        private Parsed(final String source, final Object value, final boolean unrendered) {
+            super();
+            this.source = source;
+            this.value = value;
+            this.unrendered = unrendered;
+        }
+    }
 }
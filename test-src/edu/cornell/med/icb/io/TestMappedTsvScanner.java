@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.MappedTsvScanner} against the
+ * {@link edu.cornell.med.icb.io.TSVReader}.
+ */
+public class TestMappedTsvScanner {
+    /**
+     * The charset used by the tests.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Test an empty file has no lines.
+     */
+    @Test
+    public void testEmptyFile() throws IOException {
+        final File file = makeFile("");
+        try {
+            final MappedTsvScanner scanner = new MappedTsvScanner(file);
+            assertFalse("Empty file should have no lines", scanner.hasNext());
+            scanner.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test reading typed fields, comments, escapes and line terminators.
+     */
+    @Test
+    public void testFields() throws IOException {
+        final File file = makeFile("# comment\r\n"
+                + "1\t-42\t3.25\tabc\r\n"
+                + "\n"
+                + "7\t1e-3\tx\\\ty\tgrün\r"
+                + "8");
+        try {
+            final MappedTsvScanner scanner = new MappedTsvScanner(file, '\t', UTF8);
+            assertTrue(scanner.hasNext());
+            assertTrue(scanner.isCommentLine());
+            scanner.skip();
+
+            assertTrue(scanner.hasNext());
+            scanner.next();
+            assertEquals(4, scanner.numTokens());
+            assertEquals(1, scanner.getInt());
+            assertEquals(-42L, scanner.getLong());
+            assertEquals(3.25d, scanner.getDouble(), 0.0d);
+            assertEquals("abc", scanner.getString());
+
+            assertTrue(scanner.hasNext());
+            assertTrue(scanner.isEmptyLine());
+            scanner.next();
+            assertEquals(0, scanner.numTokens());
+
+            assertTrue(scanner.hasNext());
+            scanner.next();
+            assertEquals(4, scanner.numTokens());
+            assertEquals(7, scanner.getInt());
+            assertEquals(0.001d, scanner.getDouble(), 0.0d);
+            assertEquals("x\ty", scanner.getString());
+            assertEquals("grün", scanner.getString());
+
+            assertTrue(scanner.hasNext());
+            scanner.next();
+            assertEquals(8, scanner.getInt());
+            assertFalse(scanner.hasNext());
+            scanner.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Use windows much smaller than the file and some of its lines, the
+     * fields should be the same as those returned by TSVReader.
+     */
+    @Test
+    public void testSlidingWindows() throws IOException {
+        final StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            contents.append(i).append("\t\\").append(i % 7).append("\t\t");
+            contents.append(i * 0.37d).append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 50 == 0) {
+                for (int j = 0; j < 100; j++) {
+                    contents.append(j).append('\t');
+                }
+                contents.append('\n');
+            }
+        }
+        final File file = makeFile(contents.toString());
+        try {
+            final TSVReader reader = new TSVReader(new StringReader(contents.toString()));
+            final MappedTsvScanner scanner = new MappedTsvScanner(file, '\t', UTF8);
+            scanner.setWindowSize(64);
+            while (reader.hasNext()) {
+                assertTrue(scanner.hasNext());
+                reader.next();
+                scanner.next();
+                assertEquals(reader.numTokens(), scanner.numTokens());
+                for (int i = 0; i < reader.numTokens(); i++) {
+                    assertEquals(reader.getString(), scanner.getString());
+                }
+            }
+            assertFalse(scanner.hasNext());
+            scanner.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Make a temporary file with the specified contents.
+     * @param contents the contents of the file
+     * @return the file that was created
+     * @throws IOException error creating the file
+     */
+    private File makeFile(final String contents) throws IOException {
+        final File file = File.createTempFile("mapped-tsv", ".txt");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
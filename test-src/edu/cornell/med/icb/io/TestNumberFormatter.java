@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Validate {@link edu.cornell.med.icb.io.NumberFormatter} against the JDK.
+ */
+public class TestNumberFormatter {
+    /**
+     * Test specific doubles are written as expected.
+     */
+    @Test
+    public void testDoubleValues() {
+        assertEquals("0.0", format(0.0d));
+        assertEquals("-0.0", format(-0.0d));
+        assertEquals("1.0", format(1.0d));
+        assertEquals("-1.5", format(-1.5d));
+        assertEquals("0.1", format(0.1d));
+        assertEquals("0.001", format(0.001d));
+        assertEquals("9.9E-4", format(0.00099d));
+        assertEquals("9999999.0", format(9999999.0d));
+        assertEquals("1.0E7", format(1.0e7d));
+        assertEquals("1.0E23", format(1.0e23d));
+        assertEquals("2.0E-44", format(2.0e-44d));
+        assertEquals("4.9E-324", format(Double.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", format(Double.MAX_VALUE));
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * Test random doubles read back as the same value and are never longer than
+     * {@link Double#toString(double)}.
+     */
+    @Test
+    public void testRandomDoubles() {
+        final Random random = new Random(3217);
+        for (int i = 0; i < 200000; i++) {
+            final double value;
+            if (i % 2 == 0) {
+                value = Double.longBitsToDouble(random.nextLong());
+            } else {
+                value = random.nextDouble() * Math.pow(10, random.nextInt(30) - 15);
+            }
+            final String text = format(value);
+            if (Double.isNaN(value)) {
+                assertEquals("NaN", text);
+                continue;
+            }
+            assertEquals("Wrong value for " + text,
+                    Double.doubleToRawLongBits(value),
+                    Double.doubleToRawLongBits(Double.parseDouble(text)));
+            assertTrue(text + " is longer than " + value,
+                    text.length() <= Double.toString(value).length());
+        }
+    }
+
+    /**
+     * Test ints and longs are written like the JDK writes them.
+     */
+    @Test
+    public void testIntegers() {
+        final Random random = new Random(1553);
+        final char[] chars = new char[NumberFormatter.MAX_LONG_LENGTH + 2];
+        final long[] values = {0, 1, -1, 9, 10, -10, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        for (final long value : values) {
+            int end = NumberFormatter.formatLong(value, chars, 1);
+            assertEquals(Long.toString(value), new String(chars, 1, end - 1));
+            end = NumberFormatter.formatInt((int) value, chars, 0);
+            assertEquals(Integer.toString((int) value), new String(chars, 0, end));
+        }
+        for (int i = 0; i < 10000; i++) {
+            final long value = random.nextLong();
+            final int end = NumberFormatter.formatLong(value, chars, 0);
+            assertEquals(Long.toString(value), new String(chars, 0, end));
+        }
+    }
+
+    /**
+     * Format a double into a String.
+     *
+     * @param value the value to format
+     * @return the text
+     */
+    private static String format(final double value) {
+        final char[] chars = new char[NumberFormatter.MAX_DOUBLE_LENGTH + 4];
+        final int end = NumberFormatter.formatDouble(value, chars, 2);
+        return new String(chars, 2, end - 2);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Validate {@link edu.cornell.med.icb.io.NumberParser} against the JDK parsers.
+ */
+public class TestNumberParser {
+    /**
+     * Values that exercise the fast paths, the fallbacks and the rounding corner cases.
+     */
+    private static final String[] DOUBLES = {
+            "0", "-0", "-0.0", "1", "+1", "1.", ".5", "-.5", "1e5", "1E-5", "1.e5", "+.1e+1",
+            "3.141592653589793", "7.3177701707893310e+15", "7.2057594037927933e+16",
+            "1e23", "9007199254740993", "2.2250738585072011e-308", "4.9e-324",
+            "1.7976931348623157e308", "1.7976931348623159e308", "1e400", "1e-400",
+            "-1e-400", "1e0000000000000000000005", "12345678901234567890",
+            "1234567890123456789", "9999999999999999999", "NaN", "-Infinity",
+            "0x1p3", " 1", "1 ", "1d", "1f"
+    };
+
+    /**
+     * Text that is not a valid number.
+     */
+    private static final String[] INVALID = {
+            "", "-", "+", ".", "e5", "1e", "1e+", "1..2", "1-2", "--1", "abc", "1,5"
+    };
+
+    /**
+     * Test specific doubles and invalid input give the same results as the JDK.
+     */
+    @Test
+    public void testDoubleValues() {
+        for (final String value : DOUBLES) {
+            assertDoubleSame(value);
+        }
+        for (final String value : INVALID) {
+            assertDoubleSame(value);
+        }
+    }
+
+    /**
+     * Test random doubles, printed several ways, parse to exactly the same value as
+     * they do with {@link Double#parseDouble(String)}.
+     */
+    @Test
+    public void testRandomDoubles() {
+        final Random random = new Random(5280);
+        for (int i = 0; i < 100000; i++) {
+            final double value;
+            switch (i % 3) {
+                case 0:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 1:
+                    value = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+                    break;
+                default:
+                    value = random.nextGaussian() * 1000;
+                    break;
+            }
+            assertDoubleSame(Double.toString(value));
+            assertDoubleSame(String.format("%.17e", value));
+            final StringBuilder digits = new StringBuilder();
+            final int numDigits = 1 + random.nextInt(19);
+            for (int j = 0; j < numDigits; j++) {
+                digits.append((char) ('0' + random.nextInt(10)));
+            }
+            digits.append('e').append(random.nextInt(700) - 350);
+            assertDoubleSame(digits.toString());
+            if (!Double.isNaN(value) && !Double.isInfinite(value) && i % 10 == 0) {
+                // Exactly halfway between two doubles
+                final BigDecimal low = new BigDecimal(value);
+                final BigDecimal high = new BigDecimal(Math.nextUp(value));
+                assertDoubleSame(low.add(high).divide(BigDecimal.valueOf(2)).toString());
+            }
+        }
+    }
+
+    /**
+     * Test ints and longs give the same results as the JDK.
+     */
+    @Test
+    public void testIntegers() {
+        final Random random = new Random(1009);
+        final String[] values = {
+                "0", "-0", "+7", "2147483647", "-2147483648", "2147483648", "-2147483649",
+                "9223372036854775807", "-9223372036854775808", "9223372036854775808",
+                "123456789012345678", "1.0", " 1", "0x10"
+        };
+        for (final String value : values) {
+            assertIntegerSame(value);
+        }
+        for (final String value : INVALID) {
+            assertIntegerSame(value);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertIntegerSame(Long.toString(random.nextLong()));
+            assertIntegerSame(Integer.toString(random.nextInt()));
+        }
+    }
+
+    /**
+     * Test the lenient methods return the default value for invalid text.
+     */
+    @Test
+    public void testLenient() {
+        assertEquals(1.5d, NumberParser.toDouble("1.5", 0.0d), 0.0d);
+        assertEquals(-1.0d, NumberParser.toDouble("abc", -1.0d), 0.0d);
+        assertEquals(-1.0d, NumberParser.toDouble(null, -1.0d), 0.0d);
+        assertEquals(42, NumberParser.toInt("42", 0));
+        assertEquals(7, NumberParser.toInt("4.2", 7));
+        assertEquals(7, NumberParser.toInt(null, 7));
+    }
+
+    /**
+     * Assert all the double methods match {@link Double#parseDouble(String)}.
+     *
+     * @param value the text to parse
+     */
+    private static void assertDoubleSame(final String value) {
+        final String padded = "x" + value + "y";
+        final char[] chars = padded.toCharArray();
+        final ByteBuffer bytes = ByteBuffer.wrap(padded.getBytes());
+        final int end = value.length() + 1;
+
+        Double expected;
+        try {
+            expected = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            expected = null;
+        }
+        for (int method = 0; method < 3; method++) {
+            try {
+                final double actual;
+                switch (method) {
+                    case 0:
+                        actual = NumberParser.parseDouble(value);
+                        break;
+                    case 1:
+                        actual = NumberParser.parseDouble(chars, 1, end);
+                        break;
+                    default:
+                        actual = NumberParser.parseDouble(bytes, 1, end);
+                        break;
+                }
+                if (expected == null) {
+                    fail("Should not parse " + value);
+                }
+                assertEquals("Wrong value for " + value,
+                        Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+            } catch (NumberFormatException e) {
+                if (expected != null) {
+                    fail("Should parse " + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Assert the int and long methods match {@link Integer#parseInt(String)} and
+     * {@link Long#parseLong(String)}.
+     *
+     * @param value the text to parse
+     */
+    private static void assertIntegerSame(final String value) {
+        final String padded = "x" + value + "y";
+        final char[] chars = padded.toCharArray();
+        final ByteBuffer bytes = ByteBuffer.wrap(padded.getBytes());
+        final int end = value.length() + 1;
+
+        Long expectedLong;
+        try {
+            expectedLong = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            expectedLong = null;
+        }
+        Integer expectedInt;
+        try {
+            expectedInt = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            expectedInt = null;
+        }
+        for (int method = 0; method < 3; method++) {
+            Long actualLong;
+            Integer actualInt;
+            try {
+                switch (method) {
+                    case 0:
+                        actualLong = NumberParser.parseLong(value);
+                        break;
+                    case 1:
+                        actualLong = NumberParser.parseLong(chars, 1, end);
+                        break;
+                    default:
+                        actualLong = NumberParser.parseLong(bytes, 1, end);
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                actualLong = null;
+            }
+            try {
+                switch (method) {
+                    case 0:
+                        actualInt = NumberParser.parseInt(value);
+                        break;
+                    case 1:
+                        actualInt = NumberParser.parseInt(chars, 1, end);
+                        break;
+                    default:
+                        actualInt = NumberParser.parseInt(bytes, 1, end);
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                actualInt = null;
+            }
+            assertEquals("Wrong long for " + value, expectedLong, actualLong);
+            assertEquals("Wrong int for " + value, expectedInt, actualInt);
+        }
+    }
+}
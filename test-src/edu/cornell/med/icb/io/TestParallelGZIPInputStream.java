@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.ParallelGZIPInputStream}.
+ */
+public class TestParallelGZIPInputStream {
+    /**
+     * Test data written by the parallel writer is read back in order.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] data = new byte[1000000];
+        final Random random = new Random(7);
+        for (int i = 0; i < data.length; i++) {
+            // Half random, half repetitive so blocks are both stored and deflated
+            data[i] = (byte) (i < data.length / 2 ? random.nextInt() : 'a' + i % 7);
+        }
+        final byte[] compressed = compress(data);
+        final InputStream in =
+                new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), 3);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[10000];
+        int count;
+        while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    /**
+     * Test gzip members that are not in the BGZF layout are read, alone or between BGZF
+     * blocks, as with files joined by cat.
+     */
+    @Test
+    public void testPlainGzip() throws IOException {
+        final byte[] plain = new byte[300000];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte) ('0' + i % 10);
+        }
+        assertArrayEquals(plain, readAll(gzip(plain)));
+
+        final byte[] data = new byte[200000];
+        new Random(3).nextBytes(data);
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        joined.write(compress(data));
+        joined.write(gzip(plain));
+        joined.write(gzip(plain));
+        joined.write(compress(data));
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data);
+        expected.write(plain);
+        expected.write(plain);
+        expected.write(data);
+        assertArrayEquals(expected.toByteArray(), readAll(joined.toByteArray()));
+    }
+
+    /**
+     * Test a truncated plain gzip member is detected.
+     */
+    @Test
+    public void testTruncatedPlainGzip() throws IOException {
+        final byte[] compressed = gzip("plain gzip".getBytes());
+        final byte[] truncated = new byte[compressed.length - 3];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            readAll(truncated);
+            fail("The truncated member should be detected");
+        } catch (IOException e) {
+            assertEquals("Truncated gzip member", e.getMessage());
+        }
+    }
+
+    /**
+     * Test corrupt blocks are detected.
+     */
+    @Test
+    public void testCorruptBlock() throws IOException {
+        final byte[] data = new byte[100000];
+        final byte[] compressed = compress(data);
+        // Change the CRC of the first block
+        final int blockSize = (compressed[16] & 0xFF) + ((compressed[17] & 0xFF) << 8) + 1;
+        compressed[blockSize - 8]++;
+        final InputStream in =
+                new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), 2);
+        try {
+            in.read();
+            fail("The corrupt block should be detected");
+        } catch (IOException e) {
+            assertEquals("Corrupt BGZF block, CRC mismatch", e.getMessage());
+        }
+        in.close();
+    }
+
+    /**
+     * Test a block whose deflate data ends before its recorded size, with bytes left over
+     * after it, is detected rather than read forever.
+     */
+    @Test(timeout = 10000)
+    public void testShortBlock() throws IOException {
+        final byte[] data = "short block".getBytes();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        final byte[] deflated = new byte[100];
+        final int deflatedLength = deflater.deflate(deflated);
+        deflater.end();
+        // Trailing garbage after the end of the deflate stream
+        final int payloadLength = deflatedLength + 4;
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(new byte[] {31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0,
+                'B', 'C', 2, 0});
+        writeShort(block, 18 + payloadLength + 8 - 1);
+        block.write(deflated, 0, payloadLength);
+        writeInt(block, (int) crc.getValue());
+        // A size larger than the data
+        writeInt(block, data.length + 10);
+        try {
+            readAll(block.toByteArray());
+            fail("The short block should be detected");
+        } catch (IOException e) {
+            assertEquals("Corrupt BGZF block, size mismatch", e.getMessage());
+        }
+    }
+
+    /**
+     * Write a little endian short.
+     *
+     * @param out where to write
+     * @param value the value
+     */
+    private static void writeShort(final OutputStream out, final int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    /**
+     * Write a little endian int.
+     *
+     * @param out where to write
+     * @param value the value
+     */
+    private static void writeInt(final OutputStream out, final int value) throws IOException {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, value >>> 16);
+    }
+
+    /**
+     * Read all the data of a compressed stream with a {@link ParallelGZIPInputStream}.
+     *
+     * @param compressed the compressed data
+     * @return the decompressed data
+     * @throws IOException error decompressing
+     */
+    private static byte[] readAll(final byte[] compressed) throws IOException {
+        final InputStream in =
+                new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), 2);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7000];
+        int count;
+        try {
+            while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress data with a {@link GZIPOutputStream}.
+     *
+     * @param data the data
+     * @return the gzip compressed data
+     * @throws IOException error compressing
+     */
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compress data with a {@link ParallelGZIPOutputStream}.
+     *
+     * @param data the data
+     * @return the BGZF compressed data
+     * @throws IOException error compressing
+     */
+    private static byte[] compress(final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new ParallelGZIPOutputStream(bytes, 2);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
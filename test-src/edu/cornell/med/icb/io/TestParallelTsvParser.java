@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import org.apache.commons.lang.StringUtils;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.ParallelTsvParser} against the
+ * {@link edu.cornell.med.icb.io.TSVReader}.
+ */
+public class TestParallelTsvParser {
+    /**
+     * The charset used by the tests.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Rows handed over in file order should be the same as those read with TSVReader.
+     */
+    @Test
+    public void testOrdered() throws IOException {
+        final String contents = makeContents();
+        final File file = makeFile(contents);
+        try {
+            final List<String> rows = parse(file, true);
+            assertEquals(readWithTsvReader(contents), rows);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Rows handed over as they are parsed should be the same rows as those read
+     * with TSVReader, in any order.
+     */
+    @Test
+    public void testUnordered() throws IOException {
+        final String contents = makeContents();
+        final File file = makeFile(contents);
+        try {
+            final List<String> rows = parse(file, false);
+            final List<String> expected = readWithTsvReader(contents);
+            Collections.sort(rows);
+            Collections.sort(expected);
+            assertEquals(expected, rows);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A parse that stops early should not leave its tasks running into the next parse
+     * made with the same parser and pool.
+     */
+    @Test(timeout = 30000)
+    public void testParseAfterAbort() throws IOException {
+        final String contents = makeContents();
+        final File file = makeFile(contents);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final ParallelTsvParser parser = new ParallelTsvParser(file, '\t', UTF8)
+                    .setChunkSize(1000).setBatchSize(7).setQueueCapacity(2).setPool(pool);
+            try {
+                parser.parse(new ParallelTsvParser.RowHandler() {
+                    public void handleRow(final String[] fields) {
+                        throw new IllegalStateException("stop");
+                    }
+                });
+            } catch (IllegalStateException e) {
+                assertEquals("stop", e.getMessage());
+            }
+            final List<String> rows = new ArrayList<String>();
+            parser.parse(new ParallelTsvParser.RowHandler() {
+                public void handleRow(final String[] fields) {
+                    rows.add(StringUtils.join(fields, '|'));
+                }
+            });
+            assertEquals(readWithTsvReader(contents), rows);
+        } finally {
+            pool.shutdown();
+            file.delete();
+        }
+    }
+
+    /**
+     * Parse a file in small ranges, joining each row into a String.
+     * @param file the file to parse
+     * @param ordered if the rows should be handed over in file order
+     * @return the rows
+     * @throws IOException error parsing the file
+     */
+    private List<String> parse(final File file, final boolean ordered) throws IOException {
+        final List<String> rows = new ArrayList<String>();
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            new ParallelTsvParser(file, '\t', UTF8).setOrdered(ordered).setChunkSize(1000)
+                    .setBatchSize(7).setQueueCapacity(2).setPool(pool)
+                    .parse(new ParallelTsvParser.RowHandler() {
+                        public void handleRow(final String[] fields) {
+                            rows.add(StringUtils.join(fields, '|'));
+                        }
+                    });
+        } finally {
+            pool.shutdown();
+        }
+        return rows;
+    }
+
+    /**
+     * Read the rows with TSVReader, skipping comment and empty lines.
+     * @param contents the contents of the file
+     * @return the rows
+     * @throws IOException error reading the rows
+     */
+    private List<String> readWithTsvReader(final String contents) throws IOException {
+        final List<String> rows = new ArrayList<String>();
+        final TSVReader reader = new TSVReader(new StringReader(contents));
+        while (reader.hasNext()) {
+            if (reader.isCommentLine() || reader.isEmptyLine()) {
+                reader.skip();
+                continue;
+            }
+            reader.next();
+            final String[] fields = new String[reader.numTokens()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = reader.getString();
+            }
+            rows.add(StringUtils.join(fields, '|'));
+        }
+        return rows;
+    }
+
+    /**
+     * Make the contents of a test file with comments, empty lines and escapes.
+     * @return the contents
+     */
+    private String makeContents() {
+        final StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            if (i % 97 == 0) {
+                contents.append("# comment ").append(i).append('\n');
+            }
+            if (i % 89 == 0) {
+                contents.append('\n');
+            }
+            contents.append(i).append("\ta\\\tb").append(i % 13).append('\t');
+            contents.append(i * 1.5d).append(i % 5 == 0 ? "\r\n" : "\n");
+        }
+        return contents.toString();
+    }
+
+    /**
+     * Make a temporary file with the specified contents.
+     * @param contents the contents of the file
+     * @return the file that was created
+     * @throws IOException error creating the file
+     */
+    private File makeFile(final String contents) throws IOException {
+        final File file = File.createTempFile("parallel-tsv", ".txt");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.ReadAheadInputStream}.
+ */
+public class TestReadAheadInputStream {
+    /**
+     * Test all the bytes are read in order through buffers smaller than the data.
+     */
+    @Test
+    public void testRead() throws IOException {
+        final byte[] data = new byte[100000];
+        new Random(12).nextBytes(data);
+        final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 777);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data[0] & 0xFF, in.read());
+        out.write(data[0]);
+        final byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    /**
+     * Test errors of the background thread are thrown to the reader.
+     */
+    @Test
+    public void testError() throws IOException {
+        final InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 10) {
+                    throw new IOException("broken");
+                }
+                return 'x';
+            }
+        };
+        final InputStream in = new ReadAheadInputStream(failing, 4);
+        int read = 0;
+        try {
+            while (in.read() != -1) {
+                read++;
+            }
+            fail("The error should be thrown");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals(10, read);
+        in.close();
+    }
+}
@@ -28,6 +28,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.NoSuchElementException;
 
 /**
  * Some simple validation on the {@link edu.cornell.med.icb.io.TSVReader}.
@@ -90,4 +91,178 @@ public class TestTSVReader {
         }
         fail("TSVReader should be closed");
     }
+
+    /**
+     * Test reading numeric and string fields in cursor mode.
+     */
+    @Test
+    public void testCursorMode() throws IOException {
+        final String foo = "# comment\r\n"
+                + "1\t-42\t3.25\t9876543210\tabc\r\n"
+                + "\n"
+                + "7\t1e-3\tx\\\ty\r"
+                + "8\t0.1\t123456789012345678901234";
+        final TSVReader reader = new TSVReader(new StringReader(foo)).setCursorMode(true);
+        assertTrue(reader.hasNext());
+        assertTrue(reader.isCommentLine());
+        reader.skip();
+
+        assertTrue(reader.hasNext());
+        assertFalse(reader.isCommentLine());
+        reader.next();
+        assertEquals(5, reader.numTokens());
+        assertEquals(1, reader.getInt());
+        assertEquals(-42L, reader.getLong());
+        assertEquals(3.25d, reader.getDouble(), 0.0d);
+        assertEquals(9876543210L, reader.getLong());
+        assertEquals("abc", reader.getCharSequence().toString());
+
+        assertTrue(reader.hasNext());
+        assertTrue(reader.isEmptyLine());
+        reader.next();
+        assertEquals(0, reader.numTokens());
+
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals(3, reader.numTokens());
+        assertEquals(7, reader.getInt());
+        assertEquals(0.001d, reader.getDouble(), 0.0d);
+        assertEquals("x\ty", reader.getString());
+
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals(8, reader.getInt());
+        assertEquals(0.1d, reader.getDouble(), 0.0d);
+        assertEquals(1.2345678901234568E23d, reader.getDouble(), 0.0d);
+        assertFalse(reader.hasNext());
+    }
+
+    /**
+     * Cursor mode should return the same fields as the default mode.
+     */
+    @Test
+    public void testCursorModeMatchesDefaultMode() throws IOException {
+        final StringBuilder foo = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            foo.append(i).append("\t\\").append(i % 7).append("\t\t");
+            foo.append(i * 0.37d).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        // a line longer than the initial cursor buffer
+        for (int i = 0; i < 5000; i++) {
+            foo.append(i).append('\t');
+        }
+        final TSVReader defaultReader = new TSVReader(new StringReader(foo.toString()));
+        final TSVReader cursorReader =
+                new TSVReader(new StringReader(foo.toString())).setCursorMode(true);
+        while (defaultReader.hasNext()) {
+            assertTrue(cursorReader.hasNext());
+            defaultReader.next();
+            cursorReader.next();
+            assertEquals(defaultReader.numTokens(), cursorReader.numTokens());
+            for (int i = 0; i < defaultReader.numTokens(); i++) {
+                assertEquals(defaultReader.getString(), cursorReader.getString());
+            }
+        }
+        assertFalse(cursorReader.hasNext());
+    }
+
+    /**
+     * Test parsing only some of the columns, by number and by name.
+     */
+    @Test
+    public void testProjection() throws IOException {
+        final String foo = "# comment\n"
+                + "id\tname\tscore\tcount\n"
+                + "1\tfoo\t0.5\t10\n"
+                + "2\tbar\t1.5\n";
+        TSVReader reader = new TSVReader(new StringReader(foo));
+        final String[] header = reader.readHeader();
+        assertEquals(4, header.length);
+        assertEquals("score", header[2]);
+        reader.setProjection("count", "id");
+        assertTrue(reader.isCursorMode());
+
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals(2, reader.numTokens());
+        assertEquals(10, reader.getInt());
+        assertEquals(1, reader.getInt());
+
+        assertTrue(reader.hasNext());
+        reader.next();
+        try {
+            reader.getInt();
+            fail("The line has no count column");
+        } catch (NoSuchElementException e) {
+            // this is good...
+        }
+        assertFalse(reader.hasNext());
+
+        reader = new TSVReader(new StringReader(foo)).setProjection(2);
+        assertTrue(reader.hasNext());
+        reader.skip();
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals("score", reader.getString());
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals(0.5d, reader.getDouble(), 0.0d);
+    }
+
+    /**
+     * Test reading rows and column blocks into primitive arrays.
+     */
+    @Test
+    public void testBulkReads() throws IOException {
+        final String foo = "# comment\n"
+                + "1\t2\t3\n"
+                + "\n"
+                + "4\t5\t6\n"
+                + "7\t8\t9\n";
+        TSVReader reader = new TSVReader(new StringReader(foo)).setCursorMode(true);
+        final double[] doubleRow = new double[2];
+        assertEquals(2, reader.readDoubleRow(doubleRow));
+        assertEquals(1.0d, doubleRow[0], 0.0d);
+        assertEquals(2.0d, doubleRow[1], 0.0d);
+        final int[] intRow = new int[5];
+        assertEquals(3, reader.readIntRow(intRow));
+        assertEquals(4, intRow[0]);
+        assertEquals(6, intRow[2]);
+
+        reader = new TSVReader(new StringReader(foo)).setCursorMode(true).setProjection(2, 0);
+        final double[][] block = new double[2][2];
+        assertEquals(2, reader.readDoubleColumnBlock(2, block));
+        assertEquals(3.0d, block[0][0], 0.0d);
+        assertEquals(6.0d, block[0][1], 0.0d);
+        assertEquals(1.0d, block[1][0], 0.0d);
+        assertEquals(4.0d, block[1][1], 0.0d);
+        assertEquals(1, reader.readDoubleColumnBlock(2, block));
+        assertEquals(9.0d, block[0][0], 0.0d);
+        assertEquals(0, reader.readDoubleColumnBlock(2, block));
+        assertEquals(-1, reader.readDoubleRow(doubleRow));
+    }
+
+    /**
+     * Bulk reads switch a reader in the default mode to cursor mode, keeping a line
+     * already read by hasNext().
+     */
+    @Test
+    public void testBulkReadsDefaultMode() throws IOException {
+        final TSVReader reader = new TSVReader(new StringReader("a\tb\n1\t2\n3\t4\n5\t6"));
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals("a", reader.getString());
+        assertTrue(reader.hasNext());
+        assertFalse(reader.isCursorMode());
+        final int[] row = new int[2];
+        assertEquals(2, reader.readIntRow(row));
+        assertTrue(reader.isCursorMode());
+        assertEquals(1, row[0]);
+        assertEquals(2, row[1]);
+        final double[][] block = new double[2][2];
+        assertEquals(2, reader.readDoubleColumnBlock(2, block));
+        assertEquals(3.0d, block[0][0], 0.0d);
+        assertEquals(6.0d, block[1][1], 0.0d);
+        assertEquals(-1, reader.readIntRow(row));
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.TSVWriter} by reading its output back with the
+ * {@link edu.cornell.med.icb.io.TSVReader}.
+ */
+public class TestTSVWriter {
+    /**
+     * The charset used by the tests.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Test the text written for typed fields and escaped Strings.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        final StringWriter out = new StringWriter();
+        final TSVWriter writer = new TSVWriter(out);
+        writer.writeInt(-12).writeLong(Long.MAX_VALUE).writeDouble(0.1).writeString("a\tb");
+        writer.newLine();
+        writer.writeRow("c\\d", null, "e");
+        writer.writeRow(new int[] {1, 2});
+        writer.close();
+        assertEquals("-12\t9223372036854775807\t0.1\ta\\\tb\n"
+                + "c\\\\d\t\te\n"
+                + "1\t2\n", out.toString());
+
+        final TSVReader reader = new TSVReader(new StringReader(out.toString()));
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals(-12, reader.getInt());
+        assertEquals(Long.MAX_VALUE, reader.getLong());
+        assertEquals(0.1d, reader.getDouble(), 0.0d);
+        assertEquals("a\tb", reader.getString());
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals("c\\d", reader.getString());
+        assertEquals("", reader.getString());
+        assertEquals("e", reader.getString());
+        reader.close();
+    }
+
+    /**
+     * Test a line starting with '#' is not read back as a comment.
+     */
+    @Test
+    public void testLeadingHash() throws IOException {
+        final StringWriter out = new StringWriter();
+        final TSVWriter writer = new TSVWriter(out);
+        writer.writeRow("#x", "#y");
+        writer.writeRow("a", "#b");
+        writer.close();
+        assertEquals("\\#x\t#y\na\t#b\n", out.toString());
+
+        final TSVReader reader = new TSVReader(new StringReader(out.toString()));
+        assertTrue(reader.hasNext());
+        assertFalse(reader.isCommentLine());
+        reader.next();
+        assertEquals("#x", reader.getString());
+        assertEquals("#y", reader.getString());
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertEquals("a", reader.getString());
+        assertEquals("#b", reader.getString());
+        reader.close();
+    }
+
+    /**
+     * Test Strings that cannot be read back are rejected.
+     */
+    @Test
+    public void testInvalidStrings() throws IOException {
+        final TSVWriter writer = new TSVWriter(new StringWriter());
+        try {
+            writer.writeString("two\nlines");
+            fail("Line breaks should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        writer.setEscapeChar(null);
+        try {
+            writer.writeString("a\tb");
+            fail("Unescaped delimiters should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test random doubles read back exactly through a small buffer.
+     */
+    @Test
+    public void testDoublesRoundTrip() throws IOException {
+        final Random random = new Random(77);
+        final double[][] rows = new double[500][7];
+        final StringWriter out = new StringWriter();
+        final TSVWriter writer = new TSVWriter(out, ',', 64);
+        for (final double[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = Double.longBitsToDouble(random.nextLong());
+            }
+            writer.writeRow(row);
+        }
+        writer.close();
+
+        final TSVReader reader = new TSVReader(new StringReader(out.toString()), ',');
+        final double[] read = new double[7];
+        for (final double[] row : rows) {
+            assertEquals(row.length, reader.readDoubleRow(read));
+            for (int i = 0; i < row.length; i++) {
+                assertEquals(Double.doubleToLongBits(row[i]), Double.doubleToLongBits(read[i]));
+            }
+        }
+        assertEquals(-1, reader.readDoubleRow(read));
+        reader.close();
+    }
+
+    /**
+     * Test gzip files written on several threads read back with a plain GZIPInputStream.
+     */
+    @Test
+    public void testParallelGzip() throws IOException {
+        final File file = File.createTempFile("test-tsv-writer", ".tsv.gz");
+        try {
+            final TSVWriter writer = TSVWriter.open(file, UTF8, 4);
+            for (int i = 0; i < 100000; i++) {
+                writer.writeInt(i).writeString("grün").writeDouble(i / 7.0d).newLine();
+            }
+            writer.close();
+
+            final TSVReader reader = new TSVReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(file)), UTF8));
+            for (int i = 0; i < 100000; i++) {
+                assertTrue(reader.hasNext());
+                reader.next();
+                assertEquals(i, reader.getInt());
+                assertEquals("grün", reader.getString());
+                assertEquals(i / 7.0d, reader.getDouble(), 0.0d);
+            }
+            assertFalse(reader.hasNext());
+            reader.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
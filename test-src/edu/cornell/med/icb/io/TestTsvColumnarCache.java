@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import edu.cornell.med.icb.iterators.TsvLineIterator;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Validate that the rows of a {@link TsvColumnarCache} read like the rows of the TSV file.
+ */
+public class TestTsvColumnarCache {
+    /**
+     * Every getter returns the same for the cached rows as for the lines of the file.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void sameValues() throws IOException {
+        final File file = makeFile("# a comment\n"
+                + "id\tcount\texpr\tpadded\tvector\tmixed\n"
+                + "a\t1\t0.5\t007\t1,2,3\t1\n"
+                + "b\t\t\t\t\t2.5\n"
+                + "a\t-12\t1.0E-300\t1.50\t4\t\n"
+                + "c\t2147483647\tNaN\t x\t 5, 6\tword\n");
+        try {
+            final TsvColumnarCache cache = TsvColumnarCache.open(file);
+            assertTrue(TsvColumnarCache.getCacheFile(file).exists());
+            assertEquals(4, cache.getNumRows());
+            assertEquals(Arrays.asList("id", "count", "expr", "padded", "vector", "mixed"),
+                    cache.getColumns().getColumnHeaders());
+            assertTrue(cache.isNumeric(1));
+            assertTrue(cache.isInt(1));
+            assertTrue(cache.isNumeric(2));
+            assertFalse(cache.isInt(2));
+            assertFalse(cache.isNumeric(3));
+            assertFalse(cache.isNumeric(5));
+
+            final TsvToFromMap columns = cache.getColumns();
+            final List<TsvRow> expected = new ArrayList<TsvRow>();
+            final TsvLineIterator lines = new TsvLineIterator(file, columns);
+            for (final TsvRow row : lines.rows()) {
+                expected.add(row.copy());
+            }
+            lines.close();
+            int i = 0;
+            for (final TsvRow row : cache.rows()) {
+                final TsvRow line = expected.get(i++);
+                assertEquals(line.getLine(), row.getLine());
+                assertEquals(line.toMap(), row.toMap());
+                for (int column = 0; column < columns.getNumColumnHeaders(); column++) {
+                    assertEquals(line.getString(column), row.getString(column));
+                    assertEquals(line.getDouble(column), row.getDouble(column));
+                    assertEquals(line.getInt(column), row.getInt(column));
+                    assertArrayEquals(line.getDoubleArray(column, ','),
+                            row.getDoubleArray(column, ','), 0);
+                    assertArrayEquals(line.getIntArray(column, ','), row.getIntArray(column, ','));
+                    assertArrayEquals(line.getDoubleArray(column, ' '),
+                            row.getDoubleArray(column, ' '), 0);
+                }
+            }
+            assertEquals(expected.size(), i);
+
+            // Column handles and random access
+            final ColumnRef<Integer> count = columns.intColumn("count");
+            final TsvRow row = cache.getRow(2, null);
+            assertEquals(Integer.valueOf(-12), count.get(row));
+            assertEquals("a", row.getString("id"));
+            final TsvRow copy = row.copy();
+            cache.getRow(1, row);
+            assertNull(count.get(row));
+            assertEquals(Integer.valueOf(-12), count.get(copy));
+        } finally {
+            deleteFiles(file);
+        }
+    }
+
+    /**
+     * The side file is reused while the TSV file is unchanged and rebuilt otherwise.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void invalidation() throws IOException {
+        final File file = makeFile("name\tvalue\nx\t1\n");
+        try {
+            final TsvColumnarCache first = TsvColumnarCache.open(file);
+            assertTrue(first.isUpToDate());
+            final File cacheFile = TsvColumnarCache.getCacheFile(file);
+            final long built = cacheFile.lastModified();
+            assertTrue(cacheFile.setLastModified(built - 10000));
+            TsvColumnarCache.open(file);
+            assertEquals(built - 10000, cacheFile.lastModified());
+
+            FileUtils.writeStringToFile(file, "name\tvalue\nx\t1\ny\t2.5\n");
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            assertFalse(first.isUpToDate());
+            final TsvColumnarCache second = TsvColumnarCache.open(file);
+            assertTrue(second.isUpToDate());
+            assertEquals(2, second.getNumRows());
+            assertEquals(2.5, second.getRow(1, null).getDouble("value"), 0);
+            // The first cache still reads the rows it was built with
+            assertEquals(1, first.getNumRows());
+            assertEquals("1", first.getRow(0, null).getString("value"));
+        } finally {
+            deleteFiles(file);
+        }
+    }
+
+    /**
+     * A file with only a header has no rows.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void noRows() throws IOException {
+        final File file = makeFile("one\ttwo\n");
+        try {
+            final TsvColumnarCache cache = TsvColumnarCache.open(file);
+            assertEquals(0, cache.getNumRows());
+            assertFalse(cache.rows().iterator().hasNext());
+        } finally {
+            deleteFiles(file);
+        }
+    }
+
+    /**
+     * Write a temporary TSV file.
+     * @param contents the contents of the file
+     * @return the file
+     * @throws IOException error writing
+     */
+    private File makeFile(final String contents) throws IOException {
+        final File file = File.createTempFile("tempfile", ".tsv");
+        FileUtils.writeStringToFile(file, contents);
+        return file;
+    }
+
+    /**
+     * Delete a TSV file and its cache.
+     * @param file the TSV file
+     */
+    private void deleteFiles(final File file) {
+        file.delete();
+        TsvColumnarCache.getCacheFile(file).delete();
+    }
+}
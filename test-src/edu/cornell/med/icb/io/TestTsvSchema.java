@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import edu.cornell.med.icb.iterators.TsvLineIterator;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validate the {@link edu.cornell.med.icb.io.TsvSchema} inference.
+ */
+public class TestTsvSchema {
+    /**
+     * Test the types inferred for each kind of column.
+     */
+    @Test
+    public void testInferSchema() throws IOException {
+        final File file = File.createTempFile("test-tsv-schema", ".tsv");
+        try {
+            FileUtils.writeStringToFile(file, "# comment\n"
+                    + "id\tbig\tscore\tflag\tname\tvector\tids\tempty\tmixed\n"
+                    + "1\t1\t1\ttrue\tabc\t1.5,2\t1,2\t\ttrue\n"
+                    + "# another comment\n"
+                    + "-2\t9999999999\t2.5\tFALSE\t12\t3\t4\t\t7\n"
+                    + "\t\t1e5\t\t\t\t\t\t\n"
+                    + "3\t4\tnot a number\ttrue\tdef\t1,2\ta,b\t\t1\n");
+            final TsvSchema schema = TsvToFromMap.inferSchema(file, 3);
+            assertEquals(9, schema.getNumColumns());
+            assertEquals("id:INT\tbig:LONG\tscore:DOUBLE\tflag:BOOLEAN\tname:STRING"
+                    + "\tvector:DOUBLE[]\tids:INT[]\tempty:STRING\tmixed:STRING",
+                    schema.toString());
+            assertEquals(2, schema.getColumnIndex("score"));
+            assertEquals(-1, schema.getColumnIndex("missing"));
+            assertTrue(schema.isList(5));
+            assertFalse(schema.isList(4));
+
+            assertEquals(-2, schema.parse(0, "-2"));
+            assertEquals(9999999999L, schema.parse(1, "9999999999"));
+            assertEquals(2.5d, schema.parse(2, "2.5"));
+            assertEquals(Boolean.FALSE, schema.parse(3, "FALSE"));
+            assertEquals("12", schema.parse(4, "12"));
+            assertArrayEquals(new double[] {1.5d, 0.0d, 2.0d},
+                    (double[]) schema.parse(5, "1.5, ,2"), 0.0d);
+            assertArrayEquals(new int[] {3}, (int[]) schema.parse(6, "3"));
+            assertNull(schema.parse(0, ""));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test rows and column handles parse values with the schema of their TsvToFromMap.
+     */
+    @Test
+    public void testRowValues() throws IOException {
+        final File file = File.createTempFile("test-tsv-schema", ".tsv");
+        try {
+            FileUtils.writeStringToFile(file, "id\tscore\tvector\tname\n"
+                    + "1\t2.5\t1,2\ta\n"
+                    + "2\t\t3\tb\n");
+            final TsvLineIterator lines = new TsvLineIterator(file);
+            final TsvToFromMap tsv = lines.getTsvReader();
+            tsv.setSchema(TsvToFromMap.inferSchema(file, 10));
+            final ColumnRef<Object> score = tsv.valueColumn("score");
+            final List<Object[]> values = new ArrayList<Object[]>();
+            for (final TsvRow row : lines.rows()) {
+                values.add(new Object[] {row.getValue(0), score.get(row),
+                        row.getValue("vector"), row.getValue("name")});
+            }
+            lines.close();
+            assertEquals(2, values.size());
+            assertEquals(1, values.get(0)[0]);
+            assertEquals(2.5d, values.get(0)[1]);
+            assertArrayEquals(new int[] {1, 2}, (int[]) values.get(0)[2]);
+            assertEquals("a", values.get(0)[3]);
+            assertNull(values.get(1)[1]);
+            assertArrayEquals(new int[] {3}, (int[]) values.get(1)[2]);
+            assertEquals(2.0d, score.get(tsv.readDataToMap("1\t2\t3\tc")));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test a schema must have the columns of its TsvToFromMap.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSchemaColumns() {
+        new TsvToFromMap("a", "b").setSchema(new TsvSchema(new String[] {"a"},
+                new TsvSchema.ColumnType[] {TsvSchema.ColumnType.INT}, new boolean[1]));
+    }
+
+    /**
+     * Test a schema resolves duplicate column names like TsvToFromMap does.
+     */
+    @Test
+    public void testDuplicateColumns() {
+        final String[] columnNames = {"a", "b", "a"};
+        final TsvSchema schema = new TsvSchema(columnNames, new TsvSchema.ColumnType[] {
+                TsvSchema.ColumnType.INT, TsvSchema.ColumnType.INT, TsvSchema.ColumnType.INT},
+                new boolean[3]);
+        assertEquals(2, schema.getColumnIndex("a"));
+        assertEquals(new TsvToFromMap(columnNames).getColumnIndex("a"),
+                schema.getColumnIndex("a"));
+        assertEquals(1, schema.getColumnIndex("b"));
+    }
+
+    /**
+     * Test files without a header have no schema.
+     */
+    @Test
+    public void testNoHeader() throws IOException {
+        final File file = File.createTempFile("test-tsv-schema", ".tsv");
+        try {
+            FileUtils.writeStringToFile(file, "# only a comment\n");
+            assertNull(TsvToFromMap.inferSchema(file, 10));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test values that do not match the column type are rejected.
+     */
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalid() {
+        final TsvSchema schema = new TsvSchema(new String[] {"a"},
+                new TsvSchema.ColumnType[] {TsvSchema.ColumnType.INT}, new boolean[1]);
+        schema.parse(0, "1.5");
+    }
+}
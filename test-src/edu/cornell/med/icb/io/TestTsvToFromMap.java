@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Validate the rows and column handles of {@link TsvToFromMap}.
+ */
+public class TestTsvToFromMap {
+    /**
+     * Read a reused row through column handles, and a map through the same handles.
+     * @throws IOException error reading a line
+     */
+    @Test
+    public void columnRefs() throws IOException {
+        final TsvToFromMap tsv = new TsvToFromMap("id", "expr", "count", "vector");
+        final ColumnRef<String> id = tsv.stringColumn("id");
+        final ColumnRef<Double> expr = tsv.doubleColumn("expr");
+        final ColumnRef<Integer> count = tsv.intColumn("count");
+        final ColumnRef<double[]> vector = tsv.doubleArrayColumn("vector");
+        final ColumnRef<int[]> ints = tsv.intArrayColumn("vector");
+        assertEquals(1, expr.getIndex());
+
+        TsvRow row = tsv.readDataToRow("a\t1.5\t3\t1,2,3", null);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("a", id.get(row));
+            assertEquals(1.5, expr.get(row), 0);
+            assertEquals(Integer.valueOf(3), count.get(row));
+            assertArrayEquals(new double[] {1, 2, 3}, vector.get(row), 0);
+            assertArrayEquals(new int[] {1, 2, 3}, ints.get(row));
+        }
+        // The returned arrays are copies of the parsed values
+        vector.get(row)[0] = 42;
+        assertArrayEquals(new double[] {1, 2, 3}, vector.get(row), 0);
+
+        // Moving to another line drops the parsed values
+        row = tsv.readDataToRow("b\t\t-7\t4", row);
+        assertEquals("b", id.get(row));
+        assertNull(expr.get(row));
+        assertEquals(Integer.valueOf(-7), count.get(row));
+        assertArrayEquals(new double[] {4}, vector.get(row), 0);
+
+        final LinkedHashToMultiTypeMap<String> map = tsv.readDataToMap("c\t2\t5\t6,7");
+        assertEquals("c", id.get(map));
+        assertEquals(2.0, expr.get(map), 0);
+        assertEquals(Integer.valueOf(5), count.get(map));
+        assertArrayEquals(new double[] {6, 7}, vector.get(map), 0);
+    }
+
+    /**
+     * Handles can only be created for existing columns.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void missingColumn() {
+        new TsvToFromMap("one", "two").doubleColumn("three");
+    }
+
+    /**
+     * Handles cannot read rows of another TsvToFromMap.
+     * @throws IOException error reading a line
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void otherRow() throws IOException {
+        final TsvToFromMap first = new TsvToFromMap("one");
+        final TsvToFromMap second = new TsvToFromMap("one");
+        first.doubleColumn("one").get(second.readDataToRow("1", null));
+    }
+}
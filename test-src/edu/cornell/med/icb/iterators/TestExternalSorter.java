@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.TSVWriter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Test the ExternalSorter.
+ */
+public class TestExternalSorter {
+    /** The directory the test files are written to. */
+    private File directory;
+
+    /**
+     * Create the directory for the test files.
+     * @throws IOException error creating the directory
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sorter", "");
+        directory.delete();
+        assertTrue(directory.mkdir());
+    }
+
+    /**
+     * Remove the test files.
+     * @throws IOException error removing the files
+     */
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Sort random lines in many runs, with and without compressed temporary files and
+     * intermediate merge passes.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void manyRuns() throws IOException {
+        final Random random = new Random(42);
+        final List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            lines.add(Integer.toString(random.nextInt(5000), 36) + "\t" + i);
+        }
+        lines.add("");
+        final File input = writeLines("input.txt", lines);
+        Collections.sort(lines);
+        for (final boolean compress : new boolean[] {false, true}) {
+            for (final int fanIn : new int[] {2, 3, 1000}) {
+                final ExternalSorter sorter = new ExternalSorter();
+                sorter.setMemoryBudget(100000);
+                sorter.setThreads(3);
+                sorter.setFanIn(fanIn);
+                sorter.setCompressTempFiles(compress);
+                sorter.setTempDirectory(directory);
+                final File output = new File(directory, "output.txt" + (compress ? ".gz" : ""));
+                sorter.sort(input, output);
+                assertEquals(lines, readLines(output));
+                // Only the input and output remain
+                assertEquals(2, directory.list().length);
+                output.delete();
+            }
+        }
+    }
+
+    /**
+     * Sort by a numeric column, keeping one of each line.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void lineKeyUnique() throws IOException {
+        final Random random = new Random(7);
+        final List<String> lines = new ArrayList<String>();
+        final TreeSet<Long> positions = new TreeSet<Long>();
+        for (int i = 0; i < 5000; i++) {
+            final long position = random.nextInt(1000000);
+            lines.add("chr1\t" + position);
+            lines.add("chr1\t" + position);
+            positions.add(position);
+        }
+        final File input = writeLines("input.tsv", lines);
+        final ExternalSorter sorter = new ExternalSorter();
+        sorter.setMemoryBudget(20000);
+        sorter.setFanIn(4);
+        sorter.setUnique(true);
+        sorter.setLineKey(new LineKey().addLongColumn(1));
+        sorter.setTempDirectory(directory);
+        sorter.sort(input, input);
+        final List<String> expected = new ArrayList<String>();
+        for (final long position : positions) {
+            expected.add("chr1\t" + position);
+        }
+        assertEquals(expected, readLines(input));
+    }
+
+    /**
+     * Sort by key a file written by the TSVWriter, whose first column holds escaped
+     * delimiters and escape characters, in several runs.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void escapedFields() throws IOException {
+        final String[] names = {"a\tz", "a[", "a\\b", "a", "\t"};
+        final List<String> keys = new ArrayList<String>();
+        final File input = new File(directory, "input.tsv");
+        final TSVWriter writer = new TSVWriter(new FileWriter(input));
+        for (int i = 0; i < 2000; i++) {
+            final String name = names[i % names.length];
+            final int number = (i * 7919) % 50;
+            writer.writeString(name).writeLong(number).writeInt(i).newLine();
+            // The order of the key, the number then the unescaped name, and the line
+            keys.add(String.format("%02d\u0000%s\u0000%04d", number, name, i));
+        }
+        writer.close();
+        Collections.sort(keys);
+        final StringWriter text = new StringWriter();
+        final TSVWriter expected = new TSVWriter(text);
+        for (final String key : keys) {
+            final String[] parts = key.split("\u0000");
+            expected.writeString(parts[1]).writeLong(Long.parseLong(parts[0]))
+                    .writeInt(Integer.parseInt(parts[2])).newLine();
+        }
+        expected.close();
+
+        final ExternalSorter sorter = new ExternalSorter();
+        sorter.setMemoryBudget(20000);
+        sorter.setFanIn(3);
+        sorter.setLineKey(new LineKey().addLongColumn(1).addStringColumn(0)
+                .addLongColumn(2));
+        sorter.setTempDirectory(directory);
+        final File output = new File(directory, "output.tsv");
+        sorter.sort(input, output);
+        assertEquals(Arrays.asList(text.toString().split("\n")), readLines(output));
+    }
+
+    /**
+     * Input that fits in memory and empty input.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void inMemory() throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final File empty = writeLines("empty.txt", lines);
+        final File output = new File(directory, "output.txt");
+        new ExternalSorter().sort(empty, output);
+        assertEquals(lines, readLines(output));
+
+        lines.add("b");
+        lines.add("a");
+        final File input = writeLines("input.txt", lines);
+        new ExternalSorter().sort(input, output);
+        Collections.sort(lines);
+        assertEquals(lines, readLines(output));
+    }
+
+    /**
+     * A sort that fails leaves the output as it was.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void failedSortKeepsOutput() throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        lines.add("old");
+        final File output = writeLines("output.txt", lines);
+        final Iterator<String> failing = new Iterator<String>() {
+            private int count;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public String next() {
+                if (count == 1000) {
+                    throw new IllegalArgumentException("broken");
+                }
+                return Integer.toString(count++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final ExternalSorter sorter = new ExternalSorter();
+        sorter.setMemoryBudget(10000);
+        sorter.setTempDirectory(directory);
+        try {
+            sorter.sort(failing, output);
+            fail("The error should be thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals(lines, readLines(output));
+        assertEquals(1, directory.list().length);
+    }
+
+    /**
+     * Write lines to a file in the test directory.
+     * @param name the name of the file
+     * @param lines the lines to write
+     * @return the file
+     * @throws IOException error writing
+     */
+    private File writeLines(final String name, final List<String> lines) throws IOException {
+        final File file = new File(directory, name);
+        FileUtils.writeLines(file, lines, "\n");
+        return file;
+    }
+
+    /**
+     * Read the lines of a file.
+     * @param file the file to read
+     * @return the lines
+     * @throws IOException error reading
+     */
+    private List<String> readLines(final File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final TextFileLineIterator iterator = new TextFileLineIterator(file);
+        for (final String line : iterator) {
+            lines.add(line);
+        }
+        iterator.close();
+        return lines;
+    }
+}
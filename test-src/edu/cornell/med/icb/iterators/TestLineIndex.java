@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test the LineIndex.
+ */
+public class TestLineIndex {
+    /** The lines of the test file. */
+    private final List<String> expected = new ArrayList<String>();
+
+    /** The test file. */
+    private File file;
+
+    /**
+     * Write a test file with every kind of line terminator.
+     * @throws IOException error writing
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("test-line-index", ".txt");
+        final String[] terminators = {"\n", "\r\n", "\r"};
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append(i % 10 == 0 ? "" : "line " + i);
+            text.append(terminators[i % terminators.length]);
+        }
+        text.append("no terminator");
+        FileUtils.writeStringToFile(file, text.toString());
+        final BufferedReader reader = new BufferedReader(new StringReader(text.toString()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            expected.add(line);
+        }
+    }
+
+    /**
+     * Delete the test file and its index.
+     */
+    @After
+    public void tearDown() {
+        LineIndex.getIndexFile(file).delete();
+        file.delete();
+    }
+
+    /**
+     * Reading can start at every line.
+     * @throws IOException error reading
+     */
+    @Test
+    public void startAtLine() throws IOException {
+        final LineIndex index = LineIndex.build(file, 7);
+        assertEquals(expected.size(), index.getNumLines());
+        for (int first = 0; first <= expected.size(); first += 13) {
+            assertEquals(expected.subList(first, expected.size()), read(index.lines(first)));
+        }
+        assertEquals(expected.subList(100, 150), read(index.lines(100, 50)));
+        final int last = expected.size() - 10;
+        assertEquals(expected.subList(last, expected.size()), read(index.lines(last, 50)));
+    }
+
+    /**
+     * Adjacent byte ranges read every line exactly once.
+     * @throws IOException error reading
+     */
+    @Test
+    public void byteRanges() throws IOException {
+        final LineIndex index = LineIndex.build(file, 100);
+        for (final int size : new int[] {1, 2, 17, 1000, 100000}) {
+            final List<String> lines = new ArrayList<String>();
+            for (long start = 0; start < file.length(); start += size) {
+                lines.addAll(read(new TextFileLineIterator(
+                        index.openByteRange(start, start + size))));
+            }
+            assertEquals(expected, lines);
+        }
+    }
+
+    /**
+     * The side file is reused while it is up to date and rebuilt otherwise.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void sideFile() throws IOException {
+        final LineIndex built = LineIndex.open(file, 16);
+        assertTrue(LineIndex.getIndexFile(file).exists());
+        final LineIndex loaded = LineIndex.open(file, 16);
+        for (int line = 0; line <= expected.size(); line++) {
+            assertEquals(built.getLineOffset(line), loaded.getLineOffset(line));
+        }
+
+        FileUtils.writeStringToFile(file, "a\nb\n");
+        final LineIndex rebuilt = LineIndex.open(file, 16);
+        assertEquals(2, rebuilt.getNumLines());
+        assertEquals(2, rebuilt.getLineOffset(1));
+    }
+
+    /**
+     * A truncated side file is rebuilt rather than failing.
+     * @throws IOException error reading or writing
+     */
+    @Test
+    public void truncatedSideFile() throws IOException {
+        LineIndex.open(file, 16);
+        final File indexFile = LineIndex.getIndexFile(file);
+        final byte[] bytes = FileUtils.readFileToByteArray(indexFile);
+        final byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        FileUtils.writeByteArrayToFile(indexFile, truncated);
+        final LineIndex rebuilt = LineIndex.open(file, 16);
+        assertEquals(expected.size(), rebuilt.getNumLines());
+        assertEquals(bytes.length, indexFile.length());
+    }
+
+    /**
+     * Read all the lines of an iterator.
+     * @param lines the iterator
+     * @return the lines
+     * @throws IOException error closing
+     */
+    private static List<String> read(final TextFileLineIterator lines) throws IOException {
+        final List<String> result = new ArrayList<String>();
+        for (final String line : lines) {
+            result.add(line);
+        }
+        lines.close();
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import edu.cornell.med.icb.io.TSVWriter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Test the LineKey.
+ */
+public class TestLineKey {
+    /**
+     * Key columns are found past escaped delimiters and compared unescaped, for lines
+     * written by the TSVWriter.
+     * @throws IOException error writing the lines
+     */
+    @Test
+    public void escapedLines() throws IOException {
+        final StringWriter text = new StringWriter();
+        final TSVWriter writer = new TSVWriter(text);
+        writer.writeString("x\ty").writeLong(12).writeString("a\tz").newLine();
+        writer.writeString("y").writeLong(7).writeString("a[").newLine();
+        writer.writeString("z").writeLong(7).writeString("a\\z").newLine();
+        writer.close();
+        final String[] lines = text.toString().split("\n");
+        assertEquals("x\\\ty\t12\ta\\\tz", lines[0]);
+
+        final LineKey byLong = new LineKey().addLongColumn(1);
+        assertTrue(byLong.extract(lines[0], null).compareTo(
+                byLong.extract(lines[1], null)) > 0);
+        assertEquals(0, byLong.extract(lines[1], null).compareTo(
+                byLong.extract(lines[2], null)));
+
+        // Escaped, '\\' sorts after '[', unescaped the tab sorts before it
+        final LineKey byString = new LineKey().addStringColumn(2);
+        assertTrue(byString.extract(lines[0], null).compareTo(
+                byString.extract(lines[1], null)) < 0);
+        assertTrue(byString.extract(lines[1], null).compareTo(
+                byString.extract(lines[2], null)) < 0);
+    }
+
+    /**
+     * Without an escape character the escape is an ordinary character.
+     */
+    @Test
+    public void noEscape() {
+        final LineKey key = new LineKey().setEscapeChar(null).addStringColumn(1);
+        final LineKey.Key escaped = key.extract("a\\\tb\tc", null);
+        assertEquals(0, escaped.compareTo(key.extract("x\tb\tz", null)));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import it.unimi.dsi.lang.MutableString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Test the MutableStringLineIterator.
+ */
+public class TestMutableStringLineIterator {
+    /**
+     * Lines read with a tiny buffer, for every line terminator, match BufferedReader.
+     * @throws IOException error reading
+     */
+    @Test
+    public void lineTerminators() throws IOException {
+        final String text = "a\nbb\r\nccc\rdddd\n\n\r\r\nlonger than the buffer\nlast";
+        assertLines(text, readLines(text, "UTF-8", 4));
+        assertLines(text, readLines(text + "\n", "UTF-8", 1));
+        assertLines("", readLines("", "UTF-8", 4));
+    }
+
+    /**
+     * Non ASCII lines are decoded with the charset, ASCII and Latin-1 lines directly.
+     * @throws IOException error reading
+     */
+    @Test
+    public void charsets() throws IOException {
+        final String text = "plain\ncaf\u00e9 \u00fcber\n\u03b1\u03b2\u03b3 \u4e2d\nend";
+        assertLines(text, readLines(text, "UTF-8", 3));
+        final String latin1 = "plain\ncaf\u00e9 \u00fcber \u00ff\nend";
+        assertLines(latin1, readLines(latin1, "ISO-8859-1", 3));
+        assertLines(latin1, readLines(latin1, "windows-1252", 3));
+    }
+
+    /**
+     * Invalid input is replaced like InputStreamReader does.
+     * @throws IOException error reading
+     */
+    @Test
+    public void malformedInput() throws IOException {
+        final byte[] bytes = {'a', (byte) 0xC3, '\n', (byte) 0xFF, 'b'};
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+        final MutableStringLineIterator lines = new MutableStringLineIterator(
+                new ByteArrayInputStream(bytes), Charset.forName("UTF-8"));
+        for (final MutableString line : lines) {
+            assertEquals(reader.readLine(), line.toString());
+        }
+        assertEquals(null, reader.readLine());
+    }
+
+    /**
+     * The same MutableString is returned for every line.
+     * @throws IOException error reading
+     */
+    @Test
+    public void reused() throws IOException {
+        final MutableStringLineIterator lines = new MutableStringLineIterator(
+                new ByteArrayInputStream("a\nb\n".getBytes("UTF-8")), Charset.forName("UTF-8"));
+        final Iterator<MutableString> iterator = lines.iterator();
+        final MutableString first = iterator.next();
+        assertEquals("a", first.toString());
+        assertSame(first, iterator.next());
+        assertEquals("b", first.toString());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Charsets that do not encode ASCII as single bytes are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void utf16() {
+        new MutableStringLineIterator(new ByteArrayInputStream(new byte[0]),
+                Charset.forName("UTF-16"));
+    }
+
+    /**
+     * Read all the lines of some text.
+     * @param text the text
+     * @param charset the charset to encode and decode the text with
+     * @param bufferSize the buffer size
+     * @return the lines
+     * @throws IOException error reading
+     */
+    private List<String> readLines(final String text, final String charset,
+                                   final int bufferSize) throws IOException {
+        final List<String> result = new ArrayList<String>();
+        final MutableStringLineIterator lines = new MutableStringLineIterator(
+                new ByteArrayInputStream(text.getBytes(charset)), Charset.forName(charset),
+                bufferSize);
+        for (final MutableString line : lines) {
+            result.add(line.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Make sure the lines match the lines BufferedReader reads from the text.
+     * @param text the text
+     * @param actual the actual lines
+     * @throws IOException error reading
+     */
+    private void assertLines(final String text, final List<String> actual) throws IOException {
+        final BufferedReader reader = new BufferedReader(new StringReader(text));
+        final List<String> expected = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            expected.add(line);
+        }
+        assertEquals(expected, actual);
+    }
+}
@@ -19,6 +19,8 @@
 package edu.cornell.med.icb.iterators;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
@@ -28,8 +30,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -158,6 +164,210 @@ public class TestPreSortedMergeTextFilesLineIterator {
         }
     }
 
+    /**
+     * Duplicates at the end of several files are all returned when not skipping duplicates.
+     * @throws IOException error reading
+     */
+    @Test
+    public void duplicatesAtEnd() throws IOException {
+        final InputStream[] streams = new InputStream[3];
+        streams[0] = new ByteArrayInputStream("a\nk".getBytes());
+        streams[1] = new ByteArrayInputStream("b\nk\n".getBytes());
+        streams[2] = new ByteArrayInputStream("k\n".getBytes());
+
+        final List<String> result = new ArrayList<String>();
+        final PreSortedMergeTextFilesLineIterator reader =
+                new PreSortedMergeTextFilesLineIterator(streams);
+        reader.setSkipDuplicates(false);
+        for (final String line : reader) {
+            result.add(line);
+        }
+        assertSame(result, "a", "b", "k", "k", "k");
+    }
+
+    /**
+     * Merge many sorted files and compare with sorting all their lines.
+     * @throws IOException error reading
+     */
+    @Test
+    public void manyFiles() throws IOException {
+        final Random random = new Random(16);
+        final int numFiles = 200;
+        final List<List<String>> files = new ArrayList<List<String>>();
+        final List<String> all = new ArrayList<String>();
+        for (int i = 0; i < numFiles; i++) {
+            final List<String> lines = new ArrayList<String>();
+            final int numLines = random.nextInt(100);
+            for (int j = 0; j < numLines; j++) {
+                lines.add(Integer.toString(random.nextInt(5000)));
+            }
+            Collections.sort(lines);
+            files.add(lines);
+            all.addAll(lines);
+        }
+        Collections.sort(all);
+
+        for (int run = 0; run < 4; run++) {
+            final boolean skipDuplicates = run % 2 == 1;
+            final InputStream[] streams = new InputStream[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                final StringBuilder text = new StringBuilder();
+                for (final String line : files.get(i)) {
+                    text.append(line).append('\n');
+                }
+                streams[i] = new ByteArrayInputStream(text.toString().getBytes());
+            }
+            final PreSortedMergeTextFilesLineIterator reader =
+                    new PreSortedMergeTextFilesLineIterator(streams);
+            reader.setSkipDuplicates(skipDuplicates);
+            reader.setReadAhead(run >= 2);
+            final List<String> result = new ArrayList<String>();
+            for (final String line : reader) {
+                result.add(line);
+            }
+            final List<String> expected = skipDuplicates
+                    ? new ArrayList<String>(new TreeSet<String>(all)) : all;
+            assertEquals(expected, result);
+        }
+    }
+
+    /**
+     * Merge more files than may be open at once, by key, in several passes.
+     * @throws IOException error reading
+     */
+    @Test
+    public void maxOpenFiles() throws IOException {
+        final Random random = new Random(19);
+        final List<Integer> all = new ArrayList<Integer>();
+        final List<String> filenames = new ArrayList<String>();
+        final File tempDirectory = File.createTempFile("merge", "");
+        assertTrue(tempDirectory.delete() && tempDirectory.mkdir());
+        try {
+            for (int i = 0; i < 30; i++) {
+                final List<Integer> numbers = new ArrayList<Integer>();
+                for (int j = 0; j < 50; j++) {
+                    numbers.add(random.nextInt(100000));
+                }
+                Collections.sort(numbers);
+                all.addAll(numbers);
+                final StringBuilder text = new StringBuilder();
+                for (final int number : numbers) {
+                    text.append("id\t").append(number).append('\n');
+                }
+                filenames.add(makeFile(text.toString(), i % 2 == 0 ? ".txt" : ".txt.gz"));
+            }
+            final PreSortedMergeTextFilesLineIterator reader =
+                    new PreSortedMergeTextFilesLineIterator(filenames);
+            reader.setMaxOpenFiles(3);
+            reader.setReadAhead(true);
+            reader.setLineKey(new LineKey().addLongColumn(1));
+            reader.setTempDirectory(tempDirectory);
+            reader.setCompressTempFiles(true);
+            assertTrue(reader.hasNext());
+            assertTrue(tempDirectory.list()[0].endsWith(".gz"));
+            final List<String> result = new ArrayList<String>();
+            for (final String line : reader) {
+                result.add(line);
+            }
+            // The temporary files are deleted once read
+            assertEquals(0, tempDirectory.list().length);
+            final List<String> expected = new ArrayList<String>();
+            for (final int number : new TreeSet<Integer>(all)) {
+                expected.add("id\t" + number);
+            }
+            assertEquals(expected, result);
+        } finally {
+            for (final String filename : filenames) {
+                new File(filename).delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    /**
+     * Close a merge that reads ahead before its end.
+     * @throws IOException error reading
+     */
+    @Test
+    public void closeEarly() throws IOException {
+        final InputStream[] streams = new InputStream[3];
+        for (int i = 0; i < streams.length; i++) {
+            final StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 100000; j++) {
+                text.append(j * 3 + i + 1000000).append('\n');
+            }
+            streams[i] = new ByteArrayInputStream(text.toString().getBytes());
+        }
+        final PreSortedMergeTextFilesLineIterator reader =
+                new PreSortedMergeTextFilesLineIterator(streams);
+        reader.setReadAhead(true);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.toString(1000000 + i), reader.next());
+        }
+        reader.close();
+        assertFalse(reader.hasNext());
+    }
+
+    /**
+     * Merge files sorted by a numeric column, then by name.
+     * @throws IOException error reading
+     */
+    @Test
+    public void lineKey() throws IOException {
+        final InputStream[] streams = new InputStream[3];
+        streams[0] = new ByteArrayInputStream("b\tchr1\t9\na\tchr1\t100\n".getBytes());
+        streams[1] = new ByteArrayInputStream("a\tchr1\t9\nc\tchr1\t20\n".getBytes());
+        streams[2] = new ByteArrayInputStream("a\tchr1\t9\n\nd\tchr1\t1000\n".getBytes());
+
+        final List<String> result = new ArrayList<String>();
+        final PreSortedMergeTextFilesLineIterator reader =
+                new PreSortedMergeTextFilesLineIterator(streams);
+        reader.setLineKey(new LineKey().addLongColumn(2).addStringColumn(0));
+        for (final String line : reader) {
+            result.add(line);
+        }
+        assertSame(result, "a\tchr1\t9", "b\tchr1\t9", "c\tchr1\t20",
+                "a\tchr1\t100", "d\tchr1\t1000");
+    }
+
+    /**
+     * Merge files sorted by a comparator, keeping the duplicates.
+     * @throws IOException error reading
+     */
+    @Test
+    public void comparator() throws IOException {
+        final InputStream[] streams = new InputStream[2];
+        streams[0] = new ByteArrayInputStream("zz\na\n".getBytes());
+        streams[1] = new ByteArrayInputStream("yyy\nbb\na\n".getBytes());
+
+        final List<String> result = new ArrayList<String>();
+        final PreSortedMergeTextFilesLineIterator reader =
+                new PreSortedMergeTextFilesLineIterator(streams);
+        reader.setSkipDuplicates(false);
+        reader.setComparator(new Comparator<String>() {
+            public int compare(final String first, final String second) {
+                return second.length() - first.length();
+            }
+        });
+        for (final String line : reader) {
+            result.add(line);
+        }
+        assertSame(result, "yyy", "bb", "zz", "a", "a");
+    }
+
+    /**
+     * The order cannot change once the merge has started.
+     * @throws IOException error reading
+     */
+    @Test(expected = IllegalStateException.class)
+    public void orderAfterStart() throws IOException {
+        final PreSortedMergeTextFilesLineIterator reader =
+                new PreSortedMergeTextFilesLineIterator(new InputStream[] {
+                        new ByteArrayInputStream("1\n".getBytes())});
+        reader.hasNext();
+        reader.setLineKey(new LineKey().addLongColumn(0));
+    }
+
     /**
      * Make sure the list (actual) matches the String.... expected.
      * @param actual the actual values
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.iterators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Test the PrefetchingIterator.
+ */
+public class TestPrefetchingIterator {
+    /**
+     * All the elements are returned in order, whatever the batch size.
+     */
+    @Test
+    public void order() {
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add(i);
+        }
+        for (final int batchSize : new int[] {1, 3, 1000, 5000}) {
+            final List<Integer> actual = new ArrayList<Integer>();
+            final PrefetchingIterator<Integer> iterator =
+                    new PrefetchingIterator<Integer>(expected.iterator(), batchSize, 2);
+            while (iterator.hasNext()) {
+                actual.add(iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+            assertEquals(expected, actual);
+        }
+    }
+
+    /**
+     * Errors of the source are thrown after the elements produced before them.
+     */
+    @Test
+    public void error() {
+        final Iterator<Integer> failing = new Iterator<Integer>() {
+            private int count;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Integer next() {
+                if (count == 10) {
+                    throw new IllegalArgumentException("broken");
+                }
+                return count++;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final PrefetchingIterator<Integer> iterator =
+                new PrefetchingIterator<Integer>(failing, 4, 2);
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                assertEquals(count++, iterator.next().intValue());
+            }
+            fail("The error should be thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals(10, count);
+    }
+
+    /**
+     * An Error of the source reaches the consumer instead of leaving it waiting.
+     */
+    @Test(timeout = 10000)
+    public void fatalError() {
+        final Iterator<Integer> failing = new Iterator<Integer>() {
+            private int count;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Integer next() {
+                if (count == 5) {
+                    throw new AssertionError("fatal");
+                }
+                return count++;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final PrefetchingIterator<Integer> iterator =
+                new PrefetchingIterator<Integer>(failing, 2, 1);
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                assertEquals(count++, iterator.next().intValue());
+            }
+            fail("The error should be thrown");
+        } catch (AssertionError e) {
+            assertEquals("fatal", e.getMessage());
+        }
+        assertEquals(5, count);
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Prefetched lines of a TextFileLineIterator, closed before the end.
+     * @throws IOException error reading
+     */
+    @Test
+    public void textFileLines() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        final TextFileLineIterator lines = new TextFileLineIterator(
+                new ByteArrayInputStream(text.toString().getBytes()));
+        lines.setPrefetch(true);
+        int i = 0;
+        for (final String line : lines) {
+            assertEquals("line " + i++, line);
+            if (i == 50000) {
+                break;
+            }
+        }
+        lines.close();
+        assertEquals(50000, i);
+    }
+}
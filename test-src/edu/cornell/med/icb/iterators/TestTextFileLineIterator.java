@@ -18,14 +18,28 @@
 
 package edu.cornell.med.icb.iterators;
 
+import edu.cornell.med.icb.io.CompressedStreams;
+import edu.cornell.med.icb.io.ParallelGZIPOutputStream;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Test the PreSortedMergeTextFilesLineIterator.
@@ -51,6 +65,165 @@ public class TestTextFileLineIterator {
         assertSame(result, "a", "b", "b", "c", "c", "d", "", "k");
     }
 
+    /**
+     * Read a gzip file with small buffers, with and without read ahead.
+     * @throws java.io.IOException error reading
+     */
+    @Test
+    public void gzipIterator() throws IOException {
+        final File file = File.createTempFile("test-text-file-line-iterator", ".txt.GZ");
+        try {
+            final Writer out = new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(file)));
+            for (int i = 0; i < 10000; i++) {
+                out.write("line " + i + "\n");
+            }
+            out.close();
+            assertFalse(CompressedStreams.isBgzf(file));
+
+            final TextFileLineIterator stream = new TextFileLineIterator(file);
+            assertEquals(10000, stream.lines().count());
+            stream.close();
+
+            for (final boolean readAhead : new boolean[] {false, true}) {
+                final TextFileLineIterator lines = new TextFileLineIterator(file, 100, readAhead);
+                int i = 0;
+                for (final String line : lines) {
+                    assertEquals("line " + i++, line);
+                }
+                assertEquals(10000, i);
+                lines.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Read a block gzip (BGZF) file with parallel and with single threaded decompression.
+     * @throws java.io.IOException error reading
+     */
+    @Test
+    public void bgzfIterator() throws IOException {
+        final File file = File.createTempFile("test-text-file-line-iterator", ".txt.gz");
+        try {
+            final Writer out = new OutputStreamWriter(
+                    new ParallelGZIPOutputStream(new FileOutputStream(file), 2));
+            for (int i = 0; i < 100000; i++) {
+                out.write("line " + i + "\n");
+            }
+            out.close();
+            assertTrue(CompressedStreams.isBgzf(file));
+
+            for (final int inflateThreads : new int[] {1, 3}) {
+                final TextFileLineIterator lines =
+                        new TextFileLineIterator(file, 1000, false, inflateThreads);
+                int i = 0;
+                for (final String line : lines) {
+                    assertEquals("line " + i++, line);
+                }
+                assertEquals(100000, i);
+                lines.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A parallel stream of the lines of a file is split into byte ranges and returns every
+     * line once, in order.
+     * @throws java.io.IOException error reading
+     */
+    @Test
+    public void parallelLines() throws IOException {
+        final File file = File.createTempFile("test-text-file-line-iterator", ".txt");
+        try {
+            final List<String> expected = new ArrayList<String>();
+            final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            for (int i = 0; i < 200000; i++) {
+                final String line = i % 100 == 0 ? "" : "line \u00e9 " + i;
+                expected.add(line);
+                out.write(line);
+                out.write(i % 2 == 0 ? "\n" : "\r\n");
+            }
+            out.close();
+
+            final TextFileLineIterator lines =
+                    new TextFileLineIterator(file, Charset.forName("UTF-8"));
+            final Stream<String> stream = lines.lines();
+            assertNotNull(stream.spliterator().trySplit());
+            stream.close();
+
+            final TextFileLineIterator parallel =
+                    new TextFileLineIterator(file, Charset.forName("UTF-8"));
+            final Stream<String> parallelStream = parallel.lines().parallel();
+            assertEquals(expected, parallelStream.collect(Collectors.<String>toList()));
+            parallelStream.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Follow a file while it is written to, truncated and rotated.
+     * @throws Exception error reading or writing
+     */
+    @Test
+    public void followGrowingFile() throws Exception {
+        final File file = File.createTempFile("test-text-file-line-iterator", ".log");
+        final File rotated = new File(file.getPath() + ".1");
+        try {
+            final TextFileLineIterator lines = TextFileLineIterator.follow(file, 2000);
+            final Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        append(file, "first line\nsecond ");
+                        Thread.sleep(200);
+                        append(file, "line\n");
+                        Thread.sleep(300);
+                        // Truncate
+                        final Writer out = new FileWriter(file);
+                        out.write("x\n");
+                        out.close();
+                        Thread.sleep(300);
+                        // Rotate
+                        append(file, "last of old\n");
+                        assertTrue(file.renameTo(rotated));
+                        append(file, "new file\n");
+                        Thread.sleep(300);
+                        lines.stopFollowing();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            writer.start();
+            final List<String> result = new ArrayList<String>();
+            for (final String line : lines) {
+                result.add(line);
+            }
+            writer.join();
+            lines.close();
+            assertSame(result, "first line", "second line", "x", "last of old", "new file");
+        } finally {
+            file.delete();
+            rotated.delete();
+        }
+    }
+
+    /**
+     * Append text to a file.
+     * @param file the file
+     * @param text the text to append
+     * @throws IOException error writing
+     */
+    private static void append(final File file, final String text) throws IOException {
+        final Writer out = new FileWriter(file, true);
+        out.write(text);
+        out.close();
+    }
+
     /**
      * Make sure the list (actual) matches the String.... expected.
      * @param actual the actual values
@@ -18,15 +18,25 @@
 
 package edu.cornell.med.icb.iterators;
 
+import edu.cornell.med.icb.io.TsvRow;
 import edu.cornell.med.icb.io.TsvToFromMap;
 import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
 import org.junit.Test;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  * Test the tsv line iterator.
@@ -165,5 +175,152 @@ public class TestTsvLineIterator {
         assertEquals(3, lineNo);
     }
 
+    /**
+     * Read a tsv stream, the TsvToFromMap read from the header line of the stream.
+     * @throws IOException
+     */
+    @Test
+    public void readTsvStreamNoTsvToFromMap() throws IOException {
+        final TsvLineIterator tsvLines = new TsvLineIterator(
+                new GZIPInputStream(new FileInputStream("test-input/tsv-test-file.txt.gz")));
+        assertEquals(Arrays.asList("one", "two", "three"),
+                tsvLines.getTsvReader().getColumnHeaders());
+        final String[] expected = {"cat", "dog", "fish"};
+        int lineNo = 0;
+        for (final TsvRow row : tsvLines.rows()) {
+            assertEquals(expected[lineNo], row.getString("one"));
+            assertEquals(lineNo + 1.0, row.getDouble("two"));
+            lineNo++;
+        }
+        tsvLines.close();
+        assertEquals(3, lineNo);
+    }
+
+    /**
+     * Read the tsv file with lines read and parsed on a producer thread.
+     * @throws IOException
+     */
+    @Test
+    public void readTsvFilePrefetch() throws IOException {
+        final TsvLineIterator tsvLines = new TsvLineIterator("test-input/tsv-test-file.txt");
+        tsvLines.setPrefetch(true);
+        final String[] expected = {"cat", "dog", "fish"};
+        int lineNo = 0;
+        for (final LinkedHashToMultiTypeMap<String> lines : tsvLines) {
+            assertEquals(expected[lineNo], lines.get("one"));
+            assertEquals(lineNo + 1.0, lines.getDouble("two"));
+            lineNo++;
+        }
+        tsvLines.close();
+        assertEquals(3, lineNo);
+    }
+
+    /**
+     * Read a tsv file with an empty column as reused rows.
+     * @throws IOException
+     */
+    @Test
+    public void readTsvRows() throws IOException {
+        final List<LinkedHashToMultiTypeMap<String>> maps =
+                new ArrayList<LinkedHashToMultiTypeMap<String>>();
+        for (final LinkedHashToMultiTypeMap<String> map :
+                new TsvLineIterator("test-input/tsv-test-file-with-empty-col.txt")) {
+            maps.add(map);
+        }
+        final TsvLineIterator tsvLines =
+                new TsvLineIterator("test-input/tsv-test-file-with-empty-col.txt");
+        final List<TsvRow> copies = new ArrayList<TsvRow>();
+        TsvRow previous = null;
+        int lineNo = 0;
+        for (final TsvRow row : tsvLines.rows()) {
+            if (previous != null) {
+                assertSame(previous, row);
+            }
+            previous = row;
+            copies.add(row.copy());
+            assertEquals(maps.get(lineNo), row.toMap());
+            assertEquals(maps.get(lineNo).getDouble("two"), row.getDouble("two"));
+            assertEquals(maps.get(lineNo).getInt("two"), row.getInt(1));
+            assertTrue(Arrays.equals(maps.get(lineNo).getDoubleArray("three"),
+                    row.getDoubleArray("three")));
+            assertTrue(Arrays.equals(maps.get(lineNo).getIntArray("three"),
+                    row.getIntArray("three")));
+            assertNull(row.getString("four"));
+            lineNo++;
+        }
+        tsvLines.close();
+        assertEquals(3, lineNo);
+        assertEquals("cat", copies.get(0).getString("one"));
+        assertEquals("dog", copies.get(1).getString(0));
+        assertEquals("", copies.get(2).getString("one"));
+    }
+
+    /**
+     * Prefetched rows are not reused.
+     * @throws IOException
+     */
+    @Test
+    public void readTsvRowsPrefetch() throws IOException {
+        final TsvLineIterator tsvLines = new TsvLineIterator("test-input/tsv-test-file.txt");
+        tsvLines.setPrefetch(true);
+        final List<TsvRow> rows = new ArrayList<TsvRow>();
+        for (final TsvRow row : tsvLines.rows()) {
+            rows.add(row);
+        }
+        tsvLines.close();
+        assertEquals(3, rows.size());
+        assertNotSame(rows.get(0), rows.get(1));
+        assertEquals("fish", rows.get(2).getString("one"));
+        assertTrue(Arrays.equals(new double[] {6.0, 7.0, 8.0},
+                rows.get(1).getDoubleArray("three")));
+    }
+
+    /**
+     * List values with blank, empty and padded elements are split as by the map.
+     * @throws IOException
+     */
+    @Test
+    public void rowArrays() throws IOException {
+        final TsvToFromMap tsv = new TsvToFromMap("a", "b");
+        for (final String line : new String[] {"1, 2,,x\t 7", ",,\t,  ,3", "4\t-5"}) {
+            final LinkedHashToMultiTypeMap<String> map = tsv.readDataToMap(line);
+            final TsvRow row = tsv.readDataToRow(line, null);
+            for (final String field : new String[] {"a", "b"}) {
+                assertTrue(line, Arrays.equals(map.getDoubleArray(field),
+                        row.getDoubleArray(field)));
+                assertTrue(line, Arrays.equals(map.getIntArray(field),
+                        row.getIntArray(field)));
+                assertEquals(map.getDouble(field), row.getDouble(field));
+                assertEquals(map.getInt(field), row.getInt(field));
+            }
+        }
+    }
+
+    /**
+     * An error reading the header line is thrown as the IOException it is, and the
+     * stream is closed.
+     */
+    @Test
+    public void headerReadError() {
+        final boolean[] closed = new boolean[1];
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        try {
+            new TsvLineIterator(failing);
+            fail("The error should be thrown");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertTrue(closed[0]);
+    }
 }
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.maps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import edu.cornell.med.icb.io.TsvToFromMap;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Validate the parsed value caching of {@link LinkedHashToMultiTypeMap}.
+ */
+public class TestLinkedHashToMultiTypeMap {
+    /**
+     * Parsed values are kept until the String is replaced.
+     */
+    @Test
+    public void cachedValues() {
+        final LinkedHashToMultiTypeMap<String> map = new LinkedHashToMultiTypeMap<String>();
+        map.put("vector", "1, 2,,3");
+        map.put("number", "4.5");
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new double[] {1, 2, 3}, map.getDoubleArray("vector"), 0);
+            assertArrayEquals(new int[] {1, 2, 3}, map.getIntArray("vector"));
+            assertEquals(4.5, map.getDouble("number"), 0);
+        }
+        // The returned arrays are copies
+        map.getDoubleArray("vector")[0] = 42;
+        assertArrayEquals(new double[] {1, 2, 3}, map.getDoubleArray("vector"), 0);
+        map.put("spaced", "1 2");
+        assertArrayEquals(new double[] {0}, map.getDoubleArray("spaced"), 0);
+        assertArrayEquals(new double[] {1, 2}, map.getDoubleArray("spaced", ' '), 0);
+
+        map.put("vector", "5,6");
+        assertArrayEquals(new double[] {5, 6}, map.getDoubleArray("vector"), 0);
+        map.put("number", (Double) null);
+        assertNull(map.getDouble("number"));
+        map.put("number", 7);
+        assertEquals(Integer.valueOf(7), map.getInt("number"));
+        assertEquals("7", map.get("number"));
+        map.remove("vector");
+        assertNull(map.getDoubleArray("vector"));
+    }
+
+    /**
+     * Arrays of typed puts read back as they are and render to the same text as before.
+     * @throws IOException error serializing the map
+     * @throws ClassNotFoundException error deserializing the map
+     */
+    @Test
+    public void typedPuts() throws IOException, ClassNotFoundException {
+        final double[] vector = {1.5, -2, 1e-300};
+        final LinkedHashToMultiTypeMap<String> map = new LinkedHashToMultiTypeMap<String>();
+        map.put("id", "a");
+        map.put("vector", vector);
+        map.put("ints", new int[] {3, 4});
+        vector[0] = 0;
+        assertArrayEquals(new double[] {1.5, -2, 1e-300}, map.getDoubleArray("vector"), 0);
+        assertArrayEquals(new int[] {3, 4}, map.getIntArray("ints"));
+
+        final Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("id", "a");
+        expected.put("vector", "1.5,-2.0,1.0E-300");
+        expected.put("ints", "3,4");
+        assertEquals(expected, map);
+        assertEquals(expected.toString(), map.toString());
+        assertEquals("3,4", map.get("ints"));
+        map.put("ints", new int[] {5});
+        assertEquals("5", map.getOrDefault("ints", "none"));
+        assertEquals("none", map.getOrDefault("missing", "none"));
+        map.put("ints", new int[] {3, 4});
+
+        // Written out like any other value
+        map.put("vector", new double[] {8, 9});
+        final TsvToFromMap tsv = new TsvToFromMap("id", "vector", "ints");
+        final StringWriter text = new StringWriter();
+        final PrintWriter out = new PrintWriter(text);
+        tsv.writeDataFromMap(out, map);
+        out.flush();
+        assertEquals("a\t8.0,9.0\t3,4", text.toString().trim());
+
+        // And serialized rendered
+        map.put("ints", new int[] {10});
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream objects = new ObjectOutputStream(bytes);
+        objects.writeObject(map);
+        objects.close();
+        final Object copy = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(map, copy);
+        assertEquals("10", ((Map<?, ?>) copy).get("ints"));
+    }
+}